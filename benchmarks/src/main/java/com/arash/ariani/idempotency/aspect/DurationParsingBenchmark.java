@@ -0,0 +1,37 @@
+package com.arash.ariani.idempotency.aspect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link IdempotencyAspect#parseDuration}. It now runs once per method when metadata is cached, but custom
+ * annotations and startup validation still go through it. Lives in the aspect package to reach the package-private
+ * parser.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DurationParsingBenchmark {
+
+    @Param({"15m", "36h", "1h30m"})
+    public String ttl;
+
+    @Benchmark
+    public Duration parseDuration() {
+        return IdempotencyAspect.parseDuration("ttl", ttl);
+    }
+}
@@ -0,0 +1,46 @@
+package com.arash.ariani.idempotency.benchmarks;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of {@code benchmarks.jar}. With arguments it behaves exactly like the JMH command line. Without
+ * arguments it runs the full plan: every suite once, then the in-memory store suites at 1 to 64 threads, each
+ * run writing its own JSON result file under {@code target/}.
+ */
+public final class BenchmarkRunner {
+
+    private static final String IN_MEMORY_SUITES = "InMemoryIdempotencyStore.*Benchmark";
+    private static final int[] IN_MEMORY_THREADS = {1, 4, 16, 64};
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            Main.main(args);
+            return;
+        }
+
+        new Runner(options("target/jmh-result.json")
+                .include("com\\.arash\\.ariani\\.idempotency\\..*Benchmark")
+                .exclude(IN_MEMORY_SUITES)
+                .build()).run();
+
+        for (int threads : IN_MEMORY_THREADS) {
+            new Runner(options("target/jmh-result-in-memory-" + threads + "-threads.json")
+                    .include(IN_MEMORY_SUITES)
+                    .threads(threads)
+                    .build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder options(String resultFile) {
+        return new OptionsBuilder()
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile);
+    }
+}
@@ -0,0 +1,75 @@
+package com.arash.ariani.idempotency.benchmarks;
+
+import com.arash.ariani.idempotency.fingerprint.FingerprintAlgorithm;
+import com.arash.ariani.idempotency.fingerprint.Fingerprinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Response hashing for {@code hashResponse}/{@code hashRequest}. {@code serializeThenDigest} is the approach the
+ * aspect used before fingerprints were streamed: serialize to a byte array, then digest it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class FingerprintBenchmark {
+
+    public record LineItem(String sku, int quantity, BigDecimal price) {
+    }
+
+    public record Order(String id, String customer, List<LineItem> items) {
+    }
+
+    @Param({"1", "500"})
+    public int lineItems;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Fingerprinter sha256;
+    private Fingerprinter murmur3;
+    private Order order;
+
+    @Setup
+    public void setUp() {
+        sha256 = new Fingerprinter(objectMapper, FingerprintAlgorithm.SHA_256);
+        murmur3 = new Fingerprinter(objectMapper, FingerprintAlgorithm.MURMUR3_128);
+        order = new Order("order-1", "customer-42", IntStream.range(0, lineItems)
+                .mapToObj(i -> new LineItem("sku-" + i, i % 7 + 1, BigDecimal.valueOf(i * 3 + 0.99)))
+                .toList());
+    }
+
+    @Benchmark
+    public String streamingSha256() {
+        return sha256.fingerprint(order);
+    }
+
+    @Benchmark
+    public String streamingMurmur3() {
+        return murmur3.fingerprint(order);
+    }
+
+    @Benchmark
+    public byte[] serializeThenDigest() throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(objectMapper.writeValueAsBytes(order));
+    }
+}
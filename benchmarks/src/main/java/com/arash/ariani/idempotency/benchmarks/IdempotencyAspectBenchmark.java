@@ -0,0 +1,130 @@
+package com.arash.ariani.idempotency.benchmarks;
+
+import com.arash.ariani.idempotency.annotation.Idempotent;
+import com.arash.ariani.idempotency.aspect.IdempotencyAspect;
+import com.arash.ariani.idempotency.config.IdempotencyProperties;
+import com.arash.ariani.idempotency.fingerprint.FingerprintAlgorithm;
+import com.arash.ariani.idempotency.fingerprint.Fingerprinter;
+import com.arash.ariani.idempotency.store.InMemoryIdempotencyStore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The full {@code @Idempotent} advice through a Spring AOP proxy, backed by the in-memory store. {@code keyMode}
+ * compares SpEL key resolution against reading the key from a request header; {@code direct} calls the target
+ * without the proxy as the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class IdempotencyAspectBenchmark {
+
+    public record TransferRequest(String txId, long amount) {
+    }
+
+    public static class TransferService {
+
+        @Idempotent(key = "#request.txId", ttl = "10m")
+        public String transferBySpel(TransferRequest request) {
+            return "done-" + request.txId();
+        }
+
+        @Idempotent(keyHeader = "Idempotency-Key", ttl = "10m")
+        public String transferByHeader(TransferRequest request) {
+            return "done-" + request.txId();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private final MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        private long sequence;
+
+        @Setup(Level.Trial)
+        public void bindRequest() {
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(httpRequest));
+        }
+
+        @TearDown(Level.Trial)
+        public void unbindRequest() {
+            RequestContextHolder.resetRequestAttributes();
+        }
+
+        TransferRequest next(boolean replay) {
+            String txId = replay ? "tx-replayed" : Thread.currentThread().getId() + "-" + sequence++;
+            httpRequest.removeHeader("Idempotency-Key");
+            httpRequest.addHeader("Idempotency-Key", txId);
+            return new TransferRequest(txId, 100);
+        }
+    }
+
+    @Param({"spel", "header"})
+    public String keyMode;
+
+    @Param({"replay", "first-call"})
+    public String scenario;
+
+    private GenericApplicationContext context;
+    private InMemoryIdempotencyStore store;
+    private TransferService target;
+    private TransferService proxy;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new GenericApplicationContext();
+        context.refresh();
+        store = new InMemoryIdempotencyStore();
+        store.save("GLOBAL:tx-replayed", "done-tx-replayed", Duration.ofHours(1));
+        IdempotencyAspect aspect = new IdempotencyAspect(context, store,
+                new Fingerprinter(new ObjectMapper(), FingerprintAlgorithm.SHA_256), new IdempotencyProperties());
+
+        target = new TransferService();
+        AspectJProxyFactory factory = new AspectJProxyFactory(target);
+        factory.setProxyTargetClass(true);
+        factory.addAspect(aspect);
+        proxy = factory.getProxy();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        context.close();
+    }
+
+    @Benchmark
+    public String advised(Caller caller) {
+        TransferRequest request = caller.next("replay".equals(scenario));
+        return "spel".equals(keyMode) ? proxy.transferBySpel(request) : proxy.transferByHeader(request);
+    }
+
+    @Benchmark
+    public String direct(Caller caller) {
+        TransferRequest request = caller.next("replay".equals(scenario));
+        return "spel".equals(keyMode) ? target.transferBySpel(request) : target.transferByHeader(request);
+    }
+}
@@ -0,0 +1,87 @@
+package com.arash.ariani.idempotency.benchmarks;
+
+import com.arash.ariani.idempotency.store.InMemoryIdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded hit throughput of {@link InMemoryIdempotencyStore#lookup}. {@code computeReadPath} replays the
+ * read path the store used before it became lock-free ({@code ConcurrentHashMap.compute} plus
+ * {@code System.currentTimeMillis()} per read) as the "before" number.
+ * <p>
+ * {@code hotKeys = 1} makes every thread hit the same key, which is where bin locking hurt the most.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class InMemoryIdempotencyStoreBenchmark {
+
+    private record LegacyEntry(Object value, long expireAtMillis) {
+    }
+
+    @Param({"1", "1024"})
+    public int hotKeys;
+
+    private InMemoryIdempotencyStore store;
+    private ConcurrentHashMap<String, LegacyEntry> legacy;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new InMemoryIdempotencyStore();
+        legacy = new ConcurrentHashMap<>();
+        keys = new String[hotKeys];
+        for (int i = 0; i < hotKeys; i++) {
+            keys[i] = "GLOBAL:key-" + i;
+            store.save(keys[i], "response-" + i, Duration.ofHours(1));
+            legacy.put(keys[i], new LegacyEntry("response-" + i, System.currentTimeMillis() + Duration.ofHours(1).toMillis()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public LookupResult lockFreeReadPath() {
+        return store.lookup(nextKey());
+    }
+
+    @Benchmark
+    public Object computeReadPath() {
+        LegacyEntry found = legacy.compute(nextKey(), (k, entry) -> {
+            if (entry == null || System.currentTimeMillis() > entry.expireAtMillis()) {
+                return null;
+            }
+            return entry;
+        });
+        return found != null ? found.value() : null;
+    }
+
+    private String nextKey() {
+        return hotKeys == 1 ? keys[0] : keys[ThreadLocalRandom.current().nextInt(hotKeys)];
+    }
+}
@@ -0,0 +1,89 @@
+package com.arash.ariani.idempotency.benchmarks;
+
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.InMemoryIdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The store calls the aspect makes per request (lookup, then claim and save on a miss) at a given share of
+ * replayed keys. New keys keep arriving, so at low hit ratios the run also exercises eviction of the bounded store.
+ * {@link BenchmarkRunner} repeats this suite at 1 to 64 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class InMemoryIdempotencyStoreWorkloadBenchmark {
+
+    private static final int REPLAYED_KEYS = 4096;
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    @State(Scope.Thread)
+    public static class KeySource {
+        private final String prefix = "GLOBAL:new-" + Thread.currentThread().getId() + "-";
+        private long sequence;
+
+        String freshKey() {
+            return prefix + sequence++;
+        }
+    }
+
+    @Param({"0.0", "0.5", "0.9", "1.0"})
+    public double hitRatio;
+
+    private InMemoryIdempotencyStore store;
+    private String[] replayedKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new InMemoryIdempotencyStore();
+        replayedKeys = new String[REPLAYED_KEYS];
+        for (int i = 0; i < REPLAYED_KEYS; i++) {
+            replayedKeys[i] = "GLOBAL:replayed-" + i;
+            store.save(replayedKeys[i], "response-" + i, Duration.ofHours(1));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public Object idempotencyCheck(KeySource keys) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String key = random.nextDouble() < hitRatio
+                ? replayedKeys[random.nextInt(REPLAYED_KEYS)]
+                : keys.freshKey();
+        LookupResult cached = store.lookup(key);
+        if (cached.isCompleted()) {
+            return cached.response();
+        }
+        AcquireResult claim = store.tryAcquire(key, Duration.ofSeconds(30));
+        if (claim.status() == AcquireResult.Status.NEW) {
+            store.save(key, "response", TTL);
+        }
+        return claim;
+    }
+}
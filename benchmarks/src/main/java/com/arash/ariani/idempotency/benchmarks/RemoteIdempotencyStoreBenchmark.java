@@ -0,0 +1,121 @@
+package com.arash.ariani.idempotency.benchmarks;
+
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import com.github.fppt.jedismock.RedisServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JPA store against embedded H2 and the Redis store against an in-process Redis-protocol server (jedis-mock),
+ * both wired by the starter's auto-configuration. Absolute numbers are dominated by the stand-in backends; compare
+ * runs of the same backend.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RemoteIdempotencyStoreBenchmark {
+
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    @SpringBootConfiguration
+    @EnableAutoConfiguration
+    static class BenchmarkApplication {
+    }
+
+    @State(Scope.Thread)
+    public static class KeySource {
+        private final String prefix = "GLOBAL:new-" + Thread.currentThread().getId() + "-";
+        private long sequence;
+
+        String freshKey() {
+            return prefix + sequence++;
+        }
+    }
+
+    @Param({"jpa", "redis", "redis-scripted"})
+    public String backend;
+
+    private RedisServer redisServer;
+    private ConfigurableApplicationContext context;
+    private IdempotencyStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Map<String, Object> properties = switch (backend) {
+            case "jpa" -> Map.of(
+                    "idempotency.store", "jpa",
+                    "spring.datasource.url", "jdbc:h2:mem:idempotency;NON_KEYWORDS=KEY;DB_CLOSE_DELAY=-1",
+                    "spring.jpa.hibernate.ddl-auto", "create-drop");
+            case "redis", "redis-scripted" -> {
+                redisServer = RedisServer.newRedisServer().start();
+                yield Map.of(
+                        "idempotency.store", "redis",
+                        "idempotency.redis.scripted", backend.equals("redis-scripted"),
+                        "spring.data.redis.host", redisServer.getHost(),
+                        "spring.data.redis.port", redisServer.getBindPort());
+            }
+            default -> throw new IllegalArgumentException("Unknown backend " + backend);
+        };
+        context = new SpringApplicationBuilder(BenchmarkApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties(properties)
+                .properties("spring.main.banner-mode=off", "logging.level.root=WARN", "spring.sql.init.mode=never")
+                .run();
+        store = context.getBean(IdempotencyStore.class);
+        store.save("GLOBAL:replayed", "response", TTL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    @Benchmark
+    public LookupResult lookupHit() {
+        return store.lookup("GLOBAL:replayed");
+    }
+
+    @Benchmark
+    public LookupResult lookupMiss(KeySource keys) {
+        return store.lookup(keys.freshKey());
+    }
+
+    @Benchmark
+    public AcquireResult claimAndSave(KeySource keys) {
+        String key = keys.freshKey();
+        AcquireResult claim = store.tryAcquire(key, Duration.ofSeconds(30));
+        store.save(key, "response", TTL);
+        return claim;
+    }
+}
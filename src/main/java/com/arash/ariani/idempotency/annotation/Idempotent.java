@@ -1,6 +1,7 @@
 package com.arash.ariani.idempotency.annotation;
 
 import com.arash.ariani.idempotency.conflict.ConflictHandling;
+import com.arash.ariani.idempotency.conflict.InProgressHandling;
 import com.arash.ariani.idempotency.scope.DefaultScopeResolver;
 import com.arash.ariani.idempotency.scope.IdempotencyScopeResolver;
 
@@ -20,9 +21,36 @@ public @interface Idempotent {
 
     ConflictHandling onConflict() default ConflictHandling.THROW_409;
 
+    /**
+     * How long a running invocation holds its claim on the key before another request may take it over.
+     */
+    String leaseTtl() default "30s";
+
+    InProgressHandling onInProgress() default InProgressHandling.THROW_409;
+
     Class<? extends IdempotencyScopeResolver> scopeResolver() default DefaultScopeResolver.class;
 
     boolean hashResponse() default false;
 
-    int replayStatus() default 200;
+    /**
+     * Fingerprints the request payload (the {@code @RequestBody} argument, or all non-servlet arguments) on first
+     * execution. A replay with the same key but a different payload goes through {@link #onConflict()} without
+     * running the method again. Takes precedence over {@link #hashResponse()}.
+     */
+    boolean hashRequest() default false;
+
+    /**
+     * HTTP status of replayed responses from controller methods. {@code 0} keeps the status of the first response
+     * when it was captured (see {@code idempotency.capture.enabled}), and leaves the status alone otherwise.
+     */
+    int replayStatus() default 0;
+
+    /**
+     * Name of a {@code List} or {@code Collection} parameter holding the items of a bulk request, each with its own
+     * key. {@link #key()} then yields one key per item, in item order, e.g. {@code #orders.![id]}. Only the items
+     * whose key has not been seen reach the method, as a list in place of the parameter, and it returns one result
+     * per item it got. These are stored per key and merged with the stored results of the other items, in item
+     * order. With {@link #hashRequest()}, each item is fingerprinted on its own.
+     */
+    String batch() default "";
 }
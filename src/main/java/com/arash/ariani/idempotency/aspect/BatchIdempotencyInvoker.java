@@ -0,0 +1,252 @@
+package com.arash.ariani.idempotency.aspect;
+
+import com.arash.ariani.idempotency.annotation.Idempotent;
+import com.arash.ariani.idempotency.config.IdempotencyProperties;
+import com.arash.ariani.idempotency.conflict.IdempotencyInProgressException;
+import com.arash.ariani.idempotency.fingerprint.Fingerprinter;
+import com.arash.ariani.idempotency.metrics.IdempotencyMetrics;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.springframework.http.HttpStatus;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link IdempotencyAspect} flow for {@link Idempotent#batch()} methods: every item has its own key, and all
+ * keys are read with one {@link IdempotencyStore#lookupAll}, claimed with one {@link IdempotencyStore#tryAcquireAll}
+ * and stored with one {@link IdempotencyStore#saveAll}. The method runs once, for the items whose key was claimed.
+ * Items with a stored result are replayed, and items repeating the key of an earlier item share its result.
+ */
+final class BatchIdempotencyInvoker {
+
+    private static final String CONFLICT = "Conflict: different request payload for same idempotency key";
+
+    private final IdempotencyAspect aspect;
+    private final IdempotencyStore store;
+    private final Fingerprinter fingerprinter;
+    private final IdempotencyProperties properties;
+
+    BatchIdempotencyInvoker(IdempotencyAspect aspect, IdempotencyStore store, Fingerprinter fingerprinter,
+                            IdempotencyProperties properties) {
+        this.aspect = aspect;
+        this.store = store;
+        this.fingerprinter = fingerprinter;
+        this.properties = properties;
+    }
+
+    Object invoke(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata) throws Throwable {
+        Object[] args = joinPoint.getArgs();
+        if (!(args[metadata.batchArg()] instanceof Collection<?> batch)) {
+            throw new IllegalArgumentException("Batch of " + metadata.name() + " is null");
+        }
+        if (batch.isEmpty()) {
+            return joinPoint.proceed();
+        }
+        List<Object> items = new ArrayList<>(batch);
+        List<String> keys = resolveKeys(joinPoint, metadata, items.size());
+        // Fingerprinted before the method gets a chance to mutate the items
+        String[] fingerprints = metadata.idempotent().hashRequest() ? fingerprint(items) : null;
+
+        // Every key once, at the position of its first item
+        Map<String, Integer> firstItems = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            firstItems.putIfAbsent(keys.get(i), i);
+        }
+        Map<String, AcquireResult> states = claim(metadata, firstItems.keySet());
+
+        Object[] results = new Object[items.size()];
+        Map<String, Object> created;
+        try {
+            handleInProgress(metadata, states);
+            replayStored(metadata, items, keys, fingerprints, states, results);
+            created = proceed(joinPoint, metadata, args, items, firstItems, states);
+        } catch (Throwable t) {
+            states.forEach((key, state) -> {
+                if (state.status() == AcquireResult.Status.NEW) {
+                    store.release(key, state.token());
+                }
+            });
+            throw t;
+        }
+
+        if (!created.isEmpty()) {
+            Map<String, String> createdFingerprints = new HashMap<>();
+            if (fingerprints != null) {
+                created.keySet().forEach(key -> createdFingerprints.put(key, fingerprints[firstItems.get(key)]));
+            }
+            store.saveAll(created, createdFingerprints, metadata.ttl());
+        }
+        List<Object> merged = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            String key = keys.get(i);
+            if (!created.containsKey(key)) {
+                merged.add(results[i]);
+                continue;
+            }
+            Object result = created.get(key);
+            int first = firstItems.get(key);
+            if (i == first) {
+                aspect.record(metadata, IdempotencyMetrics.Outcome.MISS);
+            } else if (fingerprints != null && !fingerprints[first].equals(fingerprints[i])) {
+                result = aspect.onConflict(metadata, key, result, items.get(i), CONFLICT);
+            } else {
+                aspect.record(metadata, IdempotencyMetrics.Outcome.HIT);
+            }
+            merged.add(result);
+        }
+        return merged;
+    }
+
+    /**
+     * The full key of every item, in item order.
+     */
+    private List<String> resolveKeys(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata, int items) {
+        Collection<?> rawKeys = aspect.evaluateKeys(metadata, joinPoint);
+        if (rawKeys == null || rawKeys.size() != items) {
+            throw new IllegalArgumentException("Key expression of " + metadata.name() + " yielded "
+                    + (rawKeys == null ? "no keys" : rawKeys.size() + " keys") + " for " + items + " items");
+        }
+        String scope = metadata.scopeResolver().resolveScope(joinPoint);
+        List<String> keys = new ArrayList<>(items);
+        for (Object rawKey : rawKeys) {
+            keys.add(scope + ":" + IdempotencyAspect.requireKey(rawKey != null ? rawKey.toString() : null));
+        }
+        return keys;
+    }
+
+    private String[] fingerprint(List<Object> items) {
+        String[] fingerprints = new String[items.size()];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = fingerprinter.fingerprint(items.get(i));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Stored results are answered by the one read; only the misses go on to be claimed.
+     */
+    private Map<String, AcquireResult> claim(IdempotentMethodMetadata metadata, Collection<String> keys) {
+        Map<String, AcquireResult> states = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        store.lookupAll(keys).forEach((key, found) -> {
+            switch (found.status()) {
+                case COMPLETED -> states.put(key, AcquireResult.completed(found.response(), found.fingerprint()));
+                case IN_PROGRESS -> states.put(key, AcquireResult.inProgress());
+                case MISS -> misses.add(key);
+            }
+        });
+        if (!misses.isEmpty()) {
+            states.putAll(store.tryAcquireAll(misses, metadata.leaseTtl()));
+        }
+        return states;
+    }
+
+    /**
+     * Keys another request is still running follow {@link Idempotent#onInProgress()} together: the whole batch is
+     * rejected, or waits until all of them are done.
+     */
+    private void handleInProgress(IdempotentMethodMetadata metadata, Map<String, AcquireResult> states) {
+        List<String> running = inProgress(states);
+        if (running.isEmpty()) {
+            return;
+        }
+        running.forEach(key -> aspect.record(metadata, IdempotencyMetrics.Outcome.IN_PROGRESS));
+        switch (metadata.idempotent().onInProgress()) {
+            case THROW_409 -> throw new IdempotencyInProgressException(HttpStatus.CONFLICT, null);
+            case THROW_425 -> throw new IdempotencyInProgressException(HttpStatus.TOO_EARLY,
+                    properties.getInProgress().getRetryAfter());
+            case WAIT -> awaitCompletion(running, states, metadata.leaseTtl());
+        }
+    }
+
+    /**
+     * Polls until the running keys are done. Re-claiming them on every poll means this batch takes over the ones
+     * whose request failed and released its claim.
+     */
+    private void awaitCompletion(List<String> running, Map<String, AcquireResult> states, Duration leaseTtl) {
+        IdempotencyProperties.InProgress settings = properties.getInProgress();
+        long deadline = System.nanoTime() + settings.getWaitTimeout().toNanos();
+        while (!running.isEmpty() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(settings.getPollInterval().toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            states.putAll(store.tryAcquireAll(running, leaseTtl));
+            running = inProgress(states);
+        }
+        if (!running.isEmpty()) {
+            throw new IdempotencyInProgressException(HttpStatus.TOO_EARLY, settings.getRetryAfter());
+        }
+    }
+
+    private void replayStored(IdempotentMethodMetadata metadata, List<Object> items, List<String> keys,
+                              String[] fingerprints, Map<String, AcquireResult> states, Object[] results) {
+        for (int i = 0; i < items.size(); i++) {
+            String key = keys.get(i);
+            AcquireResult state = states.get(key);
+            if (state.status() != AcquireResult.Status.COMPLETED) {
+                continue;
+            }
+            // Entries saved before hashing was enabled are trusted
+            if (fingerprints != null && state.fingerprint() != null && !state.fingerprint().equals(fingerprints[i])) {
+                results[i] = aspect.onConflict(metadata, key, state.response(), items.get(i), CONFLICT);
+            } else {
+                aspect.record(metadata, IdempotencyMetrics.Outcome.HIT);
+                results[i] = state.response();
+            }
+        }
+    }
+
+    /**
+     * Runs the method for the first item of every claimed key.
+     *
+     * @return the result of every claimed key, in item order
+     */
+    private Map<String, Object> proceed(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata,
+                                        Object[] args, List<Object> items, Map<String, Integer> firstItems,
+                                        Map<String, AcquireResult> states) throws Throwable {
+        List<String> claimed = new ArrayList<>();
+        List<Object> newItems = new ArrayList<>();
+        firstItems.forEach((key, first) -> {
+            if (states.get(key).status() == AcquireResult.Status.NEW) {
+                claimed.add(key);
+                newItems.add(items.get(first));
+            }
+        });
+        Map<String, Object> created = new LinkedHashMap<>();
+        if (claimed.isEmpty()) {
+            return created;
+        }
+        Object[] newArgs = args.clone();
+        newArgs[metadata.batchArg()] = newItems;
+        Object returned = joinPoint.proceed(newArgs);
+        if (!(returned instanceof Collection<?> returnedItems) || returnedItems.size() != newItems.size()) {
+            throw new IllegalStateException(metadata.name() + " returned "
+                    + (returned instanceof Collection<?> list ? list.size() + " results" : "no list")
+                    + " for " + newItems.size() + " items");
+        }
+        Iterator<?> results = returnedItems.iterator();
+        claimed.forEach(key -> created.put(key, results.next()));
+        return created;
+    }
+
+    private static List<String> inProgress(Map<String, AcquireResult> states) {
+        List<String> running = new ArrayList<>();
+        states.forEach((key, state) -> {
+            if (state.status() == AcquireResult.Status.IN_PROGRESS) {
+                running.add(key);
+            }
+        });
+        return running;
+    }
+}
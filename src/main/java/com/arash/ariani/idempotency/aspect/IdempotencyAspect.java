@@ -1,157 +1,683 @@
 package com.arash.ariani.idempotency.aspect;
 
 import com.arash.ariani.idempotency.annotation.Idempotent;
+import com.arash.ariani.idempotency.config.IdempotencyProperties;
+import com.arash.ariani.idempotency.conflict.ConflictHandling;
 import com.arash.ariani.idempotency.conflict.IdempotencyConflictResolver;
+import com.arash.ariani.idempotency.conflict.IdempotencyInProgressException;
+import com.arash.ariani.idempotency.fingerprint.Fingerprinter;
+import com.arash.ariani.idempotency.metrics.IdempotencyMetrics;
 import com.arash.ariani.idempotency.scope.IdempotencyScopeResolver;
+import com.arash.ariani.idempotency.store.AcquireResult;
 import com.arash.ariani.idempotency.store.IdempotencyStore;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.arash.ariani.idempotency.store.IdempotencyStoreDecorator;
+import com.arash.ariani.idempotency.store.LookupResult;
+import com.arash.ariani.idempotency.store.ReactiveIdempotencyStore;
+import com.arash.ariani.idempotency.store.ReactiveIdempotencyStoreAdapter;
+import com.arash.ariani.idempotency.web.CapturedResponse;
+import com.arash.ariani.idempotency.web.ResponseCapture;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.reflect.MethodSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.AopProxyUtils;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.config.SingletonBeanRegistry;
 import org.springframework.context.ApplicationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.expression.EvaluationContext;
+import org.springframework.expression.Expression;
 import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.ParseException;
+import org.springframework.expression.spel.SpelNode;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.ast.VariableReference;
+import org.springframework.expression.spel.standard.SpelExpression;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.expression.spel.support.StandardEvaluationContext;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.ClassUtils;
+import org.springframework.validation.Errors;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.security.Principal;
 import java.time.Duration;
-import java.util.Arrays;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
+/**
+ * Makes {@link Idempotent} methods idempotent. Once all singletons exist, every bean is scanned for such methods,
+ * which are validated and prepared up front, and the store is warmed up, see {@code idempotency.startup}.
+ */
 @Aspect
 @Component
-public class IdempotencyAspect {
-    private final ExpressionParser parser = new SpelExpressionParser();
-    private final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+public class IdempotencyAspect implements SmartInitializingSingleton, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyAspect.class);
+    private static final ParameterNameDiscoverer PARAMETER_NAMES = new DefaultParameterNameDiscoverer();
+    private static final Pattern SIMPLE_DURATION = Pattern.compile("^(\\d+)([smhd])$");
+    private static final List<Class<?>> NON_PAYLOAD_TYPES = nonPayloadTypes();
+
+    private final ExpressionParser parser = new SpelExpressionParser(
+            new SpelParserConfiguration(SpelCompilerMode.MIXED, IdempotencyAspect.class.getClassLoader()));
+    private final Map<Method, IdempotentMethodMetadata> metadataCache = new ConcurrentHashMap<>();
     private final ApplicationContext context;
     private final IdempotencyStore idempotencyStore;
-    private final ObjectMapper objectMapper;
+    private final Fingerprinter fingerprinter;
+    private final IdempotencyProperties properties;
+    private final IdempotencyMetrics metrics;
+    private final ObservationRegistry observationRegistry;
+    private final ReactiveIdempotencyInvoker reactiveInvoker;
+    private final BatchIdempotencyInvoker batchInvoker;
+
+    public IdempotencyAspect(ApplicationContext context, IdempotencyStore idempotencyStore, Fingerprinter fingerprinter,
+                             IdempotencyProperties properties) {
+        this(context, idempotencyStore, fingerprinter, properties, IdempotencyMetrics.NOOP, ObservationRegistry.NOOP);
+    }
+
+    public IdempotencyAspect(ApplicationContext context, IdempotencyStore idempotencyStore, Fingerprinter fingerprinter,
+                             IdempotencyProperties properties, IdempotencyMetrics metrics,
+                             ObservationRegistry observationRegistry) {
+        this(context, idempotencyStore, fingerprinter, properties, metrics, observationRegistry,
+                new ReactiveIdempotencyStoreAdapter(idempotencyStore));
+    }
 
-    public IdempotencyAspect(ApplicationContext context, IdempotencyStore idempotencyStore, ObjectMapper objectMapper) throws NoSuchAlgorithmException {
+    /**
+     * @param reactiveStore store used for methods returning {@code Mono} or {@code Flux}
+     */
+    public IdempotencyAspect(ApplicationContext context, IdempotencyStore idempotencyStore, Fingerprinter fingerprinter,
+                             IdempotencyProperties properties, IdempotencyMetrics metrics,
+                             ObservationRegistry observationRegistry, ReactiveIdempotencyStore reactiveStore) {
         this.context = context;
         this.idempotencyStore = idempotencyStore;
-        this.objectMapper = objectMapper;
+        this.fingerprinter = fingerprinter;
+        this.properties = properties;
+        this.metrics = metrics;
+        this.observationRegistry = observationRegistry;
+        this.reactiveInvoker = new ReactiveIdempotencyInvoker(this, idempotencyStore, reactiveStore, fingerprinter,
+                properties);
+        this.batchInvoker = new BatchIdempotencyInvoker(this, idempotencyStore, fingerprinter, properties);
+    }
+
+    /**
+     * Prepares every {@link Idempotent} method of the context's beans and warms up the store, so that neither is
+     * left to the first requests. Methods of beans whose type is unknown before they are created, e.g. behind some
+     * factory beans, are still prepared on their first call.
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        List<String> problems = new ArrayList<>();
+        int prepared = 0;
+        for (String beanName : context.getBeanDefinitionNames()) {
+            Class<?> type = beanType(beanName);
+            if (type == null) {
+                continue;
+            }
+            for (Map.Entry<Method, Idempotent> entry : idempotentMethods(type).entrySet()) {
+                Method method = AopUtils.getMostSpecificMethod(entry.getKey(), ClassUtils.getUserClass(type));
+                try {
+                    metadataCache.computeIfAbsent(method, m -> buildMetadata(m, entry.getValue(),
+                            PARAMETER_NAMES.getParameterNames(m)));
+                    prepared++;
+                } catch (RuntimeException e) {
+                    problems.add(method.getDeclaringClass().getName() + "." + method.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        IdempotencyProperties.Startup startup = properties.getStartup();
+        if (!problems.isEmpty()) {
+            String message = "Invalid @Idempotent methods:\n  " + String.join("\n  ", problems);
+            if (startup.isFailFast()) {
+                throw new IllegalStateException(message);
+            }
+            log.warn("{}\nTheir calls will fail until they are fixed", message);
+        }
+        log.debug("Prepared {} @Idempotent methods", prepared);
+        if (startup.isWarmUp()) {
+            try {
+                idempotencyStore.warmUp();
+            } catch (RuntimeException e) {
+                // The store may well come up after the application, the first requests then pay for connecting
+                log.warn("Could not warm up the idempotency store", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the store with the decorators stacked on it, whose executors and local stores are not beans.
+     */
+    @Override
+    public void destroy() {
+        IdempotencyStoreDecorator.close(idempotencyStore);
+    }
+
+    /**
+     * The class behind a bean: the target of an instantiated proxy, as JDK proxies do not expose it in their type,
+     * otherwise the type the context predicts.
+     */
+    private Class<?> beanType(String beanName) {
+        if (context.getAutowireCapableBeanFactory() instanceof SingletonBeanRegistry singletons) {
+            Object bean = singletons.getSingleton(beanName);
+            if (bean != null && !(bean instanceof FactoryBean<?>)) {
+                return AopProxyUtils.ultimateTargetClass(bean);
+            }
+        }
+        return context.getType(beanName, false);
+    }
+
+    /**
+     * The {@link Idempotent} methods of a bean type, as the aspect sees them when they are called.
+     */
+    static Map<Method, Idempotent> idempotentMethods(Class<?> type) {
+        Class<?> userClass = ClassUtils.getUserClass(type);
+        if (!AnnotationUtils.isCandidateClass(userClass, Idempotent.class)) {
+            return Map.of();
+        }
+        return MethodIntrospector.selectMethods(userClass,
+                (MethodIntrospector.MetadataLookup<Idempotent>) method -> method.getAnnotation(Idempotent.class));
     }
 
     @Around("@annotation(idempotent)")
     public Object around(ProceedingJoinPoint joinPoint, Idempotent idempotent) throws Throwable {
+        IdempotentMethodMetadata metadata = getMetadata(joinPoint, idempotent);
+        if (metadata.returnKind() != IdempotentMethodMetadata.ReturnKind.VALUE) {
+            // An observation here would stop before the publisher is even subscribed, or the future completed
+            return reactiveInvoker.invoke(joinPoint, metadata);
+        }
+        if (observationRegistry.isNoop()) {
+            return invoke(joinPoint, metadata);
+        }
+        return Observation.createNotStarted("idempotency", observationRegistry)
+                .contextualName("idempotency " + metadata.name())
+                .lowCardinalityKeyValue("method", metadata.name())
+                .observeChecked(() -> invoke(joinPoint, metadata));
+    }
+
+    private Object invoke(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata) throws Throwable {
+        if (metadata.isBatch()) {
+            return batchInvoker.invoke(joinPoint, metadata);
+        }
+        Idempotent idempotent = metadata.idempotent();
 
-        EvaluationContext evalContext = buildEvaluationContext(joinPoint);
-        String key = resolveKey(idempotent, evalContext);
-        Duration ttl = parseDuration(idempotent.ttl());
+        String key = resolveKey(metadata, joinPoint);
+        Duration ttl = metadata.ttl();
 
-        String scope = resolveScope(idempotent.scopeResolver(), joinPoint);
+        String scope = metadata.scopeResolver().resolveScope(joinPoint);
         String fullKey = scope + ":" + key;
 
-        if (idempotencyStore.exists(fullKey)) {
-            Optional<Object> cached = idempotencyStore.get(fullKey);
-            if (cached.isPresent()) {
-                if (idempotent.hashResponse()) {
-                    Object newResult = joinPoint.proceed();
-                    if (!isSameResponse(cached.get(), newResult)) {
-                        switch (idempotent.onConflict()) {
-                            case THROW_409 ->
-                                    throw new ResponseStatusException(HttpStatus.CONFLICT, "Conflict: different result for same idempotency key");
-                            case CUSTOM -> handleCustomConflict(fullKey, cached.get(), newResult);
-                            case IGNORE -> {
-                                return cached.get();
-                            }
-                        }
-                    }
-                }
-                return cached.get();
-            }
+        // Replays are answered by this single read; only misses go on to claim the key
+        LookupResult cached = idempotencyStore.lookup(fullKey);
+        if (cached.isCompleted()) {
+            return replay(joinPoint, metadata, fullKey, cached.response(), cached.fingerprint());
+        }
+
+        AcquireResult claim = cached.status() == LookupResult.Status.IN_PROGRESS
+                ? AcquireResult.inProgress()
+                : idempotencyStore.tryAcquire(fullKey, metadata.leaseTtl());
+        if (claim.status() == AcquireResult.Status.IN_PROGRESS) {
+            claim = handleInProgress(fullKey, metadata);
+        }
+        if (claim.status() == AcquireResult.Status.COMPLETED) {
+            return replay(joinPoint, metadata, fullKey, claim.response(), claim.fingerprint());
         }
 
-        Object result = joinPoint.proceed();
+        String token = claim.token();
+        // Only set when the filter buffers this request, other calls store the return value as usual
+        ResponseCapture capture = metadata.capturesResponse() ? ResponseCapture.current() : null;
+        Object result;
+        String fingerprint;
+        try {
+            // Fingerprint the request before the method gets a chance to mutate its arguments
+            fingerprint = idempotent.hashRequest() ? fingerprintRequest(metadata, joinPoint) : null;
+            result = joinPoint.proceed();
+        } catch (Throwable t) {
+            idempotencyStore.release(fullKey, token);
+            throw t;
+        }
 
-        idempotencyStore.save(fullKey, result, ttl);
+        if (capture != null) {
+            String requestFingerprint = fingerprint;
+            capture.capture(response -> idempotencyStore.save(fullKey, response, requestFingerprint, ttl),
+                    () -> idempotencyStore.release(fullKey, token));
+            record(metadata, IdempotencyMetrics.Outcome.MISS);
+            return result;
+        }
+        if (fingerprint == null && idempotent.hashResponse()) {
+            fingerprint = fingerprinter.fingerprint(result);
+        }
+        idempotencyStore.save(fullKey, result, fingerprint, ttl);
+        record(metadata, IdempotencyMetrics.Outcome.MISS);
         return result;
     }
 
-    private String resolveScope(Class<? extends IdempotencyScopeResolver> resolverClass, ProceedingJoinPoint joinPoint) {
-        return context.getBean(resolverClass).resolveScope(joinPoint);
+    private Object replay(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata, String fullKey,
+                          Object cached, String storedFingerprint) throws Throwable {
+        Idempotent idempotent = metadata.idempotent();
+        if (idempotent.hashRequest()) {
+            // Compared without re-running the method; entries saved before hashing was enabled are trusted
+            if (storedFingerprint != null && !storedFingerprint.equals(fingerprintRequest(metadata, joinPoint))) {
+                return respond(metadata, onConflict(metadata, fullKey, cached, requestPayload(metadata, joinPoint),
+                        "Conflict: different request payload for same idempotency key"));
+            }
+        } else if (idempotent.hashResponse()) {
+            Object newResult = joinPoint.proceed();
+            // Entries saved without a fingerprint (e.g. by custom stores) are hashed on the fly
+            String cachedFingerprint = storedFingerprint != null ? storedFingerprint : fingerprinter.fingerprint(cached);
+            if (!cachedFingerprint.equals(fingerprinter.fingerprint(newResult))) {
+                return respond(metadata, onConflict(metadata, fullKey, cached, newResult,
+                        "Conflict: different result for same idempotency key"));
+            }
+        }
+        record(metadata, IdempotencyMetrics.Outcome.HIT);
+        return respond(metadata, cached);
     }
 
-    private Duration parseDuration(String raw) {
-        try {
-            if (raw.matches("^\\d+[smhd]$")) {
-                long amount = Long.parseLong(raw.replaceAll("[^0-9]", ""));
-                char unit = raw.charAt(raw.length() - 1);
-                return switch (unit) {
-                    case 's' -> Duration.ofSeconds(amount);
-                    case 'm' -> Duration.ofMinutes(amount);
-                    case 'h' -> Duration.ofHours(amount);
-                    case 'd' -> Duration.ofDays(amount);
-                    default -> Duration.ofMinutes(15);
-                };
+    /**
+     * Turns a stored response into the method's return value. Captured HTTP responses are written out right away,
+     * and the method returns {@code null} so that Spring MVC has nothing left to write.
+     */
+    private Object respond(IdempotentMethodMetadata metadata, Object cached) throws IOException {
+        int replayStatus = metadata.idempotent().replayStatus();
+        if (cached instanceof CapturedResponse captured) {
+            int status = replayStatus != 0 ? replayStatus : captured.status();
+            ResponseCapture capture = ResponseCapture.current();
+            if (capture != null) {
+                capture.replay(captured, status);
             } else {
-                return Duration.parse("PT" + raw.toUpperCase());
+                HttpServletResponse response = currentResponse();
+                if (response == null) {
+                    throw new IllegalStateException("Captured HTTP response of " + metadata.name()
+                            + " can only be replayed to an HTTP request");
+                }
+                captured.writeTo(response, status);
+            }
+            return null;
+        }
+        if (replayStatus != 0 && metadata.handler()) {
+            if (cached instanceof ResponseEntity<?> entity) {
+                return new ResponseEntity<>(entity.getBody(), entity.getHeaders(), replayStatus);
+            }
+            HttpServletResponse response = currentResponse();
+            if (response != null) {
+                response.setStatus(replayStatus);
+            }
+        }
+        return cached;
+    }
+
+    Object onConflict(IdempotentMethodMetadata metadata, String fullKey, Object cached, Object newValue,
+                              String reason) {
+        record(metadata, IdempotencyMetrics.Outcome.CONFLICT);
+        switch (metadata.idempotent().onConflict()) {
+            case THROW_409 -> throw new ResponseStatusException(HttpStatus.CONFLICT, reason);
+            case CUSTOM -> handleCustomConflict(metadata, fullKey, cached, newValue);
+            case IGNORE -> {
+            }
+        }
+        return cached;
+    }
+
+    String fingerprintRequest(IdempotentMethodMetadata metadata, ProceedingJoinPoint joinPoint) {
+        return fingerprinter.fingerprint(requestPayload(metadata, joinPoint));
+    }
+
+    Object requestPayload(IdempotentMethodMetadata metadata, ProceedingJoinPoint joinPoint) {
+        Object[] args = joinPoint.getArgs();
+        int[] payloadArgs = metadata.payloadArgs();
+        if (payloadArgs.length == 1) {
+            return args[payloadArgs[0]];
+        }
+        Object[] payload = new Object[payloadArgs.length];
+        for (int i = 0; i < payloadArgs.length; i++) {
+            payload[i] = args[payloadArgs[i]];
+        }
+        return payload;
+    }
+
+    void record(IdempotentMethodMetadata metadata, IdempotencyMetrics.Outcome outcome) {
+        metrics.record(metadata.name(), outcome);
+        Observation observation = observationRegistry.getCurrentObservation();
+        if (observation != null) {
+            observation.lowCardinalityKeyValue("outcome", outcome.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    AcquireResult handleInProgress(String fullKey, IdempotentMethodMetadata metadata) {
+        record(metadata, IdempotencyMetrics.Outcome.IN_PROGRESS);
+        return switch (metadata.idempotent().onInProgress()) {
+            case THROW_409 -> throw new IdempotencyInProgressException(HttpStatus.CONFLICT, null);
+            case THROW_425 -> throw new IdempotencyInProgressException(HttpStatus.TOO_EARLY,
+                    properties.getInProgress().getRetryAfter());
+            case WAIT -> awaitCompletion(fullKey, metadata.leaseTtl());
+        };
+    }
+
+    /**
+     * Polls until the running request finishes. Re-claiming on every poll means a waiter takes over
+     * (and executes) if the first request failed and released its claim.
+     */
+    private AcquireResult awaitCompletion(String fullKey, Duration leaseTtl) {
+        IdempotencyProperties.InProgress settings = properties.getInProgress();
+        long deadline = System.nanoTime() + settings.getWaitTimeout().toNanos();
+        while (System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(settings.getPollInterval().toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            AcquireResult claim = idempotencyStore.tryAcquire(fullKey, leaseTtl);
+            if (claim.status() != AcquireResult.Status.IN_PROGRESS) {
+                return claim;
             }
-        } catch (Exception e) {
-            return Duration.ofMinutes(15);
         }
+        throw new IdempotencyInProgressException(HttpStatus.TOO_EARLY, settings.getRetryAfter());
     }
 
+    private IdempotentMethodMetadata getMetadata(ProceedingJoinPoint joinPoint, Idempotent idempotent) {
+        MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+        // Behind a JDK proxy the signature holds the interface method, while the startup scan saw the class's
+        Object target = joinPoint.getTarget();
+        Method method = target != null
+                ? AopUtils.getMostSpecificMethod(signature.getMethod(), AopProxyUtils.ultimateTargetClass(target))
+                : signature.getMethod();
+        return metadataCache.computeIfAbsent(method, m -> {
+            String[] names = PARAMETER_NAMES.getParameterNames(m);
+            return buildMetadata(m, idempotent, names != null ? names : signature.getParameterNames());
+        });
+    }
 
-    private boolean isSameResponse(Object oldResp, Object newResp) {
+    /**
+     * @throws IllegalArgumentException if the annotation cannot work on this method, e.g. an invalid TTL or key
+     */
+    private IdempotentMethodMetadata buildMetadata(Method method, Idempotent idempotent, String[] parameterNames) {
+        Expression keyExpression = null;
+        String keyHeader = null;
+        if (!idempotent.keyHeader().isBlank()) {
+            keyHeader = idempotent.keyHeader();
+        } else if (!idempotent.key().isBlank()) {
+            keyExpression = parseKey(idempotent.key(), parameterNames);
+        } else {
+            throw new IllegalArgumentException("Neither key nor keyHeader is set");
+        }
+        int replayStatus = idempotent.replayStatus();
+        if (replayStatus != 0 && (replayStatus < 100 || replayStatus > 599)) {
+            throw new IllegalArgumentException("replayStatus " + replayStatus + " is not an HTTP status");
+        }
+        IdempotentMethodMetadata.ReturnKind returnKind = returnKind(method.getReturnType());
+        int batchArg = batchArg(method, idempotent, parameterNames);
+        boolean handler = AnnotatedElementUtils.hasAnnotation(method.getDeclaringClass(), Controller.class);
+        // A replay returns null, which primitives cannot hold; response hashes need the return value itself.
+        // Batches store a result per item, not the response
+        boolean capturesResponse = properties.getCapture().isEnabled() && handler
+                && returnKind == IdempotentMethodMetadata.ReturnKind.VALUE
+                && (method.getReturnType() == void.class || !method.getReturnType().isPrimitive())
+                && !idempotent.hashResponse() && batchArg < 0;
+        return new IdempotentMethodMetadata(method.getDeclaringClass().getSimpleName() + "." + method.getName(),
+                idempotent, keyExpression, keyHeader, parameterNames, payloadArgs(method), batchArg,
+                parseDuration("ttl", idempotent.ttl()), parseDuration("leaseTtl", idempotent.leaseTtl()),
+                resolveScopeResolver(idempotent.scopeResolver()), resolveConflictResolvers(idempotent), returnKind,
+                handler, capturesResponse);
+    }
+
+    /**
+     * Parses a key expression and checks that the variables it refers to are parameters, which would otherwise
+     * evaluate to {@code null} and fail every call.
+     */
+    private Expression parseKey(String key, String[] parameterNames) {
+        Expression expression;
         try {
-            byte[] oldHash = digest.digest(objectMapper.writeValueAsBytes(oldResp));
-            byte[] newHash = digest.digest(objectMapper.writeValueAsBytes(newResp));
-            return Arrays.equals(oldHash, newHash);
-        } catch (Exception e) {
-            throw new IllegalStateException("Failed to hash responses", e);
+            expression = parser.parseExpression(key);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid key expression '" + key + "': " + e.getMessage(), e);
+        }
+        Set<String> variables = new HashSet<>();
+        if (expression instanceof SpelExpression spel) {
+            collectVariables(spel.getAST(), variables);
+        }
+        variables.remove("root");
+        variables.remove("this");
+        if (!variables.isEmpty() && parameterNames == null) {
+            throw new IllegalArgumentException("Key expression '" + key + "' refers to parameters by name, but their "
+                    + "names are not available; compile with -parameters");
+        }
+        for (String variable : variables) {
+            if (!List.of(parameterNames).contains(variable)) {
+                throw new IllegalArgumentException("Key expression '" + key + "' refers to #" + variable
+                        + ", which is not a parameter");
+            }
+        }
+        return expression;
+    }
+
+    /**
+     * Position of the {@link Idempotent#batch()} parameter, {@code -1} if there is none.
+     */
+    private static int batchArg(Method method, Idempotent idempotent, String[] parameterNames) {
+        String batch = idempotent.batch();
+        if (batch.isBlank()) {
+            return -1;
         }
+        if (!idempotent.keyHeader().isBlank()) {
+            throw new IllegalArgumentException("batch needs a key expression yielding one key per item, "
+                    + "not a keyHeader");
+        }
+        if (idempotent.hashResponse() || idempotent.replayStatus() != 0) {
+            throw new IllegalArgumentException("batch cannot be combined with hashResponse or replayStatus");
+        }
+        Class<?> returnType = method.getReturnType();
+        if (returnType != List.class && returnType != Collection.class) {
+            throw new IllegalArgumentException("batch methods return one result per item as a List or Collection, not "
+                    + returnType.getSimpleName());
+        }
+        if (parameterNames == null) {
+            throw new IllegalArgumentException("batch names a parameter, but parameter names are not available; "
+                    + "compile with -parameters");
+        }
+        int index = List.of(parameterNames).indexOf(batch);
+        if (index < 0) {
+            throw new IllegalArgumentException("batch '" + batch + "' is not a parameter");
+        }
+        Class<?> type = method.getParameterTypes()[index];
+        if (type != List.class && type != Collection.class) {
+            throw new IllegalArgumentException("batch parameter '" + batch + "' must be a List or Collection, not "
+                    + type.getSimpleName());
+        }
+        return index;
     }
 
-    private void handleCustomConflict(String key, Object oldValue, Object newValue) {
-        Map<String, IdempotencyConflictResolver> resolvers = context.getBeansOfType(IdempotencyConflictResolver.class);
+    private static void collectVariables(SpelNode node, Set<String> variables) {
+        if (node instanceof VariableReference) {
+            variables.add(node.toStringAST().substring(1));
+        }
+        for (int i = 0; i < node.getChildCount(); i++) {
+            collectVariables(node.getChild(i), variables);
+        }
+    }
+
+    private List<IdempotencyConflictResolver> resolveConflictResolvers(Idempotent idempotent) {
+        if (idempotent.onConflict() != ConflictHandling.CUSTOM) {
+            return List.of();
+        }
+        List<IdempotencyConflictResolver> resolvers = context.getBeanProvider(IdempotencyConflictResolver.class)
+                .orderedStream()
+                .toList();
         if (resolvers.isEmpty()) {
-            throw new IllegalStateException("No ConflictResolver bean found for CUSTOM conflict handling");
+            throw new IllegalArgumentException("CUSTOM conflict handling needs an IdempotencyConflictResolver bean");
+        }
+        return resolvers;
+    }
+
+    private static IdempotentMethodMetadata.ReturnKind returnKind(Class<?> returnType) {
+        if (Flux.class.isAssignableFrom(returnType)) {
+            return IdempotentMethodMetadata.ReturnKind.FLUX;
+        }
+        if (Mono.class.isAssignableFrom(returnType)) {
+            return IdempotentMethodMetadata.ReturnKind.MONO;
+        }
+        if (returnType == CompletableFuture.class || returnType == CompletionStage.class) {
+            return IdempotentMethodMetadata.ReturnKind.FUTURE;
         }
-        for (IdempotencyConflictResolver resolver : resolvers.values()) {
+        return IdempotentMethodMetadata.ReturnKind.VALUE;
+    }
+
+    /**
+     * The arguments that make up the request payload: the {@code @RequestBody} parameter if there is one,
+     * otherwise every argument that is not request/response plumbing.
+     */
+    private static int[] payloadArgs(Method method) {
+        Parameter[] parameters = method.getParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].isAnnotationPresent(RequestBody.class)) {
+                return new int[]{i};
+            }
+        }
+        return IntStream.range(0, parameters.length)
+                .filter(i -> NON_PAYLOAD_TYPES.stream().noneMatch(type -> type.isAssignableFrom(parameters[i].getType())))
+                .toArray();
+    }
+
+    private <T extends IdempotencyScopeResolver> T resolveScopeResolver(Class<T> resolverClass) {
+        return context.getBeanProvider(resolverClass)
+                .getIfAvailable(() -> context.getAutowireCapableBeanFactory().createBean(resolverClass));
+    }
+
+    /**
+     * Parses {@code 30s}, {@code 15m}, {@code 2h} or {@code 1d}, or a time-based ISO-8601 duration with or without
+     * its {@code PT} prefix, such as {@code 1h30m}.
+     *
+     * @throws IllegalArgumentException if {@code raw} is none of these, or not positive
+     */
+    static Duration parseDuration(String attribute, String raw) {
+        Duration duration;
+        Matcher matcher = SIMPLE_DURATION.matcher(raw);
+        try {
+            if (matcher.matches()) {
+                long amount = Long.parseLong(matcher.group(1));
+                duration = switch (matcher.group(2).charAt(0)) {
+                    case 's' -> Duration.ofSeconds(amount);
+                    case 'm' -> Duration.ofMinutes(amount);
+                    case 'h' -> Duration.ofHours(amount);
+                    default -> Duration.ofDays(amount);
+                };
+            } else {
+                String upper = raw.toUpperCase(Locale.ROOT);
+                duration = Duration.parse(upper.startsWith("P") ? upper : "PT" + upper);
+            }
+        } catch (DateTimeParseException | ArithmeticException e) {
+            throw new IllegalArgumentException("Invalid " + attribute + " '" + raw
+                    + "', expected e.g. 30s, 15m, 2h, 1d or PT1H30M", e);
+        }
+        if (duration.isZero() || duration.isNegative()) {
+            throw new IllegalArgumentException(attribute + " must be positive: '" + raw + "'");
+        }
+        return duration;
+    }
+
+    private void handleCustomConflict(IdempotentMethodMetadata metadata, String key, Object oldValue,
+                                      Object newValue) {
+        for (IdempotencyConflictResolver resolver : metadata.conflictResolvers()) {
             resolver.resolve(key, oldValue, newValue);
         }
     }
 
 
-    private EvaluationContext buildEvaluationContext(ProceedingJoinPoint joinPoint) {
+    private EvaluationContext buildEvaluationContext(IdempotentMethodMetadata metadata, ProceedingJoinPoint joinPoint) {
         EvaluationContext context = new StandardEvaluationContext();
         Object[] args = joinPoint.getArgs();
-        String[] paramNames = ((MethodSignature) joinPoint.getSignature()).getParameterNames();
+        String[] paramNames = metadata.parameterNames();
         for (int i = 0; i < args.length; i++) {
             context.setVariable(paramNames[i], args[i]);
         }
         return context;
     }
 
-    private String resolveKey(Idempotent idempotent, EvaluationContext context) {
-        String rawKey = null;
+    private String resolveKey(IdempotentMethodMetadata metadata, ProceedingJoinPoint joinPoint) {
+        String rawKey = metadata.usesKeyHeader()
+                ? getCurrentRequest().getHeader(metadata.keyHeader())
+                : evaluateKey(metadata, joinPoint);
+        return requireKey(rawKey);
+    }
 
-        if (!idempotent.keyHeader().isBlank()) {
-            HttpServletRequest request = getCurrentRequest();
-            rawKey = request.getHeader(idempotent.keyHeader());
-        } else if (!idempotent.key().isBlank()) {
-            rawKey = parser.parseExpression(idempotent.key()).getValue(context, String.class);
-        }
+    String evaluateKey(IdempotentMethodMetadata metadata, ProceedingJoinPoint joinPoint) {
+        return metadata.keyExpression() != null
+                ? metadata.keyExpression().getValue(buildEvaluationContext(metadata, joinPoint), String.class)
+                : null;
+    }
+
+    /**
+     * The keys of a {@link Idempotent#batch()} method, one per item.
+     */
+    Collection<?> evaluateKeys(IdempotentMethodMetadata metadata, ProceedingJoinPoint joinPoint) {
+        return metadata.keyExpression().getValue(buildEvaluationContext(metadata, joinPoint), Collection.class);
+    }
 
+    static String requireKey(String rawKey) {
         if (rawKey == null || rawKey.isBlank()) {
             throw new IllegalArgumentException("Idempotency key is missing or empty.");
         }
-
         return rawKey;
     }
 
+    /**
+     * Header of the servlet request bound to this thread, {@code null} outside a servlet request.
+     */
+    static String currentRequestHeader(String name) {
+        RequestAttributes attrs = RequestContextHolder.getRequestAttributes();
+        return attrs instanceof ServletRequestAttributes servletAttrs ? servletAttrs.getRequest().getHeader(name) : null;
+    }
+
+    /**
+     * The servlet response bound to this thread, {@code null} outside a servlet request.
+     */
+    private static HttpServletResponse currentResponse() {
+        RequestAttributes attrs = RequestContextHolder.getRequestAttributes();
+        return attrs instanceof ServletRequestAttributes servletAttrs ? servletAttrs.getResponse() : null;
+    }
+
     private HttpServletRequest getCurrentRequest() {
         ServletRequestAttributes attrs = (ServletRequestAttributes) RequestContextHolder.getRequestAttributes();
         if (attrs == null) {
@@ -159,4 +685,14 @@ public class IdempotencyAspect {
         }
         return attrs.getRequest();
     }
+
+    private static List<Class<?>> nonPayloadTypes() {
+        List<Class<?>> types = new ArrayList<>(List.of(ServletRequest.class, ServletResponse.class, Principal.class,
+                Errors.class, InputStream.class, Reader.class, OutputStream.class, Writer.class));
+        ClassLoader classLoader = IdempotencyAspect.class.getClassLoader();
+        if (ClassUtils.isPresent("org.springframework.web.server.ServerWebExchange", classLoader)) {
+            types.add(ClassUtils.resolveClassName("org.springframework.web.server.ServerWebExchange", classLoader));
+        }
+        return List.copyOf(types);
+    }
 }
@@ -0,0 +1,139 @@
+package com.arash.ariani.idempotency.aspect;
+
+import com.arash.ariani.idempotency.annotation.Idempotent;
+import com.arash.ariani.idempotency.conflict.IdempotencyConflictResolver;
+import com.arash.ariani.idempotency.scope.IdempotencyScopeResolver;
+import org.springframework.expression.Expression;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Everything the aspect needs to know about an {@link Idempotent} method that does not change between
+ * invocations. Built once per method at startup, or on its first call if the scan missed it, so the request path
+ * does no parsing or bean lookups.
+ */
+final class IdempotentMethodMetadata {
+
+    enum ReturnKind {
+        VALUE,  // Plain value, handled synchronously
+        MONO,   // Mono, the emitted value is stored
+        FLUX,   // Flux, collected into a list that is stored and replayed element by element
+        FUTURE  // CompletableFuture or CompletionStage, the value it completes with is stored
+    }
+
+    private final String name;
+    private final Idempotent idempotent;
+    private final Expression keyExpression;
+    private final String keyHeader;
+    private final String[] parameterNames;
+    private final int[] payloadArgs;
+    private final int batchArg;
+    private final Duration ttl;
+    private final Duration leaseTtl;
+    private final IdempotencyScopeResolver scopeResolver;
+    private final List<IdempotencyConflictResolver> conflictResolvers;
+    private final ReturnKind returnKind;
+    private final boolean handler;
+    private final boolean capturesResponse;
+
+    IdempotentMethodMetadata(String name, Idempotent idempotent, Expression keyExpression, String keyHeader,
+                             String[] parameterNames, int[] payloadArgs, int batchArg, Duration ttl,
+                             Duration leaseTtl, IdempotencyScopeResolver scopeResolver,
+                             List<IdempotencyConflictResolver> conflictResolvers, ReturnKind returnKind,
+                             boolean handler, boolean capturesResponse) {
+        this.name = name;
+        this.idempotent = idempotent;
+        this.keyExpression = keyExpression;
+        this.keyHeader = keyHeader;
+        this.parameterNames = parameterNames;
+        this.payloadArgs = payloadArgs;
+        this.batchArg = batchArg;
+        this.ttl = ttl;
+        this.leaseTtl = leaseTtl;
+        this.scopeResolver = scopeResolver;
+        this.conflictResolvers = conflictResolvers;
+        this.returnKind = returnKind;
+        this.handler = handler;
+        this.capturesResponse = capturesResponse;
+    }
+
+    /**
+     * {@code SimpleClassName.method}, used to tag metrics and observations.
+     */
+    String name() {
+        return name;
+    }
+
+    Idempotent idempotent() {
+        return idempotent;
+    }
+
+    Expression keyExpression() {
+        return keyExpression;
+    }
+
+    String keyHeader() {
+        return keyHeader;
+    }
+
+    boolean usesKeyHeader() {
+        return keyHeader != null;
+    }
+
+    String[] parameterNames() {
+        return parameterNames;
+    }
+
+    int[] payloadArgs() {
+        return payloadArgs;
+    }
+
+    /**
+     * Position of the {@link Idempotent#batch()} parameter, {@code -1} for methods that take a single key.
+     */
+    int batchArg() {
+        return batchArg;
+    }
+
+    boolean isBatch() {
+        return batchArg >= 0;
+    }
+
+    Duration ttl() {
+        return ttl;
+    }
+
+    Duration leaseTtl() {
+        return leaseTtl;
+    }
+
+    IdempotencyScopeResolver scopeResolver() {
+        return scopeResolver;
+    }
+
+    /**
+     * The resolvers called for {@code CUSTOM} conflict handling, empty for the other modes.
+     */
+    List<IdempotencyConflictResolver> conflictResolvers() {
+        return conflictResolvers;
+    }
+
+    ReturnKind returnKind() {
+        return returnKind;
+    }
+
+    /**
+     * Whether the method is declared by a controller, so replays may set the HTTP status.
+     */
+    boolean handler() {
+        return handler;
+    }
+
+    /**
+     * Whether the HTTP response written for the method's return value is stored instead of the value itself.
+     */
+    boolean capturesResponse() {
+        return capturesResponse;
+    }
+}
@@ -0,0 +1,44 @@
+package com.arash.ariani.idempotency.aspect;
+
+import com.arash.ariani.idempotency.annotation.Idempotent;
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.ExecutableMode;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.ReflectionHints;
+import org.springframework.beans.factory.aot.BeanRegistrationAotContribution;
+import org.springframework.beans.factory.aot.BeanRegistrationAotProcessor;
+import org.springframework.beans.factory.support.RegisteredBean;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+/**
+ * Registers native image hints for beans with {@link Idempotent} methods: the methods, so that the startup scan and
+ * the aspect find them, the parameter types key expressions read from, the return types that are stored, and the
+ * scope resolvers that are created for them.
+ */
+class IdempotentMethodsAotProcessor implements BeanRegistrationAotProcessor {
+
+    @Override
+    public BeanRegistrationAotContribution processAheadOfTime(RegisteredBean registeredBean) {
+        Map<Method, Idempotent> methods = IdempotencyAspect.idempotentMethods(registeredBean.getBeanClass());
+        if (methods.isEmpty()) {
+            return null;
+        }
+        return (generationContext, beanRegistrationCode) -> {
+            ReflectionHints reflection = generationContext.getRuntimeHints().reflection();
+            BindingReflectionHintsRegistrar bindings = new BindingReflectionHintsRegistrar();
+            methods.forEach((method, idempotent) -> {
+                reflection.registerMethod(method, ExecutableMode.INTROSPECT);
+                if (idempotent.keyHeader().isBlank()) {
+                    for (Type parameter : method.getGenericParameterTypes()) {
+                        bindings.registerReflectionHints(reflection, parameter);
+                    }
+                }
+                bindings.registerReflectionHints(reflection, method.getGenericReturnType());
+                reflection.registerType(idempotent.scopeResolver(), MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+            });
+        };
+    }
+}
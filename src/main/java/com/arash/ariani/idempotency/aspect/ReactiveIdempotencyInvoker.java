@@ -0,0 +1,290 @@
+package com.arash.ariani.idempotency.aspect;
+
+import com.arash.ariani.idempotency.annotation.Idempotent;
+import com.arash.ariani.idempotency.config.IdempotencyProperties;
+import com.arash.ariani.idempotency.conflict.IdempotencyInProgressException;
+import com.arash.ariani.idempotency.fingerprint.Fingerprinter;
+import com.arash.ariani.idempotency.metrics.IdempotencyMetrics;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import com.arash.ariani.idempotency.store.ReactiveIdempotencyStore;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.reactivestreams.Publisher;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.ClassUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@link IdempotencyAspect} flow for methods returning {@code Mono}, {@code Flux} or {@code CompletableFuture}:
+ * the same lookup, claim, replay and conflict rules, assembled into the returned publisher so that nothing runs,
+ * and nothing blocks, until it is subscribed. A {@code Flux} is collected into a list, which is what gets stored and
+ * replayed.
+ * <p>
+ * Futures are different: the key is looked up and claimed with the blocking store on the calling thread, and the
+ * method runs there too, so it keeps the caller's thread-bound state such as the security context, the current
+ * request, the MDC or a surrounding transaction. Only the save waits for the future. Duplicates arriving while it
+ * runs on this node share it.
+ */
+final class ReactiveIdempotencyInvoker {
+
+    private static final boolean WEBFLUX_PRESENT = ClassUtils.isPresent(
+            "org.springframework.web.filter.reactive.ServerWebExchangeContextFilter",
+            ReactiveIdempotencyInvoker.class.getClassLoader());
+
+    private final IdempotencyAspect aspect;
+    private final IdempotencyStore blockingStore;
+    private final ReactiveIdempotencyStore store;
+    private final Fingerprinter fingerprinter;
+    private final IdempotencyProperties properties;
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    ReactiveIdempotencyInvoker(IdempotencyAspect aspect, IdempotencyStore blockingStore, ReactiveIdempotencyStore store,
+                               Fingerprinter fingerprinter, IdempotencyProperties properties) {
+        this.aspect = aspect;
+        this.blockingStore = blockingStore;
+        this.store = store;
+        this.fingerprinter = fingerprinter;
+        this.properties = properties;
+    }
+
+    Object invoke(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata) {
+        if (metadata.returnKind() == IdempotentMethodMetadata.ReturnKind.FUTURE) {
+            return invokeAsync(joinPoint, metadata);
+        }
+        Mono<Object> result;
+        try {
+            // Scope, SpEL key and servlet header are resolved on the calling thread, where thread-bound state
+            // such as the current request is still available; the WebFlux exchange only exists on subscription
+            String scope = metadata.scopeResolver().resolveScope(joinPoint);
+            String eagerKey = eagerKey(joinPoint, metadata);
+            result = Mono.deferContextual(context -> {
+                String key = IdempotencyAspect.requireKey(eagerKey != null ? eagerKey : exchangeKey(metadata, context));
+                return execute(joinPoint, metadata, scope + ":" + key);
+            });
+        } catch (RuntimeException e) {
+            result = Mono.error(e);
+        }
+        return metadata.returnKind() == IdempotentMethodMetadata.ReturnKind.FLUX
+                ? result.flatMapMany(list -> Flux.fromIterable((List<?>) list))
+                : result;
+    }
+
+    private CompletableFuture<Object> invokeAsync(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata) {
+        String fullKey;
+        try {
+            fullKey = metadata.scopeResolver().resolveScope(joinPoint) + ":"
+                    + IdempotencyAspect.requireKey(eagerKey(joinPoint, metadata));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Idempotent idempotent = metadata.idempotent();
+        if (idempotent.hashRequest() || idempotent.hashResponse()) {
+            // Duplicates have to be compared, so each one goes through the store
+            return executeAsync(joinPoint, metadata, fullKey);
+        }
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(fullKey, future);
+        if (running != null) {
+            aspect.record(metadata, IdempotencyMetrics.Outcome.HIT);
+            return running.copy();
+        }
+        executeAsync(joinPoint, metadata, fullKey).whenComplete((result, error) -> {
+            inFlight.remove(fullKey, future);
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        });
+        // Copies, so that a caller completing or cancelling its future cannot affect the others
+        return future.copy();
+    }
+
+    /**
+     * Claims the key and calls the method on the calling thread. Subscribing right away keeps the method call on
+     * this thread, as {@link #proceedAndSave} and the replays only defer it until they are subscribed.
+     */
+    private CompletableFuture<Object> executeAsync(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata,
+                                                   String fullKey) {
+        try {
+            LookupResult cached = blockingStore.lookup(fullKey);
+            AcquireResult claim = switch (cached.status()) {
+                case COMPLETED -> AcquireResult.completed(cached.response(), cached.fingerprint());
+                case IN_PROGRESS -> AcquireResult.inProgress();
+                case MISS -> blockingStore.tryAcquire(fullKey, metadata.leaseTtl());
+            };
+            if (claim.status() == AcquireResult.Status.IN_PROGRESS) {
+                claim = aspect.handleInProgress(fullKey, metadata);
+            }
+            return claim.status() == AcquireResult.Status.COMPLETED
+                    ? replay(joinPoint, metadata, fullKey, claim.response(), claim.fingerprint()).toFuture()
+                    : proceedAndSave(joinPoint, metadata, fullKey, claim.token()).toFuture();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private Mono<Object> execute(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata, String fullKey) {
+        return store.lookup(fullKey).flatMap(cached -> {
+            if (cached.isCompleted()) {
+                return replay(joinPoint, metadata, fullKey, cached.response(), cached.fingerprint());
+            }
+            Mono<AcquireResult> claim = cached.status() == LookupResult.Status.IN_PROGRESS
+                    ? Mono.just(AcquireResult.inProgress())
+                    : store.tryAcquire(fullKey, metadata.leaseTtl());
+            return claim
+                    .flatMap(acquired -> acquired.status() == AcquireResult.Status.IN_PROGRESS
+                            ? handleInProgress(fullKey, metadata)
+                            : Mono.just(acquired))
+                    .flatMap(acquired -> acquired.status() == AcquireResult.Status.COMPLETED
+                            ? replay(joinPoint, metadata, fullKey, acquired.response(), acquired.fingerprint())
+                            : proceedAndSave(joinPoint, metadata, fullKey, acquired.token()));
+        });
+    }
+
+    private Mono<Object> proceedAndSave(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata,
+                                        String fullKey, String token) {
+        Idempotent idempotent = metadata.idempotent();
+        AtomicBoolean finished = new AtomicBoolean();
+        return Mono.defer(() -> {
+                    // Fingerprint the request before the method gets a chance to mutate its arguments
+                    String requestFingerprint = idempotent.hashRequest()
+                            ? aspect.fingerprintRequest(metadata, joinPoint)
+                            : null;
+                    return proceed(joinPoint, metadata)
+                            .map(Optional::of)
+                            .defaultIfEmpty(Optional.empty())
+                            .map(result -> new Completion(result.orElse(null), requestFingerprint));
+                })
+                .doOnTerminate(() -> finished.set(true))
+                .onErrorResume(error -> store.release(fullKey, token).then(Mono.error(error)))
+                .flatMap(completion -> {
+                    String fingerprint = completion.fingerprint() == null && idempotent.hashResponse()
+                            ? fingerprinter.fingerprint(completion.result())
+                            : completion.fingerprint();
+                    return store.save(fullKey, completion.result(), fingerprint, metadata.ttl())
+                            .then(Mono.fromRunnable(() -> aspect.record(metadata, IdempotencyMetrics.Outcome.MISS)))
+                            .then(Mono.justOrEmpty(completion.result()));
+                })
+                // A subscriber that gives up before the method is done leaves nothing to save, so the key is freed
+                // for the retry instead of staying claimed until the lease runs out
+                .doOnCancel(() -> {
+                    if (!finished.get()) {
+                        store.release(fullKey, token).subscribe();
+                    }
+                });
+    }
+
+    private Mono<Object> replay(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata, String fullKey,
+                                Object cached, String storedFingerprint) {
+        Idempotent idempotent = metadata.idempotent();
+        if (idempotent.hashRequest()) {
+            return Mono.defer(() -> {
+                // Compared without re-running the method; entries saved before hashing was enabled are trusted
+                if (storedFingerprint != null && !storedFingerprint.equals(aspect.fingerprintRequest(metadata, joinPoint))) {
+                    return conflict(metadata, fullKey, cached, aspect.requestPayload(metadata, joinPoint),
+                            "Conflict: different request payload for same idempotency key");
+                }
+                return hit(metadata, cached);
+            });
+        }
+        if (idempotent.hashResponse()) {
+            return proceed(joinPoint, metadata)
+                    .map(Optional::of)
+                    .defaultIfEmpty(Optional.empty())
+                    .flatMap(fresh -> {
+                        String cachedFingerprint = storedFingerprint != null
+                                ? storedFingerprint
+                                : fingerprinter.fingerprint(cached);
+                        if (!cachedFingerprint.equals(fingerprinter.fingerprint(fresh.orElse(null)))) {
+                            return conflict(metadata, fullKey, cached, fresh.orElse(null),
+                                    "Conflict: different result for same idempotency key");
+                        }
+                        return hit(metadata, cached);
+                    });
+        }
+        return Mono.defer(() -> hit(metadata, cached));
+    }
+
+    private Mono<Object> hit(IdempotentMethodMetadata metadata, Object cached) {
+        aspect.record(metadata, IdempotencyMetrics.Outcome.HIT);
+        return Mono.justOrEmpty(cached);
+    }
+
+    private Mono<Object> conflict(IdempotentMethodMetadata metadata, String fullKey, Object cached, Object newValue,
+                                  String reason) {
+        return Mono.fromCallable(() -> aspect.onConflict(metadata, fullKey, cached, newValue, reason));
+    }
+
+    private Mono<AcquireResult> handleInProgress(String fullKey, IdempotentMethodMetadata metadata) {
+        aspect.record(metadata, IdempotencyMetrics.Outcome.IN_PROGRESS);
+        IdempotencyProperties.InProgress settings = properties.getInProgress();
+        return switch (metadata.idempotent().onInProgress()) {
+            case THROW_409 -> Mono.error(new IdempotencyInProgressException(HttpStatus.CONFLICT, null));
+            case THROW_425 -> Mono.error(new IdempotencyInProgressException(HttpStatus.TOO_EARLY,
+                    settings.getRetryAfter()));
+            case WAIT -> awaitCompletion(fullKey, metadata.leaseTtl(),
+                    System.nanoTime() + settings.getWaitTimeout().toNanos());
+        };
+    }
+
+    /**
+     * Non-blocking version of the aspect's polling: each poll is a timer, not a sleeping thread.
+     */
+    private Mono<AcquireResult> awaitCompletion(String fullKey, Duration leaseTtl, long deadline) {
+        IdempotencyProperties.InProgress settings = properties.getInProgress();
+        if (System.nanoTime() >= deadline) {
+            return Mono.error(new IdempotencyInProgressException(HttpStatus.TOO_EARLY, settings.getRetryAfter()));
+        }
+        return Mono.delay(settings.getPollInterval())
+                .then(Mono.defer(() -> store.tryAcquire(fullKey, leaseTtl)))
+                .flatMap(claim -> claim.status() == AcquireResult.Status.IN_PROGRESS
+                        ? awaitCompletion(fullKey, leaseTtl, deadline)
+                        : Mono.just(claim));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Mono<Object> proceed(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata) {
+        Object returned;
+        try {
+            returned = joinPoint.proceed();
+        } catch (Throwable t) {
+            return Mono.error(t);
+        }
+        if (returned == null) {
+            return Mono.empty();
+        }
+        return switch (metadata.returnKind()) {
+            case FLUX -> Flux.from((Publisher<Object>) returned).collectList().map(list -> list);
+            case FUTURE -> Mono.fromCompletionStage((CompletionStage<Object>) returned);
+            default -> Mono.from((Publisher<Object>) returned);
+        };
+    }
+
+    private String eagerKey(ProceedingJoinPoint joinPoint, IdempotentMethodMetadata metadata) {
+        return metadata.usesKeyHeader()
+                ? IdempotencyAspect.currentRequestHeader(metadata.keyHeader())
+                : aspect.evaluateKey(metadata, joinPoint);
+    }
+
+    private static String exchangeKey(IdempotentMethodMetadata metadata, ContextView context) {
+        return metadata.usesKeyHeader() && WEBFLUX_PRESENT
+                ? ServerWebExchangeHeaders.get(context, metadata.keyHeader())
+                : null;
+    }
+
+    private record Completion(Object result, String fingerprint) {
+    }
+}
@@ -0,0 +1,20 @@
+package com.arash.ariani.idempotency.aspect;
+
+import org.springframework.web.filter.reactive.ServerWebExchangeContextFilter;
+import reactor.util.context.ContextView;
+
+/**
+ * Reads request headers of the current WebFlux exchange, which {@link ServerWebExchangeContextFilter} puts into
+ * the Reactor context. Kept apart from the aspect so that WebFlux stays optional.
+ */
+final class ServerWebExchangeHeaders {
+
+    private ServerWebExchangeHeaders() {
+    }
+
+    static String get(ContextView context, String name) {
+        return ServerWebExchangeContextFilter.getExchange(context)
+                .map(exchange -> exchange.getRequest().getHeaders().getFirst(name))
+                .orElse(null);
+    }
+}
@@ -0,0 +1,97 @@
+package com.arash.ariani.idempotency.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates payloads of at least {@code threshold} bytes. Every payload starts with a one-byte header telling
+ * whether the rest is compressed, so the threshold can be changed without breaking stored values.
+ */
+public class CompressingPayloadCodec implements PayloadCodec {
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+
+    private final PayloadCodec delegate;
+    private final int threshold;
+
+    /**
+     * @param threshold smallest encoded size that gets compressed, {@link Integer#MAX_VALUE} to never compress
+     */
+    public CompressingPayloadCodec(PayloadCodec delegate, int threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        byte[] encoded = delegate.encode(value);
+        if (encoded.length >= threshold) {
+            byte[] deflated = deflate(encoded);
+            if (deflated.length < encoded.length) {
+                return withHeader(DEFLATED, deflated);
+            }
+        }
+        return withHeader(STORED, encoded);
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("Empty payload");
+        }
+        return switch (bytes[0]) {
+            case STORED -> delegate.decode(Arrays.copyOfRange(bytes, 1, bytes.length));
+            case DEFLATED -> delegate.decode(inflate(bytes));
+            default -> throw new IllegalArgumentException("Unknown payload header " + bytes[0]);
+        };
+    }
+
+    private static byte[] withHeader(byte header, byte[] body) {
+        byte[] framed = new byte[body.length + 1];
+        framed[0] = header;
+        System.arraycopy(body, 0, framed, 1, body.length);
+        return framed;
+    }
+
+    private static byte[] deflate(byte[] input) {
+        // Favors CPU over ratio: responses are written once per key and the hot path is the replay
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] framed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(framed, 1, framed.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(framed.length * 3);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int read = inflater.inflate(buffer);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed payload");
+                }
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
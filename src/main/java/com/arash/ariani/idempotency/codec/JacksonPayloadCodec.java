@@ -0,0 +1,132 @@
+package com.arash.ariani.idempotency.codec;
+
+import com.arash.ariani.idempotency.store.redis.RedisIdempotencyEntry;
+import com.arash.ariani.idempotency.web.CapturedResponse;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.jsontype.BasicPolymorphicTypeValidator;
+import com.fasterxml.jackson.databind.jsontype.PolymorphicTypeValidator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Jackson based {@link PayloadCodec}. The application's {@link ObjectMapper} is copied, so its modules and
+ * settings apply, and every non-primitive value is written with its class name so that replays get the
+ * original type back instead of a {@code Map}.
+ * <p>
+ * Class names are only read back for {@link CapturedResponse}, {@link RedisIdempotencyEntry}, JDK values and
+ * collections, {@code java.time} and the classes of the trusted packages, so whoever can write to the store cannot
+ * have arbitrary classes instantiated. Responses of other types are stored but fail to decode.
+ */
+public class JacksonPayloadCodec implements PayloadCodec {
+
+    private final ObjectMapper mapper;
+
+    private JacksonPayloadCodec(ObjectMapper mapper, Collection<String> trustedPackages) {
+        mapper.setDefaultTyping(new TypedValues(validator(trustedPackages))
+                .init(JsonTypeInfo.Id.CLASS, null)
+                .inclusion(JsonTypeInfo.As.PROPERTY));
+        this.mapper = mapper;
+    }
+
+    public static JacksonPayloadCodec json(ObjectMapper objectMapper) {
+        return json(objectMapper, List.of());
+    }
+
+    public static JacksonPayloadCodec json(ObjectMapper objectMapper, Collection<String> trustedPackages) {
+        return new JacksonPayloadCodec(objectMapper.copy(), trustedPackages);
+    }
+
+    public static JacksonPayloadCodec smile(ObjectMapper objectMapper) {
+        return smile(objectMapper, List.of());
+    }
+
+    /**
+     * Smile with repeated names and class names written as back-references.
+     */
+    public static JacksonPayloadCodec smile(ObjectMapper objectMapper, Collection<String> trustedPackages) {
+        SmileFactory smile = SmileFactory.builder()
+                .enable(SmileGenerator.Feature.CHECK_SHARED_NAMES)
+                .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+                .build();
+        return new JacksonPayloadCodec(objectMapper.copyWith(smile), trustedPackages);
+    }
+
+    public static JacksonPayloadCodec of(PayloadFormat format, ObjectMapper objectMapper) {
+        return of(format, objectMapper, List.of());
+    }
+
+    /**
+     * @param trustedPackages packages whose classes, including those of sub-packages, may be read back
+     */
+    public static JacksonPayloadCodec of(PayloadFormat format, ObjectMapper objectMapper,
+                                         Collection<String> trustedPackages) {
+        return switch (format) {
+            case JSON -> json(objectMapper, trustedPackages);
+            case SMILE -> smile(objectMapper, trustedPackages);
+        };
+    }
+
+    private static PolymorphicTypeValidator validator(Collection<String> trustedPackages) {
+        BasicPolymorphicTypeValidator.Builder validator = BasicPolymorphicTypeValidator.builder()
+                .allowIfSubType(CapturedResponse.class)
+                .allowIfSubType(RedisIdempotencyEntry.class)
+                .allowIfSubTypeIsArray()
+                // Boxed values Jackson does not write natively, e.g. a Long inside a Map<String, Object>
+                .allowIfSubType(Long.class)
+                .allowIfSubType(Short.class)
+                .allowIfSubType(Byte.class)
+                .allowIfSubType(Float.class)
+                .allowIfSubType(Character.class)
+                .allowIfSubType("java.math.")
+                .allowIfSubType("java.util.")
+                .allowIfSubType("java.time.");
+        for (String trusted : trustedPackages) {
+            validator.allowIfSubType(trusted.endsWith(".") ? trusted : trusted + ".");
+        }
+        return validator.build();
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to serialize response", e);
+        }
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        try {
+            return mapper.readValue(bytes, Object.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to deserialize cached payload", e);
+        }
+    }
+
+    /**
+     * Like {@code DefaultTyping.EVERYTHING}, which is deprecated: final types such as records need their type id
+     * too, because responses are read back as {@code Object}. Strings, booleans and numbers are written
+     * natively by Jackson regardless.
+     */
+    private static final class TypedValues extends ObjectMapper.DefaultTypeResolverBuilder {
+
+        private static final long serialVersionUID = 1L;
+
+        TypedValues(PolymorphicTypeValidator validator) {
+            super(ObjectMapper.DefaultTyping.NON_FINAL, validator);
+        }
+
+        @Override
+        public boolean useForType(JavaType type) {
+            return !type.isPrimitive() && !TreeNode.class.isAssignableFrom(type.getRawClass());
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.arash.ariani.idempotency.codec;
+
+/**
+ * Turns stored responses into bytes and back. Implementations must keep enough type information for
+ * {@link #decode} to return an instance of the original response type.
+ */
+public interface PayloadCodec {
+
+    byte[] encode(Object value);
+
+    Object decode(byte[] bytes);
+}
@@ -0,0 +1,6 @@
+package com.arash.ariani.idempotency.codec;
+
+public enum PayloadFormat {
+    JSON,   // Readable, larger
+    SMILE   // Binary JSON with back-referenced names and type ids, smaller and faster to parse
+}
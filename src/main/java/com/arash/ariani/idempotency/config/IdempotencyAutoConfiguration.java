@@ -1,33 +1,97 @@
 package com.arash.ariani.idempotency.config;
 
 import com.arash.ariani.idempotency.aspect.IdempotencyAspect;
+import com.arash.ariani.idempotency.codec.CompressingPayloadCodec;
+import com.arash.ariani.idempotency.codec.JacksonPayloadCodec;
+import com.arash.ariani.idempotency.codec.PayloadCodec;
+import com.arash.ariani.idempotency.fingerprint.Fingerprinter;
+import com.arash.ariani.idempotency.metrics.IdempotencyMetrics;
+import com.arash.ariani.idempotency.metrics.MeteredIdempotencyStore;
+import com.arash.ariani.idempotency.metrics.MicrometerBloomFilterMetrics;
+import com.arash.ariani.idempotency.metrics.MicrometerIdempotencyMetrics;
+import com.arash.ariani.idempotency.metrics.MicrometerStoreResilienceMetrics;
+import com.arash.ariani.idempotency.metrics.StoreResilienceMetrics;
+import com.arash.ariani.idempotency.store.BlockingIdempotencyStoreAdapter;
+import com.arash.ariani.idempotency.store.BloomFilteredIdempotencyStore;
+import com.arash.ariani.idempotency.store.IdempotencyInvalidationChannel;
 import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.IdempotencyStoreDecorator;
 import com.arash.ariani.idempotency.store.InMemoryIdempotencyStore;
+import com.arash.ariani.idempotency.store.ReactiveIdempotencyStore;
+import com.arash.ariani.idempotency.store.ReactiveIdempotencyStoreAdapter;
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore;
+import com.arash.ariani.idempotency.store.RotatingBloomFilter;
+import com.arash.ariani.idempotency.store.ShardedIdempotencyStore;
+import com.arash.ariani.idempotency.store.TieredIdempotencyStore;
+import com.arash.ariani.idempotency.store.file.MappedFileIdempotencyStore;
 import com.arash.ariani.idempotency.store.jpa.IdempotencyRecord;
 import com.arash.ariani.idempotency.store.jpa.IdempotencyRecordRepository;
+import com.arash.ariani.idempotency.store.jpa.JpaIdempotencyPurger;
 import com.arash.ariani.idempotency.store.jpa.JpaIdempotencyStore;
+import com.arash.ariani.idempotency.store.jpa.JpaIdempotencyWriteBehind;
+import com.arash.ariani.idempotency.store.jpa.WriteBehindIdempotencyStore;
+import com.arash.ariani.idempotency.store.r2dbc.R2dbcIdempotencyStore;
+import com.arash.ariani.idempotency.store.redis.PayloadCodecRedisSerializer;
+import com.arash.ariani.idempotency.store.redis.RedisBloomFilterSync;
+import com.arash.ariani.idempotency.store.redis.ReactiveRedisIdempotencyStore;
+import com.arash.ariani.idempotency.store.redis.RedisIdempotencyInvalidationChannel;
 import com.arash.ariani.idempotency.store.redis.RedisIdempotencyStore;
+import com.arash.ariani.idempotency.store.redis.RedisShardNodes;
+import com.arash.ariani.idempotency.store.redis.ScriptedRedisIdempotencyStore;
+import com.arash.ariani.idempotency.web.IdempotentResponseCaptureFilter;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import io.r2dbc.spi.ConnectionFactory;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.AutoConfigurationPackages;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.filter.reactive.ServerWebExchangeContextFilter;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
-import java.security.NoSuchAlgorithmException;
+import javax.sql.DataSource;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 @EnableAspectJAutoProxy
 @Configuration(enforceUniqueMethods = false)
+@AutoConfigureAfter(name = {
+        "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration",
+        "org.springframework.boot.actuate.autoconfigure.observation.ObservationAutoConfiguration"
+})
 @ConditionalOnClass(IdempotencyAspect.class)
 @EnableConfigurationProperties(IdempotencyProperties.class)
+@ImportRuntimeHints(IdempotencyRuntimeHints.class)
 public class IdempotencyAutoConfiguration {
 
     @Bean
@@ -35,35 +99,336 @@ public class IdempotencyAutoConfiguration {
     public IdempotencyAspect idempotencyAspect(
             ApplicationContext context,
             IdempotencyStore idempotencyStore,
-            ObjectMapper objectMapper
-    ) throws NoSuchAlgorithmException {
-        return new IdempotencyAspect(context, idempotencyStore, objectMapper);
+            Fingerprinter fingerprinter,
+            IdempotencyProperties properties,
+            ObjectProvider<IdempotencyStoreDecorator> decorators,
+            ObjectProvider<IdempotencyMetrics> metrics,
+            ObjectProvider<ObservationRegistry> observationRegistry,
+            ObjectProvider<ReactiveIdempotencyStore> reactiveStore
+    ) {
+        IdempotencyStore store = idempotencyStore;
+        for (IdempotencyStoreDecorator decorator : decorators.orderedStream().toList()) {
+            store = decorator.decorate(store);
+        }
+        // Without a native reactive store, reactive and async methods use the blocking one off the caller's
+        // thread; the in-memory store never blocks, so it is called in place
+        IdempotencyStore blockingStore = store;
+        ReactiveIdempotencyStore reactive = reactiveStore.getIfAvailable(() -> new ReactiveIdempotencyStoreAdapter(
+                blockingStore, properties.getStore() == IdempotencyProperties.StoreType.MEMORY
+                ? Schedulers.immediate()
+                : storeScheduler(properties.getAsync())));
+        return new IdempotencyAspect(context, store, fingerprinter, properties,
+                metrics.getIfAvailable(() -> IdempotencyMetrics.NOOP),
+                observationRegistry.getIfUnique(() -> ObservationRegistry.NOOP), reactive);
+    }
+
+    private static Scheduler storeScheduler(IdempotencyProperties.Async async) {
+        if (!async.isVirtualThreads()) {
+            return Schedulers.boundedElastic();
+        }
+        // Fails on Java 17 with an UnsupportedOperationException naming the required version
+        return Schedulers.fromExecutor(new VirtualThreadTaskExecutor("idempotency-store-"));
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public Fingerprinter idempotencyFingerprinter(ObjectMapper objectMapper, IdempotencyProperties properties) {
+        return new Fingerprinter(objectMapper, properties.getFingerprint().getAlgorithm());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public PayloadCodec idempotencyPayloadCodec(ObjectMapper objectMapper, IdempotencyProperties properties,
+                                                BeanFactory beanFactory) {
+        IdempotencyProperties.Codec codec = properties.getCodec();
+        int threshold = codec.isCompress() ? (int) codec.getCompressThreshold().toBytes() : Integer.MAX_VALUE;
+        return new CompressingPayloadCodec(JacksonPayloadCodec.of(codec.getFormat(), objectMapper,
+                trustedPackages(properties, beanFactory)), threshold);
+    }
+
+    private static List<String> trustedPackages(IdempotencyProperties properties, BeanFactory beanFactory) {
+        // The application's own response types live under its auto-configuration packages
+        List<String> trustedPackages = new ArrayList<>(properties.getCodec().getTrustedPackages());
+        if (AutoConfigurationPackages.has(beanFactory)) {
+            trustedPackages.addAll(AutoConfigurationPackages.get(beanFactory));
+        }
+        return trustedPackages;
+    }
+
+    private static PayloadCodecRedisSerializer redisSerializer(PayloadCodec payloadCodec, ObjectMapper objectMapper,
+                                                               IdempotencyProperties properties,
+                                                               BeanFactory beanFactory) {
+        // Values of earlier versions are plain JSON, read back under the same allow-list as the codec's
+        return new PayloadCodecRedisSerializer(payloadCodec,
+                JacksonPayloadCodec.json(objectMapper, trustedPackages(properties, beanFactory)));
     }
 
     @Bean
     @ConditionalOnMissingBean(IdempotencyStore.class)
     @ConditionalOnProperty(name = "idempotency.store", havingValue = "memory", matchIfMissing = true)
-    public InMemoryIdempotencyStore inMemoryIdempotencyStore() {
-        return new InMemoryIdempotencyStore();
+    public InMemoryIdempotencyStore inMemoryIdempotencyStore(IdempotencyProperties properties,
+                                                             ObjectProvider<InMemoryIdempotencyStore.Weigher> weigher) {
+        IdempotencyProperties.Memory memory = properties.getMemory();
+        return new InMemoryIdempotencyStore(memory.getMaxEntries(), memory.getMaxWeight(), weigher.getIfAvailable(),
+                memory.getSweepInterval());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(IdempotencyStore.class)
+    @ConditionalOnProperty(name = "idempotency.store", havingValue = "file")
+    public MappedFileIdempotencyStore mappedFileIdempotencyStore(IdempotencyProperties properties,
+                                                                 PayloadCodec payloadCodec) {
+        IdempotencyProperties.File file = properties.getFile();
+        return new MappedFileIdempotencyStore(Path.of(file.getDirectory()), payloadCodec,
+                Math.toIntExact(file.getSegmentSize().toBytes()), file.getCompactionInterval(),
+                file.getCompactionThreshold(), file.getSnapshotInterval(), file.isForce());
     }
 
     @Bean
     @ConditionalOnMissingBean
     @ConditionalOnProperty(name = "idempotency.store", havingValue = "redis")
-    public RedisTemplate<String, Object> redisTemplate(RedisConnectionFactory factory) {
+    public RedisTemplate<String, Object> redisTemplate(RedisConnectionFactory factory, PayloadCodec payloadCodec,
+                                                       ObjectMapper objectMapper, IdempotencyProperties properties,
+                                                       BeanFactory beanFactory) {
         RedisTemplate<String, Object> template = new RedisTemplate<>();
-        template.setValueSerializer(new GenericJackson2JsonRedisSerializer());
+        template.setValueSerializer(redisSerializer(payloadCodec, objectMapper, properties, beanFactory));
         template.setConnectionFactory(factory);
         return template;
     }
 
     @Bean
-    @ConditionalOnMissingBean
+    @ConditionalOnMissingBean(IdempotencyStore.class)
     @ConditionalOnProperty(name = "idempotency.store", havingValue = "redis")
     public RedisIdempotencyStore redisIdempotencyStore(RedisTemplate<String, Object> redisTemplate) {
         return new RedisIdempotencyStore(redisTemplate);
     }
 
+    // Only the default layout has a reactive twin; with the scripted store, reactive methods use the adapter
+    @Bean
+    @ConditionalOnMissingBean(ReactiveIdempotencyStore.class)
+    @ConditionalOnClass(name = "io.lettuce.core.RedisClient")
+    @ConditionalOnBean(RedisIdempotencyStore.class)
+    public ReactiveRedisIdempotencyStore reactiveRedisIdempotencyStore(ReactiveRedisConnectionFactory factory,
+                                                                       RedisTemplate<String, Object> redisTemplate) {
+        // Lettuce factories are reactive too; the serializers are the blocking store's, so both share keys
+        @SuppressWarnings("unchecked")
+        RedisSerializer<String> keySerializer = (RedisSerializer<String>) redisTemplate.getKeySerializer();
+        @SuppressWarnings("unchecked")
+        RedisSerializer<Object> valueSerializer = (RedisSerializer<Object>) redisTemplate.getValueSerializer();
+        RedisSerializationContext<String, Object> serialization = RedisSerializationContext
+                .<String, Object>newSerializationContext(valueSerializer)
+                .key(keySerializer)
+                .build();
+        return new ReactiveRedisIdempotencyStore(new ReactiveRedisTemplate<>(factory, serialization));
+    }
+
+    @Configuration
+    @ConditionalOnProperty(name = "idempotency.store", havingValue = "redis")
+    static class RedisIdempotencyConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        @ConditionalOnProperty(name = "idempotency.sharding.enabled", havingValue = "true")
+        public RedisShardNodes redisShardNodes(IdempotencyProperties properties) {
+            IdempotencyProperties.Sharding sharding = properties.getSharding();
+            return new RedisShardNodes(sharding.getNodes(), sharding.getTimeout());
+        }
+
+        @Bean
+        @ConditionalOnMissingBean(IdempotencyStore.class)
+        @ConditionalOnBean(RedisShardNodes.class)
+        public ShardedIdempotencyStore shardedIdempotencyStore(RedisShardNodes nodes, PayloadCodec payloadCodec,
+                                                               ObjectMapper objectMapper,
+                                                               IdempotencyProperties properties,
+                                                               BeanFactory beanFactory) {
+            Map<String, IdempotencyStore> shards = new LinkedHashMap<>();
+            nodes.connectionFactories().forEach((name, factory) -> shards.put(name,
+                    redisStore(factory, payloadCodec, objectMapper, properties, beanFactory)));
+            IdempotencyProperties.Sharding sharding = properties.getSharding();
+            return new ShardedIdempotencyStore(shards, sharding.getShardBy(), sharding.getFailurePolicy(),
+                    sharding.getFailureThreshold(), sharding.getRetryAfter());
+        }
+
+        @Bean
+        @ConditionalOnMissingBean(IdempotencyStore.class)
+        @ConditionalOnProperty(name = "idempotency.redis.scripted", havingValue = "true")
+        public ScriptedRedisIdempotencyStore scriptedRedisIdempotencyStore(RedisConnectionFactory factory,
+                                                                           PayloadCodec payloadCodec,
+                                                                           IdempotencyProperties properties) {
+            return new ScriptedRedisIdempotencyStore(factory, payloadCodec, properties.getRedis().isScopeHashTag());
+        }
+
+        private static IdempotencyStore redisStore(RedisConnectionFactory factory, PayloadCodec payloadCodec,
+                                                   ObjectMapper objectMapper, IdempotencyProperties properties,
+                                                   BeanFactory beanFactory) {
+            if (properties.getRedis().isScripted()) {
+                return new ScriptedRedisIdempotencyStore(factory, payloadCodec, properties.getRedis().isScopeHashTag());
+            }
+            RedisTemplate<String, Object> template = new RedisTemplate<>();
+            template.setValueSerializer(redisSerializer(payloadCodec, objectMapper, properties, beanFactory));
+            template.setConnectionFactory(factory);
+            template.afterPropertiesSet();
+            return new RedisIdempotencyStore(template);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(ServerWebExchangeContextFilter.class)
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+    static class ReactiveWebConfiguration {
+
+        // Makes the exchange, and so the key header, visible to @Idempotent methods returning Mono or Flux
+        @Bean
+        @ConditionalOnMissingBean
+        public ServerWebExchangeContextFilter serverWebExchangeContextFilter() {
+            return new ServerWebExchangeContextFilter();
+        }
+    }
+
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(name = "idempotency.capture.enabled", havingValue = "true")
+    static class ResponseCaptureConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public IdempotentResponseCaptureFilter idempotentResponseCaptureFilter(IdempotencyProperties properties) {
+            return new IdempotentResponseCaptureFilter(List.copyOf(properties.getCapture().getHeaders()));
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(DatabaseClient.class)
+    @ConditionalOnProperty(name = "idempotency.store", havingValue = "r2dbc")
+    static class R2dbcIdempotencyConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean(ReactiveIdempotencyStore.class)
+        public R2dbcIdempotencyStore r2dbcIdempotencyStore(ConnectionFactory connectionFactory,
+                                                           PayloadCodec payloadCodec) {
+            return new R2dbcIdempotencyStore(DatabaseClient.create(connectionFactory), payloadCodec);
+        }
+
+        // For @Idempotent methods that are not reactive; they run on request threads, which may block
+        @Bean
+        @ConditionalOnMissingBean(IdempotencyStore.class)
+        public IdempotencyStore r2dbcBlockingIdempotencyStore(ReactiveIdempotencyStore reactiveStore) {
+            return new BlockingIdempotencyStoreAdapter(reactiveStore);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(MeterRegistry.class)
+    @ConditionalOnBean(MeterRegistry.class)
+    @ConditionalOnProperty(name = "idempotency.metrics.enabled", havingValue = "true", matchIfMissing = true)
+    static class IdempotencyMetricsConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public IdempotencyMetrics idempotencyMetrics(MeterRegistry registry) {
+            return new MicrometerIdempotencyMetrics(registry);
+        }
+
+        @Bean
+        @Order(Ordered.HIGHEST_PRECEDENCE)
+        public IdempotencyStoreDecorator meteredIdempotencyStoreDecorator(MeterRegistry registry) {
+            return store -> new MeteredIdempotencyStore(store, registry);
+        }
+
+        @Bean
+        @ConditionalOnMissingBean
+        @ConditionalOnProperty(name = "idempotency.resilience.enabled", havingValue = "true")
+        public StoreResilienceMetrics storeResilienceMetrics(MeterRegistry registry) {
+            return new MicrometerStoreResilienceMetrics(registry);
+        }
+
+        @Bean
+        @ConditionalOnProperty(name = "idempotency.bloom-filter.enabled", havingValue = "true")
+        public MicrometerBloomFilterMetrics bloomFilterMetrics(RotatingBloomFilter filter, MeterRegistry registry) {
+            return new MicrometerBloomFilterMetrics(filter, registry);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnProperty(name = "idempotency.tiered.enabled", havingValue = "true")
+    static class TieredIdempotencyConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean(IdempotencyInvalidationChannel.class)
+        @ConditionalOnProperty(name = "idempotency.tiered.invalidation", havingValue = "redis")
+        public RedisIdempotencyInvalidationChannel redisIdempotencyInvalidationChannel(RedisConnectionFactory factory,
+                                                                                       IdempotencyProperties properties) {
+            return new RedisIdempotencyInvalidationChannel(factory, properties.getTiered().getChannel());
+        }
+
+        // Outside the decorators that talk to the backend, so local hits skip them
+        @Bean
+        @Order(Ordered.LOWEST_PRECEDENCE - 100)
+        public IdempotencyStoreDecorator tieredIdempotencyStoreDecorator(
+                IdempotencyProperties properties, ObjectProvider<IdempotencyInvalidationChannel> invalidation) {
+            IdempotencyProperties.Tiered tiered = properties.getTiered();
+            return store -> new TieredIdempotencyStore(store,
+                    new InMemoryIdempotencyStore(tiered.getMaxEntries(), 0, null, null),
+                    tiered.getMaxLocalTtl(), invalidation.getIfAvailable());
+        }
+    }
+
+    @Configuration
+    @ConditionalOnProperty(name = "idempotency.resilience.enabled", havingValue = "true")
+    static class ResilienceConfiguration {
+
+        // Around the backend and its write-behind queue, inside the near-cache so local hits never wait for it
+        @Bean
+        @Order(Ordered.LOWEST_PRECEDENCE - 200)
+        public IdempotencyStoreDecorator resilientIdempotencyStoreDecorator(
+                IdempotencyProperties properties, ObjectProvider<StoreResilienceMetrics> metrics) {
+            IdempotencyProperties.Resilience resilience = properties.getResilience();
+            IdempotencyProperties.Resilience.Timeout timeout = resilience.getTimeout();
+            Map<ResilientIdempotencyStore.Operation, Duration> timeouts = Map.of(
+                    ResilientIdempotencyStore.Operation.LOOKUP, timeout.getLookup(),
+                    ResilientIdempotencyStore.Operation.ACQUIRE, timeout.getAcquire(),
+                    ResilientIdempotencyStore.Operation.SAVE, timeout.getSave(),
+                    ResilientIdempotencyStore.Operation.RELEASE, timeout.getRelease());
+            IdempotencyProperties.Memory memory = properties.getMemory();
+            return store -> new ResilientIdempotencyStore(store, resilience.getDegradation(),
+                    resilience.getDegradation() == ResilientIdempotencyStore.Degradation.FALLBACK_LOCAL
+                            ? new InMemoryIdempotencyStore(memory.getMaxEntries(), 0, null,
+                            memory.getSweepInterval())
+                            : null,
+                    timeouts, resilience.getFailureThreshold(), resilience.getOpenFor(),
+                    resilience.getMaxConcurrentCalls(), metrics.getIfAvailable(() -> StoreResilienceMetrics.NOOP));
+        }
+    }
+
+    @Configuration
+    @ConditionalOnProperty(name = "idempotency.bloom-filter.enabled", havingValue = "true")
+    static class BloomFilterConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public RotatingBloomFilter idempotencyBloomFilter(IdempotencyProperties properties) {
+            IdempotencyProperties.BloomFilter bloom = properties.getBloomFilter();
+            IdempotencyProperties.BloomFilter.Share share = bloom.getShare();
+            return new RotatingBloomFilter(bloom.getExpectedKeys(), bloom.getFalsePositiveRate(), bloom.getWindow(),
+                    bloom.getGenerations(), share.isEnabled() ? share.getMaxPendingKeys() : 0);
+        }
+
+        @Bean
+        @ConditionalOnProperty(name = "idempotency.bloom-filter.share.enabled", havingValue = "true")
+        public RedisBloomFilterSync redisBloomFilterSync(RedisConnectionFactory factory, RotatingBloomFilter filter,
+                                                         IdempotencyProperties properties) {
+            IdempotencyProperties.BloomFilter.Share share = properties.getBloomFilter().getShare();
+            return new RedisBloomFilterSync(factory, filter, share.getKeyPrefix(), share.getSyncInterval());
+        }
+
+        // Outside the timeouts, so skipped lookups never wait for a slow store; inside the near-cache
+        @Bean
+        @Order(Ordered.LOWEST_PRECEDENCE - 150)
+        public IdempotencyStoreDecorator bloomFilteredIdempotencyStoreDecorator(RotatingBloomFilter filter) {
+            return store -> new BloomFilteredIdempotencyStore(store, filter);
+        }
+    }
+
     @Configuration
     @ConditionalOnProperty(name = "idempotency.store", havingValue = "jpa")
     @EnableJpaRepositories(basePackageClasses = IdempotencyRecordRepository.class)
@@ -72,8 +437,38 @@ public class IdempotencyAutoConfiguration {
 
         @Bean
         @ConditionalOnMissingBean(IdempotencyStore.class)
-        public IdempotencyStore jpaIdempotencyStore(IdempotencyRecordRepository repo, ObjectMapper objectMapper) {
-            return new JpaIdempotencyStore(repo, objectMapper);
+        public JpaIdempotencyStore jpaIdempotencyStore(IdempotencyRecordRepository repo, PayloadCodec payloadCodec,
+                                                       PlatformTransactionManager transactionManager) {
+            return new JpaIdempotencyStore(repo, payloadCodec, transactionManager);
+        }
+
+        @Bean
+        @ConditionalOnMissingBean
+        @ConditionalOnBean(JpaIdempotencyStore.class)
+        @ConditionalOnProperty(name = "idempotency.jpa.purge.enabled", havingValue = "true", matchIfMissing = true)
+        public JpaIdempotencyPurger jpaIdempotencyPurger(JpaIdempotencyStore store, IdempotencyProperties properties) {
+            IdempotencyProperties.Jpa.Purge purge = properties.getJpa().getPurge();
+            return new JpaIdempotencyPurger(store, purge.getInterval(), purge.getBatchSize(), purge.isLock());
+        }
+
+        @Bean
+        @ConditionalOnMissingBean
+        @ConditionalOnProperty(name = "idempotency.jpa.write-behind.enabled", havingValue = "true")
+        public JpaIdempotencyWriteBehind jpaIdempotencyWriteBehind(DataSource dataSource,
+                                                                   PlatformTransactionManager transactionManager,
+                                                                   PayloadCodec payloadCodec,
+                                                                   IdempotencyProperties properties) {
+            IdempotencyProperties.Jpa.WriteBehind writeBehind = properties.getJpa().getWriteBehind();
+            return new JpaIdempotencyWriteBehind(dataSource, transactionManager, payloadCodec,
+                    writeBehind.getCapacity(), writeBehind.getBatchSize(), writeBehind.getFlushInterval());
+        }
+
+        // Just outside the metrics decorator, so store timers measure database calls rather than queueing
+        @Bean
+        @Order(Ordered.HIGHEST_PRECEDENCE + 10)
+        @ConditionalOnBean(JpaIdempotencyWriteBehind.class)
+        public IdempotencyStoreDecorator writeBehindIdempotencyStoreDecorator(JpaIdempotencyWriteBehind writeBehind) {
+            return store -> new WriteBehindIdempotencyStore(store, writeBehind);
         }
     }
 }
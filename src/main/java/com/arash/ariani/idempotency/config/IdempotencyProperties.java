@@ -1,12 +1,40 @@
 package com.arash.ariani.idempotency.config;
 
+import com.arash.ariani.idempotency.codec.PayloadFormat;
+import com.arash.ariani.idempotency.fingerprint.FingerprintAlgorithm;
+import com.arash.ariani.idempotency.store.InMemoryIdempotencyStore;
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore;
+import com.arash.ariani.idempotency.store.ShardedIdempotencyStore;
+import com.arash.ariani.idempotency.store.redis.RedisIdempotencyInvalidationChannel;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 @ConfigurationProperties(prefix = "idempotency")
 public class IdempotencyProperties {
 
     private StoreType store = StoreType.MEMORY;
     private boolean initSchema = false;
+    private final InProgress inProgress = new InProgress();
+    private final Memory memory = new Memory();
+    private final File file = new File();
+    private final Fingerprint fingerprint = new Fingerprint();
+    private final Jpa jpa = new Jpa();
+    private final Tiered tiered = new Tiered();
+    private final Codec codec = new Codec();
+    private final Async async = new Async();
+    private final Redis redis = new Redis();
+    private final Sharding sharding = new Sharding();
+    private final Capture capture = new Capture();
+    private final Resilience resilience = new Resilience();
+    private final BloomFilter bloomFilter = new BloomFilter();
+    private final Startup startup = new Startup();
 
     public boolean isInitSchema() {
         return initSchema;
@@ -24,5 +52,784 @@ public class IdempotencyProperties {
         this.store = store;
     }
 
-    public enum StoreType {MEMORY, REDIS, JPA}
+    public InProgress getInProgress() {
+        return inProgress;
+    }
+
+    public Memory getMemory() {
+        return memory;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Fingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    public Jpa getJpa() {
+        return jpa;
+    }
+
+    public Tiered getTiered() {
+        return tiered;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public Async getAsync() {
+        return async;
+    }
+
+    public Redis getRedis() {
+        return redis;
+    }
+
+    public Sharding getSharding() {
+        return sharding;
+    }
+
+    public Capture getCapture() {
+        return capture;
+    }
+
+    public Resilience getResilience() {
+        return resilience;
+    }
+
+    public BloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    public Startup getStartup() {
+        return startup;
+    }
+
+    public enum StoreType {MEMORY, REDIS, JPA, R2DBC, FILE}
+
+    public static class Fingerprint {
+
+        private FingerprintAlgorithm algorithm = FingerprintAlgorithm.SHA_256;
+
+        public FingerprintAlgorithm getAlgorithm() {
+            return algorithm;
+        }
+
+        public void setAlgorithm(FingerprintAlgorithm algorithm) {
+            this.algorithm = algorithm;
+        }
+    }
+
+    /**
+     * With {@code enabled}, {@code @Idempotent} controller methods store the HTTP response as it was written, with
+     * its status, content type and {@code headers}, and replay those bytes instead of their return value.
+     */
+    public static class Capture {
+
+        private boolean enabled = false;
+        private List<String> headers = new ArrayList<>(List.of(HttpHeaders.LOCATION, HttpHeaders.ETAG,
+                HttpHeaders.LAST_MODIFIED, HttpHeaders.CACHE_CONTROL, HttpHeaders.CONTENT_LANGUAGE,
+                HttpHeaders.CONTENT_DISPOSITION));
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<String> getHeaders() {
+            return headers;
+        }
+
+        public void setHeaders(List<String> headers) {
+            this.headers = headers;
+        }
+    }
+
+    /**
+     * Timeouts and a circuit breaker around the store. Calls that fail, time out or find the circuit open follow
+     * {@code degradation}; {@code FALLBACK_LOCAL} uses an in-memory store sized by the {@code memory} settings.
+     */
+    public static class Resilience {
+
+        private boolean enabled = false;
+        private ResilientIdempotencyStore.Degradation degradation = ResilientIdempotencyStore.Degradation.FAIL_CLOSED;
+        private int failureThreshold = 5;
+        private Duration openFor = Duration.ofSeconds(30);
+        private int maxConcurrentCalls = 200;
+        private final Timeout timeout = new Timeout();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public ResilientIdempotencyStore.Degradation getDegradation() {
+            return degradation;
+        }
+
+        public void setDegradation(ResilientIdempotencyStore.Degradation degradation) {
+            this.degradation = degradation;
+        }
+
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+
+        public Duration getOpenFor() {
+            return openFor;
+        }
+
+        public void setOpenFor(Duration openFor) {
+            this.openFor = openFor;
+        }
+
+        public int getMaxConcurrentCalls() {
+            return maxConcurrentCalls;
+        }
+
+        public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+            this.maxConcurrentCalls = maxConcurrentCalls;
+        }
+
+        public Timeout getTimeout() {
+            return timeout;
+        }
+
+        public static class Timeout {
+
+            private Duration lookup = Duration.ofMillis(500);
+            private Duration acquire = Duration.ofMillis(500);
+            private Duration save = Duration.ofSeconds(1);
+            private Duration release = Duration.ofSeconds(1);
+
+            public Duration getLookup() {
+                return lookup;
+            }
+
+            public void setLookup(Duration lookup) {
+                this.lookup = lookup;
+            }
+
+            public Duration getAcquire() {
+                return acquire;
+            }
+
+            public void setAcquire(Duration acquire) {
+                this.acquire = acquire;
+            }
+
+            public Duration getSave() {
+                return save;
+            }
+
+            public void setSave(Duration save) {
+                this.save = save;
+            }
+
+            public Duration getRelease() {
+                return release;
+            }
+
+            public void setRelease(Duration release) {
+                this.release = release;
+            }
+        }
+    }
+
+    /**
+     * Keys seen within {@code window} are kept in a Bloom filter sized for {@code expectedKeys} per slice of
+     * {@code window / (generations - 1)}, so lookups of new keys skip the store. With {@code share}, nodes exchange
+     * the filter through Redis.
+     */
+    public static class BloomFilter {
+
+        private boolean enabled = false;
+        private long expectedKeys = 1_000_000;
+        private double falsePositiveRate = 0.01;
+        private Duration window = Duration.ofHours(1);
+        private int generations = 4;
+        private final Share share = new Share();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getExpectedKeys() {
+            return expectedKeys;
+        }
+
+        public void setExpectedKeys(long expectedKeys) {
+            this.expectedKeys = expectedKeys;
+        }
+
+        public double getFalsePositiveRate() {
+            return falsePositiveRate;
+        }
+
+        public void setFalsePositiveRate(double falsePositiveRate) {
+            this.falsePositiveRate = falsePositiveRate;
+        }
+
+        public Duration getWindow() {
+            return window;
+        }
+
+        public void setWindow(Duration window) {
+            this.window = window;
+        }
+
+        public int getGenerations() {
+            return generations;
+        }
+
+        public void setGenerations(int generations) {
+            this.generations = generations;
+        }
+
+        public Share getShare() {
+            return share;
+        }
+
+        /**
+         * Keys added on this node are queued, up to {@code maxPendingKeys}, and written to Redis bitmaps every
+         * {@code syncInterval}, when the bitmaps of the other nodes are read back.
+         */
+        public static class Share {
+
+            private boolean enabled = false;
+            private Duration syncInterval = Duration.ofSeconds(5);
+            private String keyPrefix = "idem:bloom";
+            private int maxPendingKeys = 100_000;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public Duration getSyncInterval() {
+                return syncInterval;
+            }
+
+            public void setSyncInterval(Duration syncInterval) {
+                this.syncInterval = syncInterval;
+            }
+
+            public String getKeyPrefix() {
+                return keyPrefix;
+            }
+
+            public void setKeyPrefix(String keyPrefix) {
+                this.keyPrefix = keyPrefix;
+            }
+
+            public int getMaxPendingKeys() {
+                return maxPendingKeys;
+            }
+
+            public void setMaxPendingKeys(int maxPendingKeys) {
+                this.maxPendingKeys = maxPendingKeys;
+            }
+        }
+    }
+
+    /**
+     * How responses are encoded in the Redis and JPA stores.
+     */
+    public static class Codec {
+
+        private PayloadFormat format = PayloadFormat.SMILE;
+        private boolean compress = true;
+        private DataSize compressThreshold = DataSize.ofKilobytes(1);
+        /**
+         * Packages whose classes may be read back from stored payloads, on top of the application's own packages.
+         */
+        private List<String> trustedPackages = new ArrayList<>();
+
+        public PayloadFormat getFormat() {
+            return format;
+        }
+
+        public void setFormat(PayloadFormat format) {
+            this.format = format;
+        }
+
+        public boolean isCompress() {
+            return compress;
+        }
+
+        public void setCompress(boolean compress) {
+            this.compress = compress;
+        }
+
+        public DataSize getCompressThreshold() {
+            return compressThreshold;
+        }
+
+        public void setCompressThreshold(DataSize compressThreshold) {
+            this.compressThreshold = compressThreshold;
+        }
+
+        public List<String> getTrustedPackages() {
+            return trustedPackages;
+        }
+
+        public void setTrustedPackages(List<String> trustedPackages) {
+            this.trustedPackages = trustedPackages;
+        }
+    }
+
+    /**
+     * With {@code scripted}, the Redis store keeps a hash per key and changes it with Lua scripts. Its keys are not
+     * compatible with the default layout, so switching drops the entries stored so far.
+     */
+    public static class Redis {
+
+        private boolean scripted = false;
+        /**
+         * Tags scripted keys with their scope so a scope's keys share a cluster slot. Off by default, because with
+         * the default {@code GLOBAL} scope every key would land on the same slot.
+         */
+        private boolean scopeHashTag = false;
+
+        public boolean isScripted() {
+            return scripted;
+        }
+
+        public void setScripted(boolean scripted) {
+            this.scripted = scripted;
+        }
+
+        public boolean isScopeHashTag() {
+            return scopeHashTag;
+        }
+
+        public void setScopeHashTag(boolean scopeHashTag) {
+            this.scopeHashTag = scopeHashTag;
+        }
+    }
+
+    /**
+     * Spreads Redis keys over the {@code nodes}, Redis URLs by shard name. Names decide which keys a node holds, so
+     * renaming a node moves its keys. A call counts as failed after {@code timeout}; a shard that fails
+     * {@code failureThreshold} calls in a row is skipped for {@code retryAfter}.
+     */
+    public static class Sharding {
+
+        private boolean enabled = false;
+        private Map<String, String> nodes = new LinkedHashMap<>();
+        private ShardedIdempotencyStore.ShardBy shardBy = ShardedIdempotencyStore.ShardBy.KEY;
+        private ShardedIdempotencyStore.FailurePolicy failurePolicy = ShardedIdempotencyStore.FailurePolicy.FAIL_CLOSED;
+        private Duration timeout = Duration.ofSeconds(1);
+        private int failureThreshold = 3;
+        private Duration retryAfter = Duration.ofSeconds(10);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Map<String, String> getNodes() {
+            return nodes;
+        }
+
+        public void setNodes(Map<String, String> nodes) {
+            this.nodes = nodes;
+        }
+
+        public ShardedIdempotencyStore.ShardBy getShardBy() {
+            return shardBy;
+        }
+
+        public void setShardBy(ShardedIdempotencyStore.ShardBy shardBy) {
+            this.shardBy = shardBy;
+        }
+
+        public ShardedIdempotencyStore.FailurePolicy getFailurePolicy() {
+            return failurePolicy;
+        }
+
+        public void setFailurePolicy(ShardedIdempotencyStore.FailurePolicy failurePolicy) {
+            this.failurePolicy = failurePolicy;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+
+        public void setRetryAfter(Duration retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /**
+     * Threads for blocking store calls made on behalf of {@code Mono}, {@code Flux} and {@code CompletableFuture}
+     * methods. Virtual threads need Java 21.
+     */
+    public static class Async {
+
+        private boolean virtualThreads = false;
+
+        public boolean isVirtualThreads() {
+            return virtualThreads;
+        }
+
+        public void setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+        }
+    }
+
+    /**
+     * Local cache of completed responses in front of the configured store.
+     */
+    public static class Tiered {
+
+        private boolean enabled = false;
+        private long maxEntries = 10_000;
+        private Duration maxLocalTtl = Duration.ofMinutes(1);
+        private Invalidation invalidation = Invalidation.NONE;
+        private String channel = RedisIdempotencyInvalidationChannel.DEFAULT_CHANNEL;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxEntries() {
+            return maxEntries;
+        }
+
+        public void setMaxEntries(long maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        public Duration getMaxLocalTtl() {
+            return maxLocalTtl;
+        }
+
+        public void setMaxLocalTtl(Duration maxLocalTtl) {
+            this.maxLocalTtl = maxLocalTtl;
+        }
+
+        public Invalidation getInvalidation() {
+            return invalidation;
+        }
+
+        public void setInvalidation(Invalidation invalidation) {
+            this.invalidation = invalidation;
+        }
+
+        public String getChannel() {
+            return channel;
+        }
+
+        public void setChannel(String channel) {
+            this.channel = channel;
+        }
+
+        public enum Invalidation {
+            NONE,  // Local entries are trusted for at most max-local-ttl
+            REDIS  // Saves and releases are broadcast over Redis pub/sub
+        }
+    }
+
+    public static class Jpa {
+
+        private final Purge purge = new Purge();
+        private final WriteBehind writeBehind = new WriteBehind();
+
+        public Purge getPurge() {
+            return purge;
+        }
+
+        public WriteBehind getWriteBehind() {
+            return writeBehind;
+        }
+
+        /**
+         * Completed responses are queued and written in batches. When the queue is full they are saved right away.
+         */
+        public static class WriteBehind {
+
+            private boolean enabled = false;
+            private int capacity = 10_000;
+            private int batchSize = 500;
+            private Duration flushInterval = Duration.ofMillis(200);
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public int getCapacity() {
+                return capacity;
+            }
+
+            public void setCapacity(int capacity) {
+                this.capacity = capacity;
+            }
+
+            public int getBatchSize() {
+                return batchSize;
+            }
+
+            public void setBatchSize(int batchSize) {
+                this.batchSize = batchSize;
+            }
+
+            public Duration getFlushInterval() {
+                return flushInterval;
+            }
+
+            public void setFlushInterval(Duration flushInterval) {
+                this.flushInterval = flushInterval;
+            }
+        }
+
+        /**
+         * Background deletion of expired rows. With {@code lock} only one node purges per interval.
+         */
+        public static class Purge {
+
+            private boolean enabled = true;
+            private Duration interval = Duration.ofMinutes(5);
+            private int batchSize = 1000;
+            private boolean lock = true;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public Duration getInterval() {
+                return interval;
+            }
+
+            public void setInterval(Duration interval) {
+                this.interval = interval;
+            }
+
+            public int getBatchSize() {
+                return batchSize;
+            }
+
+            public void setBatchSize(int batchSize) {
+                this.batchSize = batchSize;
+            }
+
+            public boolean isLock() {
+                return lock;
+            }
+
+            public void setLock(boolean lock) {
+                this.lock = lock;
+            }
+        }
+    }
+
+    /**
+     * Limits for the in-memory store. A limit of {@code 0} disables it.
+     */
+    public static class Memory {
+
+        private long maxEntries = InMemoryIdempotencyStore.DEFAULT_MAX_ENTRIES;
+        private long maxWeight = 0;
+        private Duration sweepInterval = InMemoryIdempotencyStore.DEFAULT_SWEEP_INTERVAL;
+
+        public long getMaxEntries() {
+            return maxEntries;
+        }
+
+        public void setMaxEntries(long maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        public long getMaxWeight() {
+            return maxWeight;
+        }
+
+        public void setMaxWeight(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        public Duration getSweepInterval() {
+            return sweepInterval;
+        }
+
+        public void setSweepInterval(Duration sweepInterval) {
+            this.sweepInterval = sweepInterval;
+        }
+    }
+
+    /**
+     * Settings for the memory-mapped file store. A relative directory is resolved against the working directory.
+     */
+    public static class File {
+
+        private String directory = "idempotency-store";
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+        private Duration compactionInterval = Duration.ofMinutes(1);
+        private double compactionThreshold = 0.5;
+        private Duration snapshotInterval = Duration.ofMinutes(1);
+        private boolean force = false;
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public DataSize getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(DataSize segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public Duration getCompactionInterval() {
+            return compactionInterval;
+        }
+
+        public void setCompactionInterval(Duration compactionInterval) {
+            this.compactionInterval = compactionInterval;
+        }
+
+        public double getCompactionThreshold() {
+            return compactionThreshold;
+        }
+
+        public void setCompactionThreshold(double compactionThreshold) {
+            this.compactionThreshold = compactionThreshold;
+        }
+
+        public Duration getSnapshotInterval() {
+            return snapshotInterval;
+        }
+
+        public void setSnapshotInterval(Duration snapshotInterval) {
+            this.snapshotInterval = snapshotInterval;
+        }
+
+        public boolean isForce() {
+            return force;
+        }
+
+        public void setForce(boolean force) {
+            this.force = force;
+        }
+    }
+
+    /**
+     * Checks made once all beans are created. Every {@code @Idempotent} method is validated and prepared up front,
+     * and the store is called once so that it opens its connections before the first request.
+     */
+    public static class Startup {
+
+        private boolean failFast = true;
+        private boolean warmUp = true;
+
+        /**
+         * Whether an invalid {@code @Idempotent} method stops the application from starting, instead of a warning
+         * and failing its requests.
+         */
+        public boolean isFailFast() {
+            return failFast;
+        }
+
+        public void setFailFast(boolean failFast) {
+            this.failFast = failFast;
+        }
+
+        public boolean isWarmUp() {
+            return warmUp;
+        }
+
+        public void setWarmUp(boolean warmUp) {
+            this.warmUp = warmUp;
+        }
+    }
+
+    /**
+     * Settings for requests that find their key claimed by a request that is still running.
+     */
+    public static class InProgress {
+
+        private Duration waitTimeout = Duration.ofSeconds(10);
+        private Duration pollInterval = Duration.ofMillis(50);
+        private Duration retryAfter = Duration.ofSeconds(1);
+
+        public Duration getWaitTimeout() {
+            return waitTimeout;
+        }
+
+        public void setWaitTimeout(Duration waitTimeout) {
+            this.waitTimeout = waitTimeout;
+        }
+
+        public Duration getPollInterval() {
+            return pollInterval;
+        }
+
+        public void setPollInterval(Duration pollInterval) {
+            this.pollInterval = pollInterval;
+        }
+
+        public Duration getRetryAfter() {
+            return retryAfter;
+        }
+
+        public void setRetryAfter(Duration retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+    }
 }
@@ -0,0 +1,20 @@
+package com.arash.ariani.idempotency.config;
+
+import com.arash.ariani.idempotency.web.CapturedResponse;
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+
+/**
+ * Native image hints for what the starter reads or stores on its own. Hints for the {@code @Idempotent} methods of
+ * the application are registered per bean while it is processed ahead of time.
+ */
+class IdempotencyRuntimeHints implements RuntimeHintsRegistrar {
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        hints.resources().registerPattern("schema.sql");
+        // Stored through the payload codec when HTTP responses are captured
+        new BindingReflectionHintsRegistrar().registerReflectionHints(hints.reflection(), CapturedResponse.class);
+    }
+}
@@ -1,5 +1,9 @@
 package com.arash.ariani.idempotency.conflict;
 
+/**
+ * Called for {@link ConflictHandling#CUSTOM}. {@code newResponse} is the new result when responses are hashed,
+ * or the new request payload when requests are hashed.
+ */
 public interface IdempotencyConflictResolver {
     void resolve(String key, Object existingResponse, Object newResponse);
 }
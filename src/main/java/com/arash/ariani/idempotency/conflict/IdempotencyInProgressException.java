@@ -0,0 +1,36 @@
+package com.arash.ariani.idempotency.conflict;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+
+/**
+ * Raised when a request arrives while another request with the same idempotency key is still executing.
+ */
+public class IdempotencyInProgressException extends ResponseStatusException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    public IdempotencyInProgressException(HttpStatus status, Duration retryAfter) {
+        super(status, "Request with the same idempotency key is still in progress");
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        if (retryAfter == null) {
+            return super.getHeaders();
+        }
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, retryAfter.toSeconds())));
+        return headers;
+    }
+}
@@ -0,0 +1,7 @@
+package com.arash.ariani.idempotency.conflict;
+
+public enum InProgressHandling {
+    WAIT,          // Poll until the first request completes, then replay its response
+    THROW_409,     // Throw 409 while the first request is still running
+    THROW_425      // Throw 425 Too Early with a Retry-After header
+}
@@ -0,0 +1,6 @@
+package com.arash.ariani.idempotency.fingerprint;
+
+public enum FingerprintAlgorithm {
+    SHA_256,       // Cryptographic, 256-bit
+    MURMUR3_128    // Non-cryptographic, 128-bit, several times faster
+}
@@ -0,0 +1,43 @@
+package com.arash.ariani.idempotency.fingerprint;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.HexFormat;
+import java.util.function.Supplier;
+
+/**
+ * Hashes the JSON form of a value. Jackson writes straight into a per-thread hashing sink, so no intermediate
+ * byte array of the serialized value is ever built, and the sink is safe to use from any number of threads.
+ */
+public class Fingerprinter {
+
+    private final ObjectMapper objectMapper;
+    private final FingerprintAlgorithm algorithm;
+    private final ThreadLocal<HashingOutputStream> sinks;
+
+    public Fingerprinter(ObjectMapper objectMapper, FingerprintAlgorithm algorithm) {
+        this.objectMapper = objectMapper;
+        this.algorithm = algorithm;
+        Supplier<HashingOutputStream> factory = switch (algorithm) {
+            case SHA_256 -> () -> new MessageDigestOutputStream("SHA-256");
+            case MURMUR3_128 -> Murmur3OutputStream::new;
+        };
+        this.sinks = ThreadLocal.withInitial(factory);
+    }
+
+    public FingerprintAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public String fingerprint(Object value) {
+        HashingOutputStream sink = sinks.get();
+        sink.reset();
+        try {
+            objectMapper.writeValue(sink, value);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to fingerprint value", e);
+        }
+        return HexFormat.of().formatHex(sink.hash());
+    }
+}
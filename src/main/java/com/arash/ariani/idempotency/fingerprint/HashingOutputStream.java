@@ -0,0 +1,27 @@
+package com.arash.ariani.idempotency.fingerprint;
+
+import java.io.OutputStream;
+
+/**
+ * Sink that hashes everything written to it without keeping the bytes. Instances are reused per thread,
+ * so {@link #reset()} must be called before each use.
+ */
+abstract class HashingOutputStream extends OutputStream {
+
+    abstract void reset();
+
+    abstract byte[] hash();
+
+    @Override
+    public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public abstract void write(byte[] bytes, int offset, int length);
+
+    @Override
+    public void close() {
+        // Jackson closes its target; the sink is reused, so there is nothing to release
+    }
+}
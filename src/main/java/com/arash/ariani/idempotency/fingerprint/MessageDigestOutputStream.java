@@ -0,0 +1,37 @@
+package com.arash.ariani.idempotency.fingerprint;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+class MessageDigestOutputStream extends HashingOutputStream {
+
+    private final MessageDigest digest;
+
+    MessageDigestOutputStream(String algorithm) {
+        try {
+            this.digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Digest algorithm not available: " + algorithm, e);
+        }
+    }
+
+    @Override
+    void reset() {
+        digest.reset();
+    }
+
+    @Override
+    byte[] hash() {
+        return digest.digest();
+    }
+
+    @Override
+    public void write(int b) {
+        digest.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        digest.update(bytes, offset, length);
+    }
+}
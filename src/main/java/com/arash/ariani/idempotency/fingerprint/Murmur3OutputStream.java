@@ -0,0 +1,135 @@
+package com.arash.ariani.idempotency.fingerprint;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming MurmurHash3 x64 128-bit (seed 0). Input is consumed in 16-byte blocks as it arrives; only a
+ * partial block is buffered between writes.
+ */
+class Murmur3OutputStream extends HashingOutputStream {
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final int BLOCK = 16;
+
+    private final byte[] tail = new byte[BLOCK];
+    private int tailLength;
+    private long h1;
+    private long h2;
+    private long length;
+
+    @Override
+    void reset() {
+        tailLength = 0;
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+    }
+
+    @Override
+    public void write(int b) {
+        tail[tailLength++] = (byte) b;
+        length++;
+        if (tailLength == BLOCK) {
+            mixBlock(tail, 0);
+            tailLength = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) {
+        length += count;
+        if (tailLength > 0) {
+            int fill = Math.min(BLOCK - tailLength, count);
+            System.arraycopy(bytes, offset, tail, tailLength, fill);
+            tailLength += fill;
+            offset += fill;
+            count -= fill;
+            if (tailLength < BLOCK) {
+                return;
+            }
+            mixBlock(tail, 0);
+            tailLength = 0;
+        }
+        while (count >= BLOCK) {
+            mixBlock(bytes, offset);
+            offset += BLOCK;
+            count -= BLOCK;
+        }
+        if (count > 0) {
+            System.arraycopy(bytes, offset, tail, 0, count);
+            tailLength = count;
+        }
+    }
+
+    @Override
+    byte[] hash() {
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = tailLength - 1; i >= 8; i--) {
+            k2 ^= (tail[i] & 0xffL) << ((i - 8) * 8);
+        }
+        if (tailLength > 8) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        for (int i = Math.min(tailLength, 8) - 1; i >= 0; i--) {
+            k1 ^= (tail[i] & 0xffL) << (i * 8);
+        }
+        if (tailLength > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        long r1 = h1 ^ length;
+        long r2 = h2 ^ length;
+        r1 += r2;
+        r2 += r1;
+        r1 = fmix64(r1);
+        r2 = fmix64(r2);
+        r1 += r2;
+        r2 += r1;
+
+        byte[] result = new byte[BLOCK];
+        LONG_LE.set(result, 0, r1);
+        LONG_LE.set(result, 8, r2);
+        return result;
+    }
+
+    private void mixBlock(byte[] bytes, int offset) {
+        long k1 = (long) LONG_LE.get(bytes, offset);
+        long k2 = (long) LONG_LE.get(bytes, offset + 8);
+
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
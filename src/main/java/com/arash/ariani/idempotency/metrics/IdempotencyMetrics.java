@@ -0,0 +1,20 @@
+package com.arash.ariani.idempotency.metrics;
+
+/**
+ * Receives the outcome of every {@code @Idempotent} invocation. Kept free of Micrometer types so the aspect works
+ * without Micrometer on the classpath; {@link #NOOP} is used when metrics are disabled.
+ */
+public interface IdempotencyMetrics {
+
+    IdempotencyMetrics NOOP = (method, outcome) -> {
+    };
+
+    void record(String method, Outcome outcome);
+
+    enum Outcome {
+        HIT,          // Stored response replayed
+        MISS,         // Method executed and its response stored
+        CONFLICT,     // Replay did not match the stored fingerprint
+        IN_PROGRESS   // Key was claimed by a running request
+    }
+}
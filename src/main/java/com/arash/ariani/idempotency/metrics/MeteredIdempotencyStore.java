@@ -0,0 +1,138 @@
+package com.arash.ariani.idempotency.metrics;
+
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.IdempotencyStoreDecorator;
+import com.arash.ariani.idempotency.store.InMemoryIdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Times every call to the wrapped store in {@code idempotency.store}, tagged by {@code store} type and
+ * {@code operation}. For the in-memory store it also registers size, eviction and expiration meters.
+ */
+public class MeteredIdempotencyStore implements IdempotencyStore, AutoCloseable {
+
+    private final IdempotencyStore delegate;
+    private final Timer lookupTimer;
+    private final Timer lookupAllTimer;
+    private final Timer getTimer;
+    private final Timer saveTimer;
+    private final Timer acquireTimer;
+    private final Timer acquireAllTimer;
+    private final Timer saveAllTimer;
+    private final Timer releaseTimer;
+
+    public MeteredIdempotencyStore(IdempotencyStore delegate, MeterRegistry registry) {
+        this.delegate = delegate;
+        String storeType = delegate.getClass().getSimpleName();
+        this.lookupTimer = timer(registry, storeType, "lookup");
+        this.lookupAllTimer = timer(registry, storeType, "lookupAll");
+        this.getTimer = timer(registry, storeType, "get");
+        this.saveTimer = timer(registry, storeType, "save");
+        this.acquireTimer = timer(registry, storeType, "tryAcquire");
+        this.acquireAllTimer = timer(registry, storeType, "tryAcquireAll");
+        this.saveAllTimer = timer(registry, storeType, "saveAll");
+        this.releaseTimer = timer(registry, storeType, "release");
+        if (delegate instanceof InMemoryIdempotencyStore memoryStore) {
+            bindInMemoryStats(memoryStore, registry);
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return lookup(key).isCompleted();
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        saveTimer.record(() -> delegate.save(key, response, ttl));
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        saveTimer.record(() -> delegate.save(key, response, fingerprint, ttl));
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return getTimer.record(() -> delegate.get(key));
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        return lookupTimer.record(() -> delegate.lookup(key));
+    }
+
+    @Override
+    public Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        return lookupAllTimer.record(() -> delegate.lookupAll(keys));
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        return acquireTimer.record(() -> delegate.tryAcquire(key, leaseTtl));
+    }
+
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        return acquireAllTimer.record(() -> delegate.tryAcquireAll(keys, leaseTtl));
+    }
+
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        saveAllTimer.record(() -> delegate.saveAll(responses, fingerprints, ttl));
+    }
+
+    @Override
+    public void release(String key) {
+        releaseTimer.record(() -> delegate.release(key));
+    }
+
+    @Override
+    public void release(String key, String token) {
+        releaseTimer.record(() -> delegate.release(key, token));
+    }
+
+    @Override
+    public void warmUp() {
+        // Not timed, a slow first call is what warming up is for
+        delegate.warmUp();
+    }
+
+    @Override
+    public void close() {
+        IdempotencyStoreDecorator.close(delegate);
+    }
+
+    private static Timer timer(MeterRegistry registry, String storeType, String operation) {
+        return Timer.builder("idempotency.store")
+                .description("Latency of idempotency store operations")
+                .tag("store", storeType)
+                .tag("operation", operation)
+                .register(registry);
+    }
+
+    private static void bindInMemoryStats(InMemoryIdempotencyStore store, MeterRegistry registry) {
+        Gauge.builder("idempotency.store.memory.size", store, s -> s.stats().size())
+                .description("Entries held by the in-memory idempotency store")
+                .register(registry);
+        Gauge.builder("idempotency.store.memory.weight", store, s -> s.stats().weight())
+                .description("Total weight of the in-memory idempotency store")
+                .register(registry);
+        FunctionCounter.builder("idempotency.store.memory.evictions", store, s -> s.stats().evictions())
+                .description("Entries evicted because the in-memory store was full")
+                .register(registry);
+        FunctionCounter.builder("idempotency.store.memory.expirations", store, s -> s.stats().expirations())
+                .description("Entries removed from the in-memory store after their TTL")
+                .register(registry);
+    }
+}
@@ -0,0 +1,36 @@
+package com.arash.ariani.idempotency.metrics;
+
+import com.arash.ariani.idempotency.store.RotatingBloomFilter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Registers the size and accuracy of a {@link RotatingBloomFilter}: {@code idempotency.bloom.memory} in bytes, the
+ * estimated {@code idempotency.bloom.false.positive.rate} of its current fill, and {@code idempotency.bloom.lookups}
+ * tagged by {@code result}, where {@code false_positive} counts checked keys the store did not know either.
+ */
+public class MicrometerBloomFilterMetrics {
+
+    public MicrometerBloomFilterMetrics(RotatingBloomFilter filter, MeterRegistry registry) {
+        Gauge.builder("idempotency.bloom.memory", filter, f -> f.stats().memoryBytes())
+                .description("Memory held by the idempotency Bloom filter")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("idempotency.bloom.false.positive.rate", filter, f -> f.stats().falsePositiveRate())
+                .description("Estimated false positive rate of the idempotency Bloom filter")
+                .register(registry);
+        FunctionCounter.builder("idempotency.bloom.lookups", filter, f -> f.stats().skipped())
+                .description("Idempotency store lookups by whether the Bloom filter skipped them")
+                .tag("result", "skipped")
+                .register(registry);
+        FunctionCounter.builder("idempotency.bloom.lookups", filter, f -> f.stats().checked())
+                .description("Idempotency store lookups by whether the Bloom filter skipped them")
+                .tag("result", "checked")
+                .register(registry);
+        FunctionCounter.builder("idempotency.bloom.lookups", filter, f -> f.stats().falsePositives())
+                .description("Idempotency store lookups by whether the Bloom filter skipped them")
+                .tag("result", "false_positive")
+                .register(registry);
+    }
+}
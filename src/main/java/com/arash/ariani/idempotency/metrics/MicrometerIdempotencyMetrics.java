@@ -0,0 +1,40 @@
+package com.arash.ariani.idempotency.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts invocations in {@code idempotency.requests}, tagged by {@code method} and {@code outcome}. Counters are
+ * created once per method and reused, so recording is a map read and an increment.
+ */
+public class MicrometerIdempotencyMetrics implements IdempotencyMetrics {
+
+    private final MeterRegistry registry;
+    private final Map<String, Map<Outcome, Counter>> counters = new ConcurrentHashMap<>();
+
+    public MicrometerIdempotencyMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void record(String method, Outcome outcome) {
+        counters.computeIfAbsent(method, this::createCounters).get(outcome).increment();
+    }
+
+    private Map<Outcome, Counter> createCounters(String method) {
+        Map<Outcome, Counter> byOutcome = new EnumMap<>(Outcome.class);
+        for (Outcome outcome : Outcome.values()) {
+            byOutcome.put(outcome, Counter.builder("idempotency.requests")
+                    .description("Idempotent invocations by outcome")
+                    .tag("method", method)
+                    .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                    .register(registry));
+        }
+        return byOutcome;
+    }
+}
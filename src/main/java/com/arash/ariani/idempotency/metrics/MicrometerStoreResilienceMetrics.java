@@ -0,0 +1,69 @@
+package com.arash.ariani.idempotency.metrics;
+
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore.Cause;
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore.Operation;
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore.State;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts circuit transitions in {@code idempotency.store.circuit.transitions}, tagged by {@code from} and {@code to},
+ * and degraded calls in {@code idempotency.store.degraded}, tagged by {@code operation} and {@code cause}.
+ * {@code idempotency.store.circuit.state} is 0 while closed, 1 while half-open and 2 while open.
+ */
+public class MicrometerStoreResilienceMetrics implements StoreResilienceMetrics {
+
+    private final MeterRegistry registry;
+    private final AtomicInteger state = new AtomicInteger();
+    private final Map<Operation, Map<Cause, Counter>> degraded = new EnumMap<>(Operation.class);
+
+    public MicrometerStoreResilienceMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        // Created up front, degraded calls pile up exactly when the store is in trouble
+        for (Operation operation : Operation.values()) {
+            Map<Cause, Counter> byCause = new EnumMap<>(Cause.class);
+            for (Cause cause : Cause.values()) {
+                byCause.put(cause, Counter.builder("idempotency.store.degraded")
+                        .description("Idempotency store calls that were degraded instead of answered")
+                        .tag("operation", name(operation))
+                        .tag("cause", name(cause))
+                        .register(registry));
+            }
+            degraded.put(operation, byCause);
+        }
+        Gauge.builder("idempotency.store.circuit.state", state, AtomicInteger::get)
+                .description("Circuit state of the idempotency store: 0 closed, 1 half-open, 2 open")
+                .register(registry);
+    }
+
+    @Override
+    public void stateChanged(State from, State to) {
+        state.set(switch (to) {
+            case CLOSED -> 0;
+            case HALF_OPEN -> 1;
+            case OPEN -> 2;
+        });
+        // Looked up per transition, which is rare
+        Counter.builder("idempotency.store.circuit.transitions")
+                .description("Circuit state changes of the idempotency store")
+                .tag("from", name(from))
+                .tag("to", name(to))
+                .register(registry)
+                .increment();
+    }
+
+    @Override
+    public void degraded(Operation operation, Cause cause) {
+        degraded.get(operation).get(cause).increment();
+    }
+
+    private static String name(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,19 @@
+package com.arash.ariani.idempotency.metrics;
+
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore;
+
+/**
+ * Receives circuit transitions and degraded calls of a {@link ResilientIdempotencyStore}. Kept free of Micrometer
+ * types like {@link IdempotencyMetrics}; {@link #NOOP} is used when metrics are disabled.
+ */
+public interface StoreResilienceMetrics {
+
+    StoreResilienceMetrics NOOP = new StoreResilienceMetrics() {
+    };
+
+    default void stateChanged(ResilientIdempotencyStore.State from, ResilientIdempotencyStore.State to) {
+    }
+
+    default void degraded(ResilientIdempotencyStore.Operation operation, ResilientIdempotencyStore.Cause cause) {
+    }
+}
@@ -0,0 +1,39 @@
+package com.arash.ariani.idempotency.store;
+
+/**
+ * Outcome of {@link IdempotencyStore#tryAcquire}. Only a {@link Status#NEW} result makes the caller the owner
+ * of the key; the owner must either {@link IdempotencyStore#save save} a response or
+ * {@link IdempotencyStore#release(String, String) release} the claim with its {@code token}. Stores that do not
+ * tell claims apart leave the token {@code null}.
+ */
+public record AcquireResult(Status status, Object response, String fingerprint, String token) {
+
+    private static final AcquireResult NEW = new AcquireResult(Status.NEW, null, null, null);
+    private static final AcquireResult IN_PROGRESS = new AcquireResult(Status.IN_PROGRESS, null, null, null);
+
+    public static AcquireResult acquired() {
+        return NEW;
+    }
+
+    public static AcquireResult acquired(String token) {
+        return new AcquireResult(Status.NEW, null, null, token);
+    }
+
+    public static AcquireResult inProgress() {
+        return IN_PROGRESS;
+    }
+
+    public static AcquireResult completed(Object response) {
+        return completed(response, null);
+    }
+
+    public static AcquireResult completed(Object response, String fingerprint) {
+        return new AcquireResult(Status.COMPLETED, response, fingerprint, null);
+    }
+
+    public enum Status {
+        NEW,          // Key was free, caller now holds the claim
+        IN_PROGRESS,  // Another caller holds a live claim
+        COMPLETED     // A response is already stored for the key
+    }
+}
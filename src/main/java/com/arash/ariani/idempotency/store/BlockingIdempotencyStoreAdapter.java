@@ -0,0 +1,52 @@
+package com.arash.ariani.idempotency.store;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Exposes a {@link ReactiveIdempotencyStore} as a blocking {@link IdempotencyStore}, for {@code @Idempotent}
+ * methods that do not return a publisher. It blocks the calling thread, so it must not be used on an event loop.
+ */
+public class BlockingIdempotencyStoreAdapter implements IdempotencyStore {
+
+    private final ReactiveIdempotencyStore delegate;
+
+    public BlockingIdempotencyStoreAdapter(ReactiveIdempotencyStore delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        delegate.save(key, response, fingerprint, ttl).block();
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        return delegate.lookup(key).blockOptional().orElseGet(LookupResult::miss);
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        return delegate.tryAcquire(key, leaseTtl).block();
+    }
+
+    @Override
+    public void release(String key) {
+        delegate.release(key).block();
+    }
+
+    @Override
+    public void release(String key, String token) {
+        delegate.release(key, token).block();
+    }
+}
@@ -0,0 +1,118 @@
+package com.arash.ariani.idempotency.store;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Answers lookups of keys that a {@link RotatingBloomFilter} has never seen as misses, without asking the store.
+ * Keys enter the filter when they are claimed or saved.
+ * <p>
+ * Claims always go to the store, so the aspect stays correct even when the filter misses a key, for example one
+ * saved by another node that does not share the filter: the claim then finds the stored response. Other callers
+ * of {@link #lookup} only see such keys once the filter is shared.
+ */
+public class BloomFilteredIdempotencyStore implements IdempotencyStore, AutoCloseable {
+
+    private final IdempotencyStore delegate;
+    private final RotatingBloomFilter filter;
+
+    public BloomFilteredIdempotencyStore(IdempotencyStore delegate, RotatingBloomFilter filter) {
+        this.delegate = delegate;
+        this.filter = filter;
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        delegate.save(key, response, fingerprint, ttl);
+        filter.put(key);
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        if (!filter.mightContain(key)) {
+            filter.recordSkipped();
+            return LookupResult.miss();
+        }
+        LookupResult result = delegate.lookup(key);
+        filter.recordChecked(result.status() == LookupResult.Status.MISS);
+        return result;
+    }
+
+    @Override
+    public Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        Map<String, LookupResult> results = new LinkedHashMap<>();
+        List<String> seen = new ArrayList<>();
+        for (String key : keys) {
+            // Keys the filter might know hold their position with null until the store fills them in
+            boolean mightContain = filter.mightContain(key);
+            results.put(key, mightContain ? null : LookupResult.miss());
+            if (mightContain) {
+                seen.add(key);
+            } else {
+                filter.recordSkipped();
+            }
+        }
+        if (!seen.isEmpty()) {
+            Map<String, LookupResult> stored = delegate.lookupAll(seen);
+            stored.values().forEach(result -> filter.recordChecked(result.status() == LookupResult.Status.MISS));
+            results.putAll(stored);
+        }
+        return results;
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        AcquireResult result = delegate.tryAcquire(key, leaseTtl);
+        filter.put(key);
+        return result;
+    }
+
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        Map<String, AcquireResult> results = delegate.tryAcquireAll(keys, leaseTtl);
+        keys.forEach(filter::put);
+        return results;
+    }
+
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        delegate.saveAll(responses, fingerprints, ttl);
+        responses.keySet().forEach(filter::put);
+    }
+
+    @Override
+    public void release(String key) {
+        // The key stays in the filter, which only costs a store lookup if it comes back
+        delegate.release(key);
+    }
+
+    @Override
+    public void release(String key, String token) {
+        delegate.release(key, token);
+    }
+
+    @Override
+    public void warmUp() {
+        delegate.warmUp();
+    }
+
+    @Override
+    public void close() {
+        IdempotencyStoreDecorator.close(delegate);
+    }
+}
@@ -0,0 +1,34 @@
+package com.arash.ariani.idempotency.store;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Millisecond clock refreshed by a single daemon thread every {@value #RESOLUTION_MILLIS} ms. Hot paths read a
+ * volatile field instead of calling {@link System#currentTimeMillis()}; TTLs are coarse enough that the lag
+ * does not matter.
+ */
+public final class CoarseClock {
+
+    private static final long RESOLUTION_MILLIS = 5;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> now = System.currentTimeMillis(),
+                RESOLUTION_MILLIS, RESOLUTION_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private CoarseClock() {
+    }
+
+    public static long millis() {
+        return now;
+    }
+}
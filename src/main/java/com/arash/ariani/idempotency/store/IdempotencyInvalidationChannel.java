@@ -0,0 +1,14 @@
+package com.arash.ariani.idempotency.store;
+
+import java.util.function.Consumer;
+
+/**
+ * Broadcasts keys whose stored state changed, so that nodes holding a local copy of the key can drop it.
+ * Implementations must not deliver a node's own messages back to it.
+ */
+public interface IdempotencyInvalidationChannel {
+
+    void publish(String key);
+
+    void subscribe(Consumer<String> listener);
+}
@@ -1,12 +1,103 @@
 package com.arash.ariani.idempotency.store;
 
 import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 
 public interface IdempotencyStore {
-    boolean exists(String key);
+    default boolean exists(String key) {
+        return lookup(key).isCompleted();
+    }
 
     void save(String key, Object response, Duration ttl);
 
+    /**
+     * Saves a response together with its fingerprint, so replays can compare hashes without re-hashing the
+     * stored response. Stores that cannot keep the fingerprint fall back to {@link #save(String, Object, Duration)}.
+     */
+    default void save(String key, Object response, String fingerprint, Duration ttl) {
+        save(key, response, ttl);
+    }
+
     Optional<Object> get(String key);
+
+    /**
+     * Reads the state of {@code key} in a single round trip to the backend. The default implementation
+     * delegates to {@link #get} so custom stores keep working; built-in stores override it.
+     */
+    default LookupResult lookup(String key) {
+        return get(key).map(LookupResult::completed).orElseGet(LookupResult::miss);
+    }
+
+    /**
+     * Reads the state of several keys at once, e.g. when one request makes several idempotency checks. Stores that
+     * can batch or pipeline the reads override it; the default looks the keys up one by one.
+     *
+     * @return the state of every key, in the order of {@code keys}
+     */
+    default Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        Map<String, LookupResult> results = new LinkedHashMap<>();
+        for (String key : keys) {
+            results.put(key, lookup(key));
+        }
+        return results;
+    }
+
+    /**
+     * Atomically claims {@code key} for {@code leaseTtl} unless it is already claimed or completed.
+     * The default implementation is not atomic and only exists so custom stores keep working;
+     * built-in stores override it.
+     */
+    default AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        return get(key).map(AcquireResult::completed).orElseGet(AcquireResult::acquired);
+    }
+
+    /**
+     * Claims several keys at once, e.g. for the items of a bulk request, with the same outcome per key as
+     * {@link #tryAcquire}. Stores that can batch or pipeline the claims override it; the default claims the keys
+     * one by one.
+     *
+     * @return the outcome for every key, in the order of {@code keys}
+     */
+    default Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        for (String key : keys) {
+            results.put(key, tryAcquire(key, leaseTtl));
+        }
+        return results;
+    }
+
+    /**
+     * Saves several responses at once, as {@link #save(String, Object, String, Duration)} saves one. Responses may
+     * be {@code null}; fingerprints are looked up by key and may be missing. Stores that can batch the writes
+     * override it; the default saves the responses one by one.
+     */
+    default void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        responses.forEach((key, response) -> save(key, response, fingerprints.get(key), ttl));
+    }
+
+    /**
+     * Drops an in-progress claim so the key can be retried, e.g. after the business method failed.
+     */
+    default void release(String key) {
+    }
+
+    /**
+     * Drops the claim that {@link #tryAcquire} granted with {@code token}, and only that one: once its lease has
+     * run out and another caller claimed the key, the other caller's claim stays. Stores that do not issue tokens
+     * release the key as {@link #release(String)} does; stores that do ignore a {@code null} token.
+     */
+    default void release(String key, String token) {
+        release(key);
+    }
+
+    /**
+     * Opens connections and prepares whatever else the first real call would, so that call is not slower than the
+     * ones after it. Called once at startup; the default looks up a key no request uses. Decorators pass it on.
+     */
+    default void warmUp() {
+        lookup("idempotency:warm-up");
+    }
 }
@@ -0,0 +1,29 @@
+package com.arash.ariani.idempotency.store;
+
+/**
+ * Wraps the configured {@link IdempotencyStore} before the aspect uses it. Decorator beans are applied in
+ * {@link org.springframework.core.annotation.Order order}, so the first one ends up closest to the backend.
+ * <p>
+ * The aspect closes the decorated store when the context shuts down. Decorated stores that hold resources implement
+ * {@link AutoCloseable} and close the store they wrap with {@link #close(IdempotencyStore)}, so the whole chain is
+ * closed; the store bean itself may then be closed again by the context.
+ */
+@FunctionalInterface
+public interface IdempotencyStoreDecorator {
+    IdempotencyStore decorate(IdempotencyStore store);
+
+    /**
+     * Closes {@code store} if it is {@link AutoCloseable}.
+     */
+    static void close(IdempotencyStore store) {
+        if (store instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not close " + store, e);
+            }
+        }
+    }
+}
@@ -1,39 +1,303 @@
 package com.arash.ariani.idempotency.store;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class InMemoryIdempotencyStore implements IdempotencyStore {
+/**
+ * Bounded in-memory store. Expired entries are removed by a background sweeper as well as on access, and
+ * once the entry count or total weight goes over its limit the least recently used completed entries are
+ * evicted in one batch down to {@value #EVICTION_TARGET_PERCENT}% of the limit, so the cost of a scan is
+ * amortized over many inserts. Running claims are never evicted.
+ */
+public class InMemoryIdempotencyStore implements IdempotencyStore, AutoCloseable {
 
-    private record Entry(Object value, long expireAtMillis) {
+    public static final long DEFAULT_MAX_ENTRIES = 100_000;
+    public static final Duration DEFAULT_SWEEP_INTERVAL = Duration.ofMinutes(1);
+    private static final int EVICTION_TARGET_PERCENT = 90;
+
+    private static final class Entry {
+        final Object value;
+        final String fingerprint;
+        final long expireAtMillis;
+        final boolean inProgress;
+        final long weight;
+        volatile long lastAccessMillis;
+
+        Entry(Object value, String fingerprint, long expireAtMillis, boolean inProgress, long weight, long now) {
+            this.value = value;
+            this.fingerprint = fingerprint;
+            this.expireAtMillis = expireAtMillis;
+            this.inProgress = inProgress;
+            this.weight = weight;
+            this.lastAccessMillis = now;
+        }
+    }
+
+    /**
+     * Weight of a stored response, compared against {@code maxWeight}.
+     */
+    @FunctionalInterface
+    public interface Weigher {
+        long weigh(String key, Object value);
+    }
+
+    public record Stats(long size, long weight, long evictions, long expirations) {
     }
 
     private final ConcurrentHashMap<String, Entry> store = new ConcurrentHashMap<>();
+    private final long maxEntries;
+    private final long maxWeight;
+    private final Weigher weigher;
+    private final AtomicLong totalWeight = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ScheduledExecutorService sweeper;
+
+    public InMemoryIdempotencyStore() {
+        this(DEFAULT_MAX_ENTRIES, 0, null, DEFAULT_SWEEP_INTERVAL);
+    }
+
+    /**
+     * @param maxEntries    maximum number of entries, {@code 0} for no limit
+     * @param maxWeight     maximum total weight, {@code 0} for no limit
+     * @param weigher       weighs stored responses, {@code null} to count every entry as {@code 1}
+     * @param sweepInterval how often expired entries are swept, {@code null} or zero to only expire on access
+     */
+    public InMemoryIdempotencyStore(long maxEntries, long maxWeight, Weigher weigher, Duration sweepInterval) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher != null ? weigher : (key, value) -> 1;
+        if (sweepInterval != null && !sweepInterval.isZero() && !sweepInterval.isNegative()) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "idempotency-memory-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = sweepInterval.toMillis();
+            this.sweeper.scheduleWithFixedDelay(this::sweepExpired, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.sweeper = null;
+        }
+    }
 
     @Override
     public void save(String key, Object value, Duration ttl) {
-        long expireAt = System.currentTimeMillis() + ttl.toMillis();
-        store.put(key, new Entry(value, expireAt));
+        save(key, value, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object value, String fingerprint, Duration ttl) {
+        put(key, value, fingerprint, ttl, CoarseClock.millis());
+        evictIfNeeded();
+    }
+
+    /**
+     * Saves every response, and checks the limits once for all of them.
+     */
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        long now = CoarseClock.millis();
+        responses.forEach((key, value) -> put(key, value, fingerprints.get(key), ttl, now));
+        evictIfNeeded();
     }
 
     @Override
     public Optional<Object> get(String key) {
-        return Optional.ofNullable(store.compute(key, (k, entry) -> {
-            if (entry == null || isExpired(entry)) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        // Lock-free: a plain read, with expired entries removed only if nobody replaced them meanwhile
+        Entry found = store.get(key);
+        if (found == null) {
+            return LookupResult.miss();
+        }
+        long now = CoarseClock.millis();
+        if (now > found.expireAtMillis) {
+            if (store.remove(key, found)) {
+                onRemoved(found);
+                expirations.increment();
+            }
+            return LookupResult.miss();
+        }
+        // At most one write per clock tick, so hot keys don't bounce the cache line between cores
+        if (found.lastAccessMillis != now) {
+            found.lastAccessMillis = now;
+        }
+        return found.inProgress ? LookupResult.inProgress() : LookupResult.completed(found.value, found.fingerprint);
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        long now = CoarseClock.millis();
+        AcquireResult result = claim(key, new Entry(null, null, now + leaseTtl.toMillis(), true, 1, now));
+        evictIfNeeded();
+        return result;
+    }
+
+    /**
+     * Claims every key, and checks the limits once for all of them.
+     */
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        long now = CoarseClock.millis();
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        for (String key : keys) {
+            results.put(key, claim(key, new Entry(null, null, now + leaseTtl.toMillis(), true, 1, now)));
+        }
+        evictIfNeeded();
+        return results;
+    }
+
+    @Override
+    public void release(String key) {
+        store.computeIfPresent(key, (k, entry) -> {
+            if (entry.inProgress) {
+                onRemoved(entry);
                 return null;
             }
             return entry;
-        })).map(Entry::value);
+        });
+    }
+
+    /**
+     * Drops {@code key} whatever its state, e.g. when another node reports that it changed.
+     */
+    public void remove(String key) {
+        Entry removed = store.remove(key);
+        if (removed != null) {
+            onRemoved(removed);
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(store.size(), totalWeight.get(), evictions.sum(), expirations.sum());
     }
 
     @Override
-    public boolean exists(String key) {
-        return get(key).isPresent();
+    public void close() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    private AcquireResult claim(String key, Entry claim) {
+        while (true) {
+            Entry existing = store.putIfAbsent(key, claim);
+            if (existing == null) {
+                totalWeight.addAndGet(claim.weight);
+                return AcquireResult.acquired();
+            }
+            if (isExpired(existing)) {
+                if (store.replace(key, existing, claim)) {
+                    totalWeight.addAndGet(claim.weight - existing.weight);
+                    expirations.increment();
+                    return AcquireResult.acquired();
+                }
+                continue;
+            }
+            return existing.inProgress ? AcquireResult.inProgress() : AcquireResult.completed(existing.value, existing.fingerprint);
+        }
+    }
+
+    private void put(String key, Object value, String fingerprint, Duration ttl, long now) {
+        Entry entry = new Entry(value, fingerprint, now + ttl.toMillis(), false, weigher.weigh(key, value), now);
+        Entry previous = store.put(key, entry);
+        totalWeight.addAndGet(entry.weight - (previous != null ? previous.weight : 0));
+    }
+
+    private void sweepExpired() {
+        long now = CoarseClock.millis();
+        for (Map.Entry<String, Entry> mapping : store.entrySet()) {
+            Entry entry = mapping.getValue();
+            if (now > entry.expireAtMillis && store.remove(mapping.getKey(), entry)) {
+                onRemoved(entry);
+                expirations.increment();
+            }
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (!isOverCapacity()) {
+            return;
+        }
+        // Another thread is already evicting; the limit is soft, so don't queue up behind it
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            sweepExpired();
+            long excessEntries = maxEntries > 0 ? store.size() - maxEntries * EVICTION_TARGET_PERCENT / 100 : 0;
+            long excessWeight = maxWeight > 0 ? totalWeight.get() - maxWeight * EVICTION_TARGET_PERCENT / 100 : 0;
+            if (excessEntries <= 0 && excessWeight <= 0) {
+                return;
+            }
+            evictLeastRecentlyUsed(excessEntries, excessWeight);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void evictLeastRecentlyUsed(long excessEntries, long excessWeight) {
+        // Max-heap on access time that keeps only the oldest candidates seen so far; when evicting by
+        // weight the number of victims is not known up front, so every candidate is kept
+        boolean byWeight = excessWeight > 0;
+        Comparator<Map.Entry<String, Entry>> oldestFirst =
+                Comparator.comparingLong(mapping -> mapping.getValue().lastAccessMillis);
+        PriorityQueue<Map.Entry<String, Entry>> candidates = new PriorityQueue<>(oldestFirst.reversed());
+        for (Map.Entry<String, Entry> mapping : store.entrySet()) {
+            if (mapping.getValue().inProgress) {
+                continue;
+            }
+            candidates.add(mapping);
+            if (!byWeight && candidates.size() > excessEntries) {
+                candidates.poll();
+            }
+        }
+
+        List<Map.Entry<String, Entry>> victims = new ArrayList<>(candidates);
+        victims.sort(oldestFirst);
+        long freedEntries = 0;
+        long freedWeight = 0;
+        for (Map.Entry<String, Entry> victim : victims) {
+            if (freedEntries >= excessEntries && freedWeight >= excessWeight) {
+                break;
+            }
+            if (store.remove(victim.getKey(), victim.getValue())) {
+                onRemoved(victim.getValue());
+                evictions.increment();
+                freedEntries++;
+                freedWeight += victim.getValue().weight;
+            }
+        }
+    }
+
+    private boolean isOverCapacity() {
+        return (maxEntries > 0 && store.size() > maxEntries)
+                || (maxWeight > 0 && totalWeight.get() > maxWeight);
+    }
+
+    private void onRemoved(Entry entry) {
+        totalWeight.addAndGet(-entry.weight);
     }
 
     private boolean isExpired(Entry entry) {
-        return System.currentTimeMillis() > entry.expireAtMillis;
+        return CoarseClock.millis() > entry.expireAtMillis;
     }
 }
-
@@ -0,0 +1,44 @@
+package com.arash.ariani.idempotency.store;
+
+/**
+ * Fast, well spread 64-bit hashes of keys for placement, filtering and indexing. Not meant to resist crafted
+ * collisions.
+ */
+public final class KeyHashing {
+
+    private KeyHashing() {
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, finished with {@link #mix} so that similar keys spread evenly.
+     */
+    public static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Like {@link #hash(String)}, over bytes such as an encoded key.
+     */
+    public static long hash(byte[] value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The SplitMix64 finalizer.
+     */
+    public static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
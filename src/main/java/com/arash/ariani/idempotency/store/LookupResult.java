@@ -0,0 +1,43 @@
+package com.arash.ariani.idempotency.store;
+
+import java.util.Optional;
+
+/**
+ * Result of a single {@link IdempotencyStore#lookup} round trip. Unlike {@link IdempotencyStore#get} it can
+ * tell a stored {@code null} response apart from a miss, and reports keys that are claimed but not completed.
+ */
+public record LookupResult(Status status, Object response, String fingerprint) {
+
+    private static final LookupResult MISS = new LookupResult(Status.MISS, null, null);
+    private static final LookupResult IN_PROGRESS = new LookupResult(Status.IN_PROGRESS, null, null);
+
+    public static LookupResult miss() {
+        return MISS;
+    }
+
+    public static LookupResult inProgress() {
+        return IN_PROGRESS;
+    }
+
+    public static LookupResult completed(Object response) {
+        return completed(response, null);
+    }
+
+    public static LookupResult completed(Object response, String fingerprint) {
+        return new LookupResult(Status.COMPLETED, response, fingerprint);
+    }
+
+    public boolean isCompleted() {
+        return status == Status.COMPLETED;
+    }
+
+    public Optional<Object> toOptional() {
+        return isCompleted() ? Optional.ofNullable(response) : Optional.empty();
+    }
+
+    public enum Status {
+        MISS,         // Nothing stored, or the entry has expired
+        IN_PROGRESS,  // Claimed by a running request
+        COMPLETED     // A response is stored
+    }
+}
@@ -0,0 +1,24 @@
+package com.arash.ariani.idempotency.store;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Non-blocking counterpart of {@link IdempotencyStore}, used for {@code @Idempotent} methods that return a
+ * {@code Mono} or {@code Flux}. The semantics of each operation are the same as in {@link IdempotencyStore}.
+ */
+public interface ReactiveIdempotencyStore {
+
+    Mono<LookupResult> lookup(String key);
+
+    Mono<AcquireResult> tryAcquire(String key, Duration leaseTtl);
+
+    Mono<Void> save(String key, Object response, String fingerprint, Duration ttl);
+
+    Mono<Void> release(String key);
+
+    default Mono<Void> release(String key, String token) {
+        return release(key);
+    }
+}
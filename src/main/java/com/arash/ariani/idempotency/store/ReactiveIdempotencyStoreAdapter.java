@@ -0,0 +1,52 @@
+package com.arash.ariani.idempotency.store;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+
+/**
+ * Exposes a blocking {@link IdempotencyStore} as a {@link ReactiveIdempotencyStore}. Calls run on
+ * {@code scheduler}, which should be {@link Schedulers#boundedElastic()} for stores that do I/O, so that the
+ * event loop is never blocked.
+ */
+public class ReactiveIdempotencyStoreAdapter implements ReactiveIdempotencyStore {
+
+    private final IdempotencyStore delegate;
+    private final Scheduler scheduler;
+
+    public ReactiveIdempotencyStoreAdapter(IdempotencyStore delegate) {
+        this(delegate, Schedulers.boundedElastic());
+    }
+
+    public ReactiveIdempotencyStoreAdapter(IdempotencyStore delegate, Scheduler scheduler) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Mono<LookupResult> lookup(String key) {
+        return Mono.fromCallable(() -> delegate.lookup(key)).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Mono<AcquireResult> tryAcquire(String key, Duration leaseTtl) {
+        return Mono.fromCallable(() -> delegate.tryAcquire(key, leaseTtl)).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Mono<Void> save(String key, Object response, String fingerprint, Duration ttl) {
+        return Mono.<Void>fromRunnable(() -> delegate.save(key, response, fingerprint, ttl)).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Mono<Void> release(String key) {
+        return Mono.<Void>fromRunnable(() -> delegate.release(key)).subscribeOn(scheduler);
+    }
+
+    @Override
+    public Mono<Void> release(String key, String token) {
+        return Mono.<Void>fromRunnable(() -> delegate.release(key, token)).subscribeOn(scheduler);
+    }
+}
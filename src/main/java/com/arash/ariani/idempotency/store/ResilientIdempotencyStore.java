@@ -0,0 +1,311 @@
+package com.arash.ariani.idempotency.store;
+
+import com.arash.ariani.idempotency.metrics.StoreResilienceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Bounds how long a request waits for the wrapped store. Calls run on a pool of at most {@code maxConcurrentCalls}
+ * threads and are abandoned after the timeout of their {@link Operation}. After {@code failureThreshold} failed
+ * calls in a row the circuit opens: for {@code openFor} no calls reach the store, then a single trial call decides
+ * whether it closes again.
+ * <p>
+ * Calls that fail, time out or are not let through follow the {@link Degradation}. Saves and releases never fail
+ * the request, since the method has already run by then. They are skipped, or go to the local store, and a claim
+ * left behind expires with its lease.
+ */
+public class ResilientIdempotencyStore implements IdempotencyStore, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ResilientIdempotencyStore.class);
+
+    public enum Degradation {
+        FAIL_OPEN,      // Treat keys as new and run requests without idempotency
+        FAIL_CLOSED,    // Reject requests with 503 Service Unavailable before they run
+        FALLBACK_LOCAL  // Use an in-memory store on this node until the backend recovers
+    }
+
+    public enum Operation {
+        LOOKUP,   // lookup, get and lookupAll
+        ACQUIRE,  // tryAcquire and tryAcquireAll
+        SAVE,     // save and saveAll
+        RELEASE   // release
+    }
+
+    public enum State {
+        CLOSED,     // Calls reach the store
+        OPEN,       // Calls are degraded without reaching the store
+        HALF_OPEN   // One trial call reaches the store, the others are degraded
+    }
+
+    public enum Cause {
+        ERROR,      // The store threw
+        TIMEOUT,    // The store did not answer in time
+        REJECTED,   // All threads were busy with calls to the store
+        OPEN        // The circuit was open
+    }
+
+    private final IdempotencyStore delegate;
+    private final IdempotencyStore fallback;
+    private final Degradation degradation;
+    private final Map<Operation, Duration> timeouts;
+    private final int failureThreshold;
+    private final Duration openFor;
+    private final StoreResilienceMetrics metrics;
+    private final ThreadPoolExecutor executor;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openUntil;
+
+    /**
+     * @param fallback the local store used with {@link Degradation#FALLBACK_LOCAL}, ignored otherwise
+     * @param timeouts how long each operation may take, every operation needs one
+     */
+    public ResilientIdempotencyStore(IdempotencyStore delegate, Degradation degradation, IdempotencyStore fallback,
+                                     Map<Operation, Duration> timeouts, int failureThreshold, Duration openFor,
+                                     int maxConcurrentCalls, StoreResilienceMetrics metrics) {
+        if (degradation == Degradation.FALLBACK_LOCAL && fallback == null) {
+            throw new IllegalArgumentException("FALLBACK_LOCAL needs a fallback store");
+        }
+        if (failureThreshold <= 0 || maxConcurrentCalls <= 0) {
+            throw new IllegalArgumentException("Failure threshold and concurrent calls must be positive");
+        }
+        this.timeouts = new EnumMap<>(timeouts);
+        for (Operation operation : Operation.values()) {
+            if (!this.timeouts.containsKey(operation)) {
+                throw new IllegalArgumentException("No timeout for " + operation);
+            }
+        }
+        this.delegate = delegate;
+        this.degradation = degradation;
+        this.fallback = degradation == Degradation.FALLBACK_LOCAL ? fallback : null;
+        this.failureThreshold = failureThreshold;
+        this.openFor = openFor;
+        this.metrics = metrics;
+        AtomicInteger threads = new AtomicInteger();
+        // No queue: a call either gets a thread right away or is rejected, so a hanging backend cannot pile up work
+        this.executor = new ThreadPoolExecutor(0, maxConcurrentCalls, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "idempotency-store-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        call(Operation.SAVE, store -> {
+            store.save(key, response, fingerprint, ttl);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        return call(Operation.LOOKUP, store -> store.lookup(key), LookupResult::miss);
+    }
+
+    @Override
+    public Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        return call(Operation.LOOKUP, store -> store.lookupAll(keys), () -> {
+            Map<String, LookupResult> misses = new LinkedHashMap<>();
+            keys.forEach(key -> misses.put(key, LookupResult.miss()));
+            return misses;
+        });
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        return call(Operation.ACQUIRE, store -> store.tryAcquire(key, leaseTtl), AcquireResult::acquired);
+    }
+
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        return call(Operation.ACQUIRE, store -> store.tryAcquireAll(keys, leaseTtl), () -> {
+            Map<String, AcquireResult> acquired = new LinkedHashMap<>();
+            keys.forEach(key -> acquired.put(key, AcquireResult.acquired()));
+            return acquired;
+        });
+    }
+
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        call(Operation.SAVE, store -> {
+            store.saveAll(responses, fingerprints, ttl);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public void release(String key) {
+        call(Operation.RELEASE, store -> {
+            store.release(key);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public void release(String key, String token) {
+        call(Operation.RELEASE, store -> {
+            store.release(key, token);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public void warmUp() {
+        // Bounded by the lookup timeout, so an unreachable backend does not hold up startup for long
+        call(Operation.LOOKUP, store -> {
+            store.warmUp();
+            return null;
+        }, () -> null);
+    }
+
+    public State state() {
+        return state.get();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        IdempotencyStoreDecorator.close(fallback);
+        IdempotencyStoreDecorator.close(delegate);
+    }
+
+    private <T> T call(Operation operation, Function<IdempotencyStore, T> action, Callable<T> failOpen) {
+        if (!permitted()) {
+            return degrade(operation, Cause.OPEN, action, failOpen, null);
+        }
+        Future<T> result;
+        try {
+            result = executor.submit(() -> action.apply(delegate));
+        } catch (RejectedExecutionException e) {
+            // Busy threads mean slow calls, which the timeouts already count as failures
+            trialAborted();
+            return degrade(operation, Cause.REJECTED, action, failOpen, e);
+        }
+        try {
+            T value = result.get(timeouts.get(operation).toNanos(), TimeUnit.NANOSECONDS);
+            succeeded();
+            return value;
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            failed();
+            return degrade(operation, Cause.TIMEOUT, action, failOpen, e);
+        } catch (ExecutionException e) {
+            failed();
+            return degrade(operation, Cause.ERROR, action, failOpen, e.getCause());
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            trialAborted();
+            return degrade(operation, Cause.ERROR, action, failOpen, e);
+        }
+    }
+
+    private <T> T degrade(Operation operation, Cause cause, Function<IdempotencyStore, T> action,
+                          Callable<T> failOpen, Throwable error) {
+        metrics.degraded(operation, cause);
+        if (error != null) {
+            log.debug("Idempotency store {} degraded ({})", operation, cause, error);
+        }
+        if (degradation == Degradation.FALLBACK_LOCAL) {
+            return action.apply(fallback);
+        }
+        if (degradation == Degradation.FAIL_CLOSED && (operation == Operation.LOOKUP || operation == Operation.ACQUIRE)) {
+            long remaining = openUntil - System.nanoTime();
+            Duration retryAfter = state.get() == State.CLOSED || remaining <= 0 ? openFor : Duration.ofNanos(remaining);
+            throw new IdempotencyStoreUnavailableException("Idempotency store is unavailable (" + cause + ")",
+                    retryAfter, error);
+        }
+        try {
+            return failOpen.call();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean permitted() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        // Only the caller that moves the circuit to half-open gets to try the store
+        if (current == State.OPEN && System.nanoTime() - openUntil >= 0
+                && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            transitioned(State.OPEN, State.HALF_OPEN);
+            return true;
+        }
+        return false;
+    }
+
+    private void succeeded() {
+        consecutiveFailures.set(0);
+        if (state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            transitioned(State.HALF_OPEN, State.CLOSED);
+        }
+    }
+
+    private void failed() {
+        if (state.get() == State.HALF_OPEN) {
+            open(State.HALF_OPEN);
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(State.CLOSED);
+        }
+    }
+
+    /**
+     * A trial call that never got an answer from the store, e.g. because all threads were still busy with hung
+     * calls, opens the circuit again; otherwise the next trial would never be let through.
+     */
+    private void trialAborted() {
+        if (state.get() == State.HALF_OPEN) {
+            open(State.HALF_OPEN);
+        }
+    }
+
+    private void open(State from) {
+        // Set before the state, so callers that see OPEN never read an older deadline
+        openUntil = System.nanoTime() + openFor.toNanos();
+        if (state.compareAndSet(from, State.OPEN)) {
+            transitioned(from, State.OPEN);
+        }
+    }
+
+    private void transitioned(State from, State to) {
+        if (to == State.OPEN) {
+            log.warn("Idempotency store circuit opened after {} failed calls, retrying in {}",
+                    consecutiveFailures.get(), openFor);
+        } else if (to == State.CLOSED) {
+            log.info("Idempotency store circuit closed");
+        }
+        metrics.stateChanged(from, to);
+    }
+}
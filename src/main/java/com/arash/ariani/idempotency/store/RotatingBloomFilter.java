@@ -0,0 +1,285 @@
+package com.arash.ariani.idempotency.store;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter of the keys seen within the last {@code window}, split into {@code generations} time slices. Keys go
+ * into the current slice; the oldest slice is dropped whenever a new one starts, so every key is remembered for at
+ * least {@code window} and the filter never fills up.
+ * <p>
+ * Slices are numbered by wall-clock time, so nodes agree on them without coordination and can share their bits,
+ * see {@link #drainInserts()} and {@link #merge(long, byte[])}.
+ */
+public class RotatingBloomFilter {
+
+    public record Stats(long memoryBytes, double falsePositiveRate, long skipped, long checked, long falsePositives) {
+    }
+
+    /**
+     * A key added to slice {@code generation}, kept for nodes that share the filter.
+     */
+    public record Insert(long generation, long hash) {
+    }
+
+    private final int bits;
+    private final int hashes;
+    private final long periodMillis;
+    private final int generations;
+    private final AtomicReferenceArray<Generation> slices;
+    private final BlockingQueue<Insert> inserts;
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * @param expectedKeys   keys per slice at which the false positive rate reaches {@code falsePositiveRate}
+     * @param insertsToShare how many inserts are kept for {@link #drainInserts()}, {@code 0} when not shared
+     */
+    public RotatingBloomFilter(long expectedKeys, double falsePositiveRate, Duration window, int generations,
+                               int insertsToShare) {
+        if (expectedKeys <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Expected keys must be positive and the false positive rate in (0, 1)");
+        }
+        if (generations < 2) {
+            throw new IllegalArgumentException("At least two generations are required: " + generations);
+        }
+        double ln2 = Math.log(2);
+        long optimalBits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        if (optimalBits > Integer.MAX_VALUE - 63) {
+            throw new IllegalArgumentException("Bloom filter of " + optimalBits + " bits is too large");
+        }
+        this.bits = (int) ((optimalBits + 63) / 64 * 64);
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedKeys * ln2));
+        // The oldest of the live slices started at most window ago when it is dropped
+        this.periodMillis = Math.max(1, window.toMillis() / (generations - 1));
+        this.generations = generations;
+        this.slices = new AtomicReferenceArray<>(generations);
+        this.inserts = insertsToShare > 0 ? new ArrayBlockingQueue<>(insertsToShare) : null;
+    }
+
+    /**
+     * {@code false} if {@code key} was definitely not added within the window.
+     */
+    public boolean mightContain(String key) {
+        int[] positions = positions(KeyHashing.hash(key));
+        long current = currentGeneration();
+        for (long number = current; number > current - generations; number--) {
+            Generation slice = live(number);
+            if (slice != null && slice.contains(positions)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void put(String key) {
+        long hash = KeyHashing.hash(key);
+        Generation slice = current();
+        if (slice.add(hash) && inserts != null) {
+            // Dropped when full; other nodes then read the key from the store, which is still correct
+            inserts.offer(new Insert(slice.number, hash));
+        }
+    }
+
+    /**
+     * Bit positions of a key hash within a slice, numbered like Redis {@code SETBIT} offsets.
+     */
+    public int[] positions(long hash) {
+        int[] positions = new int[hashes];
+        long h1 = hash;
+        long h2 = KeyHashing.mix(hash);
+        for (int i = 0; i < hashes; i++) {
+            positions[i] = (int) Long.remainderUnsigned(h1 + i * h2, bits);
+        }
+        return positions;
+    }
+
+    /**
+     * Takes the inserts kept since the last call.
+     */
+    public List<Insert> drainInserts() {
+        List<Insert> drained = new ArrayList<>();
+        if (inserts != null) {
+            inserts.drainTo(drained);
+        }
+        return drained;
+    }
+
+    /**
+     * Numbers of the slices in use, newest first.
+     */
+    public long[] liveGenerations() {
+        long current = currentGeneration();
+        long[] numbers = new long[generations];
+        for (int i = 0; i < generations; i++) {
+            numbers[i] = current - i;
+        }
+        return numbers;
+    }
+
+    /**
+     * Adds the bits of another node's slice, as a bitmap in Redis {@code GET} layout: the first bit is the
+     * highest bit of the first byte. Slices no longer in use are ignored.
+     */
+    public void merge(long generation, byte[] bitmap) {
+        long current = currentGeneration();
+        if (generation > current || generation <= current - generations) {
+            return;
+        }
+        Generation slice = slice(generation);
+        int length = Math.min(bitmap.length, bits / 8);
+        for (int i = 0; i < length; i++) {
+            int value = bitmap[i] & 0xff;
+            for (int bit = 0; value != 0; bit++, value = (value << 1) & 0xff) {
+                if ((value & 0x80) != 0) {
+                    slice.set(i * 8 + bit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bits per slice, which together with {@link #hashes()} has to match on nodes that share the filter.
+     */
+    public int bits() {
+        return bits;
+    }
+
+    public int hashes() {
+        return hashes;
+    }
+
+    /**
+     * How long a slice takes keys before the next one starts.
+     */
+    public Duration period() {
+        return Duration.ofMillis(periodMillis);
+    }
+
+    public Stats stats() {
+        long current = currentGeneration();
+        double allNegative = 1;
+        for (long number = current; number > current - generations; number--) {
+            Generation slice = live(number);
+            if (slice != null) {
+                allNegative *= 1 - Math.pow((double) slice.bitCount() / bits, hashes);
+            }
+        }
+        return new Stats((long) generations * bits / 8, 1 - allNegative, skipped.sum(), checked.sum(),
+                falsePositives.sum());
+    }
+
+    void recordSkipped() {
+        skipped.increment();
+    }
+
+    void recordChecked(boolean falsePositive) {
+        checked.increment();
+        if (falsePositive) {
+            falsePositives.increment();
+        }
+    }
+
+    private long currentGeneration() {
+        return System.currentTimeMillis() / periodMillis;
+    }
+
+    private Generation current() {
+        return slice(currentGeneration());
+    }
+
+    private Generation live(long number) {
+        Generation slice = slices.get(index(number));
+        return slice != null && slice.number == number ? slice : null;
+    }
+
+    /**
+     * The slice numbered {@code number}, replacing the one that held its place {@code generations} periods ago.
+     */
+    private Generation slice(long number) {
+        int index = index(number);
+        while (true) {
+            Generation slice = slices.get(index);
+            if (slice != null && slice.number == number) {
+                return slice;
+            }
+            if (slice != null && slice.number > number) {
+                // A newer slice took the place already; late writes to the old one are lost, as if it was dropped
+                return new Generation(number, bits);
+            }
+            Generation created = new Generation(number, bits);
+            if (slices.compareAndSet(index, slice, created)) {
+                return created;
+            }
+        }
+    }
+
+    private int index(long number) {
+        return (int) Math.floorMod(number, (long) generations);
+    }
+
+    private final class Generation {
+
+        private final long number;
+        private final AtomicLongArray words;
+
+        Generation(long number, int bits) {
+            this.number = number;
+            this.words = new AtomicLongArray(bits / 64);
+        }
+
+        /**
+         * @return whether any bit changed, i.e. the key may not have been added before
+         */
+        boolean add(long hash) {
+            boolean changed = false;
+            for (int position : positions(hash)) {
+                changed |= set(position);
+            }
+            return changed;
+        }
+
+        boolean contains(int[] positions) {
+            for (int position : positions) {
+                if ((words.get(position >>> 6) & mask(position)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean set(int position) {
+            int word = position >>> 6;
+            long mask = mask(position);
+            // Read first: set bits are the common case once a slice fills up, and need no write
+            long value = words.get(word);
+            while ((value & mask) == 0) {
+                long witness = words.compareAndExchange(word, value, value | mask);
+                if (witness == value) {
+                    return true;
+                }
+                value = witness;
+            }
+            return false;
+        }
+
+        long bitCount() {
+            long count = 0;
+            for (int i = 0; i < words.length(); i++) {
+                count += Long.bitCount(words.get(i));
+            }
+            return count;
+        }
+
+        private static long mask(int position) {
+            return 1L << (position & 63);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.arash.ariani.idempotency.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Spreads keys over several stores with rendezvous hashing: every key goes to the shard that scores highest for it,
+ * so adding or removing a shard only moves the keys that belong to it. Shards are identified by name, not position.
+ * <p>
+ * A shard that fails {@code failureThreshold} calls in a row is skipped for {@code retryAfter}, so requests for
+ * its keys do not each wait for it to time out. Lookups and claims for a failed or skipped shard follow the
+ * {@link FailurePolicy}. Saves and releases never fail the request, since the method has already run by then; they
+ * are skipped, and a claim left behind expires with its lease.
+ */
+public class ShardedIdempotencyStore implements IdempotencyStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedIdempotencyStore.class);
+
+    public enum ShardBy {
+        KEY,   // Every key is placed on its own
+        SCOPE  // All keys of a scope share a shard, e.g. to keep a tenant's keys together
+    }
+
+    public enum FailurePolicy {
+        FAIL_OPEN,   // Treat the key as new and run the request without idempotency
+        FAIL_CLOSED  // Reject the request with 503 Service Unavailable
+    }
+
+    private final List<Shard> shards;
+    private final ShardBy shardBy;
+    private final FailurePolicy failurePolicy;
+    private final int failureThreshold;
+    private final Duration retryAfter;
+
+    public ShardedIdempotencyStore(Map<String, IdempotencyStore> shards, ShardBy shardBy, FailurePolicy failurePolicy,
+                                   int failureThreshold, Duration retryAfter) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("Failure threshold must be positive: " + failureThreshold);
+        }
+        this.shards = shards.entrySet().stream()
+                .map(shard -> new Shard(shard.getKey(), shard.getValue()))
+                .toList();
+        this.shardBy = shardBy;
+        this.failurePolicy = failurePolicy;
+        this.failureThreshold = failureThreshold;
+        this.retryAfter = retryAfter;
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        write(shardFor(key), store -> store.save(key, response, fingerprint, ttl));
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        return call(key, store -> store.lookup(key), LookupResult::miss);
+    }
+
+    @Override
+    public Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        Map<String, LookupResult> results = new LinkedHashMap<>();
+        keys.forEach(key -> results.put(key, null));
+        byShard(keys).forEach((shard, shardKeys) -> results.putAll(call(shard,
+                store -> store.lookupAll(shardKeys), () -> {
+                    Map<String, LookupResult> misses = new LinkedHashMap<>();
+                    shardKeys.forEach(key -> misses.put(key, LookupResult.miss()));
+                    return misses;
+                })));
+        return results;
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        return call(key, store -> store.tryAcquire(key, leaseTtl), AcquireResult::acquired);
+    }
+
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        keys.forEach(key -> results.put(key, null));
+        byShard(keys).forEach((shard, shardKeys) -> results.putAll(call(shard,
+                store -> store.tryAcquireAll(shardKeys, leaseTtl), () -> {
+                    Map<String, AcquireResult> acquired = new LinkedHashMap<>();
+                    shardKeys.forEach(key -> acquired.put(key, AcquireResult.acquired()));
+                    return acquired;
+                })));
+        return results;
+    }
+
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        byShard(responses.keySet()).forEach((shard, shardKeys) -> {
+            Map<String, Object> shardResponses = new LinkedHashMap<>();
+            shardKeys.forEach(key -> shardResponses.put(key, responses.get(key)));
+            write(shard, store -> store.saveAll(shardResponses, fingerprints, ttl));
+        });
+    }
+
+    @Override
+    public void release(String key) {
+        write(shardFor(key), store -> store.release(key));
+    }
+
+    @Override
+    public void release(String key, String token) {
+        write(shardFor(key), store -> store.release(key, token));
+    }
+
+    /**
+     * Warms up every shard, not only the one a lookup would go to.
+     */
+    @Override
+    public void warmUp() {
+        IdempotencyStoreUnavailableException failure = null;
+        for (Shard shard : shards) {
+            try {
+                call(shard, store -> {
+                    store.warmUp();
+                    return null;
+                }, () -> null);
+            } catch (IdempotencyStoreUnavailableException e) {
+                // Keep going, the other shards can still be warmed
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Whether each shard is currently used, by name.
+     */
+    public Map<String, Boolean> availability() {
+        Map<String, Boolean> availability = new LinkedHashMap<>();
+        long now = System.nanoTime();
+        shards.forEach(shard -> availability.put(shard.name(), shard.isAvailable(now)));
+        return availability;
+    }
+
+    private <T> T call(String key, Function<IdempotencyStore, T> operation, Supplier<T> failOpen) {
+        return call(shardFor(key), operation, failOpen);
+    }
+
+    private <T> T call(Shard shard, Function<IdempotencyStore, T> operation, Supplier<T> failOpen) {
+        return call(shard, operation, failOpen, true);
+    }
+
+    /**
+     * Runs a save or release, which is skipped rather than rejected when the shard is unavailable: the method has
+     * already run, and a 503 would only make the client run it again.
+     */
+    private void write(Shard shard, Consumer<IdempotencyStore> operation) {
+        call(shard, store -> {
+            operation.accept(store);
+            return null;
+        }, () -> null, false);
+    }
+
+    private <T> T call(Shard shard, Function<IdempotencyStore, T> operation, Supplier<T> failOpen,
+                       boolean mayReject) {
+        if (!shard.isAvailable(System.nanoTime())) {
+            return unavailable(shard, failOpen, null, mayReject);
+        }
+        try {
+            T result = operation.apply(shard.store());
+            shard.succeeded();
+            return result;
+        } catch (RuntimeException e) {
+            if (shard.failed(failureThreshold, retryAfter)) {
+                log.warn("Idempotency shard '{}' failed {} times in a row, skipping it for {}",
+                        shard.name(), failureThreshold, retryAfter, e);
+            }
+            return unavailable(shard, failOpen, e, mayReject);
+        }
+    }
+
+    private <T> T unavailable(Shard shard, Supplier<T> failOpen, RuntimeException cause, boolean mayReject) {
+        if (failurePolicy == FailurePolicy.FAIL_OPEN || !mayReject) {
+            return failOpen.get();
+        }
+        throw new IdempotencyStoreUnavailableException("Idempotency shard '" + shard.name() + "' is unavailable",
+                retryAfter, cause);
+    }
+
+    private Map<Shard, List<String>> byShard(Collection<String> keys) {
+        Map<Shard, List<String>> byShard = new LinkedHashMap<>();
+        for (String key : keys) {
+            byShard.computeIfAbsent(shardFor(key), shard -> new ArrayList<>()).add(key);
+        }
+        return byShard;
+    }
+
+    private Shard shardFor(String key) {
+        long keyHash = KeyHashing.hash(shardKey(key));
+        Shard best = null;
+        long bestScore = 0;
+        for (Shard shard : shards) {
+            long score = KeyHashing.mix(keyHash ^ shard.seed());
+            if (best == null || Long.compareUnsigned(score, bestScore) > 0) {
+                best = shard;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private String shardKey(String key) {
+        if (shardBy == ShardBy.SCOPE) {
+            // The aspect builds keys as scope:key
+            int separator = key.indexOf(':');
+            return separator > 0 ? key.substring(0, separator) : key;
+        }
+        return key;
+    }
+
+    private static final class Shard {
+
+        private final String name;
+        private final IdempotencyStore store;
+        private final long seed;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long skippedUntil;
+        private volatile boolean skipping;
+
+        Shard(String name, IdempotencyStore store) {
+            this.name = name;
+            this.store = store;
+            this.seed = KeyHashing.hash(name);
+        }
+
+        String name() {
+            return name;
+        }
+
+        IdempotencyStore store() {
+            return store;
+        }
+
+        long seed() {
+            return seed;
+        }
+
+        boolean isAvailable(long now) {
+            // After retryAfter, calls go through again; one more failure skips the shard for another period
+            return !skipping || now - skippedUntil >= 0;
+        }
+
+        void succeeded() {
+            consecutiveFailures.set(0);
+            skipping = false;
+        }
+
+        /**
+         * @return whether this failure made the shard skipped
+         */
+        boolean failed(int threshold, Duration retryAfter) {
+            if (consecutiveFailures.incrementAndGet() < threshold) {
+                return false;
+            }
+            skippedUntil = System.nanoTime() + retryAfter.toNanos();
+            boolean wasSkipping = skipping;
+            skipping = true;
+            return !wasSkipping;
+        }
+    }
+}
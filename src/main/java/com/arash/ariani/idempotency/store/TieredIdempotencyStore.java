@@ -0,0 +1,169 @@
+package com.arash.ariani.idempotency.store;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps completed responses in a bounded local store in front of a remote one, so replays that land on the
+ * same node skip the round trip and the deserialization. Claims always go to the remote store, which stays
+ * the source of truth.
+ * <p>
+ * Responses saved through this node keep their TTL locally. Responses read from the remote store are cached for
+ * at most {@code maxLocalTtl}, because their remaining TTL is unknown; that is also the longest a node can serve
+ * a key another node has changed when no {@link IdempotencyInvalidationChannel} is configured.
+ */
+public class TieredIdempotencyStore implements IdempotencyStore, AutoCloseable {
+
+    private final IdempotencyStore remote;
+    private final InMemoryIdempotencyStore local;
+    private final Duration maxLocalTtl;
+    private final IdempotencyInvalidationChannel invalidation;
+
+    /**
+     * @param invalidation tells other nodes about saves and releases, {@code null} to rely on
+     *                     {@code maxLocalTtl} alone
+     */
+    public TieredIdempotencyStore(IdempotencyStore remote, InMemoryIdempotencyStore local, Duration maxLocalTtl,
+                                  IdempotencyInvalidationChannel invalidation) {
+        this.remote = remote;
+        this.local = local;
+        this.maxLocalTtl = maxLocalTtl;
+        this.invalidation = invalidation;
+        if (invalidation != null) {
+            invalidation.subscribe(local::remove);
+        }
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        remote.save(key, response, fingerprint, ttl);
+        local.save(key, response, fingerprint, ttl);
+        publish(key);
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        LookupResult cached = local.lookup(key);
+        if (cached.isCompleted()) {
+            return cached;
+        }
+        LookupResult result = remote.lookup(key);
+        if (result.isCompleted()) {
+            local.save(key, result.response(), result.fingerprint(), maxLocalTtl);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        Map<String, LookupResult> results = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String key : keys) {
+            LookupResult cached = local.lookup(key);
+            results.put(key, cached);
+            if (!cached.isCompleted()) {
+                misses.add(key);
+            }
+        }
+        if (!misses.isEmpty()) {
+            remote.lookupAll(misses).forEach((key, result) -> {
+                if (result.isCompleted()) {
+                    local.save(key, result.response(), result.fingerprint(), maxLocalTtl);
+                }
+                results.put(key, result);
+            });
+        }
+        return results;
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        LookupResult cached = local.lookup(key);
+        if (cached.isCompleted()) {
+            return AcquireResult.completed(cached.response(), cached.fingerprint());
+        }
+        AcquireResult result = remote.tryAcquire(key, leaseTtl);
+        if (result.status() == AcquireResult.Status.COMPLETED) {
+            local.save(key, result.response(), result.fingerprint(), maxLocalTtl);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String key : keys) {
+            LookupResult cached = local.lookup(key);
+            if (cached.isCompleted()) {
+                results.put(key, AcquireResult.completed(cached.response(), cached.fingerprint()));
+            } else {
+                // Holds the position of the key until the remote store fills it in
+                results.put(key, null);
+                misses.add(key);
+            }
+        }
+        if (!misses.isEmpty()) {
+            remote.tryAcquireAll(misses, leaseTtl).forEach((key, result) -> {
+                if (result.status() == AcquireResult.Status.COMPLETED) {
+                    local.save(key, result.response(), result.fingerprint(), maxLocalTtl);
+                }
+                results.put(key, result);
+            });
+        }
+        return results;
+    }
+
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        remote.saveAll(responses, fingerprints, ttl);
+        local.saveAll(responses, fingerprints, ttl);
+        responses.keySet().forEach(this::publish);
+    }
+
+    @Override
+    public void release(String key) {
+        remote.release(key);
+        local.remove(key);
+        publish(key);
+    }
+
+    @Override
+    public void release(String key, String token) {
+        remote.release(key, token);
+        local.remove(key);
+        publish(key);
+    }
+
+    @Override
+    public void warmUp() {
+        remote.warmUp();
+    }
+
+    @Override
+    public void close() {
+        local.close();
+        IdempotencyStoreDecorator.close(remote);
+    }
+
+    private void publish(String key) {
+        if (invalidation != null) {
+            invalidation.publish(key);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.arash.ariani.idempotency.store.file;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * One entry of the log. Layout, big-endian:
+ * <pre>
+ * int   length        of the whole record, 0 where the written part of a segment ends
+ * int   crc           CRC32C of everything after this field
+ * byte  type          CLAIM, COMPLETE or RELEASE
+ * long  expiry        epoch millis
+ * short key length    followed by the UTF-8 key
+ * short fingerprint   length, -1 for none, followed by the UTF-8 fingerprint
+ * int   payload       length, -1 for none, followed by the encoded response
+ * </pre>
+ */
+record LogRecord(byte type, long expiry, byte[] key, String fingerprint, byte[] payload) {
+
+    static final byte CLAIM = 1;
+    static final byte COMPLETE = 2;
+    static final byte RELEASE = 3;
+
+    private static final int CRC = 4;
+    private static final int TYPE = 8;
+    private static final int EXPIRY = 9;
+    private static final int KEY_LENGTH = 17;
+    private static final int KEY = 19;
+    static final int MIN_LENGTH = KEY + 2 + 4;
+
+    byte[] encode() {
+        if (key.length > 0xffff) {
+            throw new IllegalArgumentException("Idempotency key longer than 65535 bytes");
+        }
+        byte[] fingerprintBytes = fingerprint != null ? fingerprint.getBytes(StandardCharsets.UTF_8) : null;
+        int length = MIN_LENGTH + key.length
+                + (fingerprintBytes != null ? fingerprintBytes.length : 0)
+                + (payload != null ? payload.length : 0);
+        ByteBuffer buffer = ByteBuffer.allocate(length)
+                .putInt(length)
+                .putInt(0)
+                .put(type)
+                .putLong(expiry)
+                .putShort((short) key.length)
+                .put(key)
+                .putShort((short) (fingerprintBytes != null ? fingerprintBytes.length : -1));
+        if (fingerprintBytes != null) {
+            buffer.put(fingerprintBytes);
+        }
+        buffer.putInt(payload != null ? payload.length : -1);
+        if (payload != null) {
+            buffer.put(payload);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), TYPE, length - TYPE);
+        buffer.putInt(CRC, (int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * Length of the record at {@code offset}, or {@code 0} if there is none: the end of the written data, or a
+     * record cut short by a crash.
+     */
+    static int validLength(ByteBuffer segment, int offset) {
+        if (offset + MIN_LENGTH > segment.capacity()) {
+            return 0;
+        }
+        int length = segment.getInt(offset);
+        if (length < MIN_LENGTH || length > segment.capacity() - offset) {
+            return 0;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(segment.slice(offset + TYPE, length - TYPE));
+        return (int) crc.getValue() == segment.getInt(offset + CRC) ? length : 0;
+    }
+
+    static LogRecord read(ByteBuffer segment, int offset) {
+        int keyLength = segment.getShort(offset + KEY_LENGTH) & 0xffff;
+        byte[] key = new byte[keyLength];
+        segment.get(offset + KEY, key);
+        int position = offset + KEY + keyLength;
+        short fingerprintLength = segment.getShort(position);
+        position += 2;
+        String fingerprint = null;
+        if (fingerprintLength >= 0) {
+            byte[] fingerprintBytes = new byte[fingerprintLength];
+            segment.get(position, fingerprintBytes);
+            fingerprint = new String(fingerprintBytes, StandardCharsets.UTF_8);
+            position += fingerprintLength;
+        }
+        int payloadLength = segment.getInt(position);
+        byte[] payload = null;
+        if (payloadLength >= 0) {
+            payload = new byte[payloadLength];
+            segment.get(position + 4, payload);
+        }
+        return new LogRecord(segment.get(offset + TYPE), segment.getLong(offset + EXPIRY), key, fingerprint, payload);
+    }
+
+    /**
+     * Whether the record at {@code offset} is for {@code key}, without reading the rest of it.
+     */
+    static boolean hasKey(ByteBuffer segment, int offset, byte[] key) {
+        if ((segment.getShort(offset + KEY_LENGTH) & 0xffff) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (segment.get(offset + KEY + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+package com.arash.ariani.idempotency.store.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A fixed-size log file, mapped into memory. Records are appended at {@link #position()}; the zero bytes after
+ * them mark the end of the written data. Also keeps the figures compaction works from: the latest expiry of any
+ * record, and how many bytes belong to records the index still points to.
+ */
+final class LogSegment {
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int position;
+    private long maxExpiry;
+    private long liveBytes;
+
+    private LogSegment(int id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static LogSegment create(Path directory, int id, int size) {
+        return map(id, directory.resolve(PREFIX + String.format("%010d", id) + SUFFIX), size, true);
+    }
+
+    static LogSegment open(Path path) {
+        try {
+            return map(idOf(path), path, Math.toIntExact(Files.size(path)), false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open idempotency log segment " + path, e);
+        }
+    }
+
+    /**
+     * The id of a segment file, or {@code -1} if {@code path} is not one.
+     */
+    static int idOf(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name, PREFIX.length(), name.length() - SUFFIX.length(), 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static LogSegment map(int id, Path path, int size, boolean create) {
+        try {
+            FileChannel channel = create
+                    ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)
+                    : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Mapping past the end of a new file extends it with zeros
+            return new LogSegment(id, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map idempotency log segment " + path, e);
+        }
+    }
+
+    int id() {
+        return id;
+    }
+
+    /**
+     * The mapped file. Only absolute reads and writes are used, so the buffer can be shared between threads.
+     */
+    MappedByteBuffer buffer() {
+        return buffer;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    int position() {
+        return position;
+    }
+
+    void position(int position) {
+        this.position = position;
+    }
+
+    boolean fits(int length) {
+        return position + length <= buffer.capacity();
+    }
+
+    /**
+     * @return the offset the record was written at
+     */
+    int append(byte[] record, long expiry, boolean force) {
+        int offset = position;
+        buffer.put(offset, record);
+        if (force) {
+            buffer.force(offset, record.length);
+        }
+        position += record.length;
+        expired(expiry);
+        return offset;
+    }
+
+    byte[] read(int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return bytes;
+    }
+
+    long maxExpiry() {
+        return maxExpiry;
+    }
+
+    /**
+     * Notes a record expiring at {@code expiry}.
+     */
+    void expired(long expiry) {
+        maxExpiry = Math.max(maxExpiry, expiry);
+    }
+
+    long liveBytes() {
+        return liveBytes;
+    }
+
+    void addLiveBytes(long delta) {
+        liveBytes += delta;
+    }
+
+    void flush() {
+        buffer.force();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot close idempotency log segment " + path, e);
+        }
+    }
+
+    /**
+     * Closes and deletes the file. The mapping stays readable until it is garbage collected.
+     */
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot delete idempotency log segment " + path, e);
+        }
+    }
+}
@@ -0,0 +1,712 @@
+package com.arash.ariani.idempotency.store.file;
+
+import com.arash.ariani.idempotency.codec.PayloadCodec;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.KeyHashing;
+import com.arash.ariani.idempotency.store.LookupResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Durable store for a single node, kept in a directory of memory-mapped, append-only log segments. Every claim,
+ * response and release is appended to the newest segment, which rolls over once full; an off-heap hash index points
+ * each key at its latest record, so lookups read one record straight from the mapping.
+ * <p>
+ * A background task drops segments whose records have all expired and rewrites those whose live records take up
+ * less than {@code compactionThreshold} of their size into the newest segment. The index is written to a snapshot
+ * periodically and on close; on startup the snapshot is loaded and only the log written after it is replayed.
+ * Without a usable snapshot the index is rebuilt from all segments.
+ * <p>
+ * Writes reach the operating system immediately, so they survive a crash of the process. With {@code force} every
+ * write is also flushed to the device before it returns, so they survive a crash of the machine, at the cost of a
+ * disk flush per write. Only one process can use a directory at a time.
+ */
+public class MappedFileIdempotencyStore implements IdempotencyStore, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedFileIdempotencyStore.class);
+
+    private static final String SNAPSHOT = "index.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x49444958;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    public record Stats(int keys, int segments, long diskBytes, long liveBytes, long indexBytes, long compactions) {
+    }
+
+    private final Path directory;
+    private final PayloadCodec codec;
+    private final int segmentSize;
+    private final double compactionThreshold;
+    private final boolean force;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, LogSegment> segments = new TreeMap<>();
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private final ScheduledExecutorService maintenance;
+    private OffHeapIndex index;
+    private LogSegment active;
+    private long compactions;
+    private boolean closed;
+
+    /**
+     * @param segmentSize         size of a log segment in bytes; larger records get a segment of their own size
+     * @param compactionInterval  how often segments are compacted, {@code null} or zero to only compact on
+     *                            {@link #compact()}
+     * @param compactionThreshold share of a segment below which its live records are moved out, from {@code 0}
+     *                            to only drop fully expired segments up to, but excluding, {@code 1}
+     * @param snapshotInterval    how often the index is snapshotted, {@code null} or zero to only snapshot on close
+     * @param force               whether every write is flushed to the device before it returns
+     */
+    public MappedFileIdempotencyStore(Path directory, PayloadCodec codec, int segmentSize,
+                                      Duration compactionInterval, double compactionThreshold,
+                                      Duration snapshotInterval, boolean force) {
+        if (segmentSize < LogRecord.MIN_LENGTH) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        if (compactionThreshold < 0 || compactionThreshold >= 1) {
+            throw new IllegalArgumentException("Compaction threshold must be in [0, 1): " + compactionThreshold);
+        }
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.force = force;
+        try {
+            Files.createDirectories(directory);
+            this.lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            this.fileLock = tryLock(lockChannel);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open idempotency store in " + directory, e);
+        }
+        try {
+            recover();
+        } catch (IOException e) {
+            closeOnFailure(e);
+            throw new UncheckedIOException("Cannot open idempotency store in " + directory, e);
+        } catch (RuntimeException e) {
+            closeOnFailure(e);
+            throw e;
+        }
+        boolean compacts = isPositive(compactionInterval);
+        boolean snapshots = isPositive(snapshotInterval);
+        if (compacts || snapshots) {
+            this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "idempotency-file-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (compacts) {
+                long period = compactionInterval.toMillis();
+                maintenance.scheduleWithFixedDelay(() -> run(this::compact, "Compacting"), period, period,
+                        TimeUnit.MILLISECONDS);
+            }
+            if (snapshots) {
+                long period = snapshotInterval.toMillis();
+                maintenance.scheduleWithFixedDelay(() -> run(this::snapshot, "Snapshotting"), period, period,
+                        TimeUnit.MILLISECONDS);
+            }
+        } else {
+            this.maintenance = null;
+        }
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = KeyHashing.hash(keyBytes);
+        long expiry = System.currentTimeMillis() + ttl.toMillis();
+        byte[] payload = response != null ? codec.encode(response) : null;
+        byte[] record = new LogRecord(LogRecord.COMPLETE, expiry, keyBytes, fingerprint, payload).encode();
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            int slot = index.find(hash, matcher(keyBytes));
+            int offset = append(record, expiry);
+            index(hash, slot, OffHeapIndex.COMPLETED, expiry, active, offset, record.length);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = KeyHashing.hash(keyBytes);
+        byte[] completed;
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            int slot = index.find(hash, matcher(keyBytes));
+            if (slot < 0 || isExpired(index.expiry(slot), System.currentTimeMillis())) {
+                return LookupResult.miss();
+            }
+            if (index.state(slot) == OffHeapIndex.CLAIMED) {
+                return LookupResult.inProgress();
+            }
+            completed = read(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Decoded outside the lock, it may take much longer than the read
+        LogRecord record = LogRecord.read(ByteBuffer.wrap(completed), 0);
+        return LookupResult.completed(decode(record), record.fingerprint());
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = KeyHashing.hash(keyBytes);
+        long now = System.currentTimeMillis();
+        long expiry = now + leaseTtl.toMillis();
+        byte[] claim = new LogRecord(LogRecord.CLAIM, expiry, keyBytes, null, null).encode();
+        byte[] completed;
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            int slot = index.find(hash, matcher(keyBytes));
+            if (slot < 0 || isExpired(index.expiry(slot), now)) {
+                int offset = append(claim, expiry);
+                index(hash, slot, OffHeapIndex.CLAIMED, expiry, active, offset, claim.length);
+                return AcquireResult.acquired();
+            }
+            if (index.state(slot) == OffHeapIndex.CLAIMED) {
+                return AcquireResult.inProgress();
+            }
+            completed = read(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LogRecord record = LogRecord.read(ByteBuffer.wrap(completed), 0);
+        return AcquireResult.completed(decode(record), record.fingerprint());
+    }
+
+    /**
+     * Claims every key under one hold of the lock, and with {@code force} syncs the log once for all of them.
+     */
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        long now = System.currentTimeMillis();
+        long expiry = now + leaseTtl.toMillis();
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        Map<String, byte[]> completed = new HashMap<>();
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            int firstSegment = active.id();
+            for (String key : keys) {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                long hash = KeyHashing.hash(keyBytes);
+                int slot = index.find(hash, matcher(keyBytes));
+                if (slot < 0 || isExpired(index.expiry(slot), now)) {
+                    byte[] claim = new LogRecord(LogRecord.CLAIM, expiry, keyBytes, null, null).encode();
+                    int offset = append(claim, expiry, false);
+                    index(hash, slot, OffHeapIndex.CLAIMED, expiry, active, offset, claim.length);
+                    results.put(key, AcquireResult.acquired());
+                } else if (index.state(slot) == OffHeapIndex.CLAIMED) {
+                    results.put(key, AcquireResult.inProgress());
+                } else {
+                    results.put(key, null);
+                    completed.put(key, read(slot));
+                }
+            }
+            forceFrom(firstSegment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        completed.forEach((key, bytes) -> {
+            LogRecord record = LogRecord.read(ByteBuffer.wrap(bytes), 0);
+            results.put(key, AcquireResult.completed(decode(record), record.fingerprint()));
+        });
+        return results;
+    }
+
+    /**
+     * Encodes the responses outside the lock, then appends them under one hold of it, and with {@code force}
+     * syncs the log once for all of them.
+     */
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        long expiry = System.currentTimeMillis() + ttl.toMillis();
+        List<byte[]> keys = new ArrayList<>(responses.size());
+        List<byte[]> records = new ArrayList<>(responses.size());
+        responses.forEach((key, response) -> {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = response != null ? codec.encode(response) : null;
+            keys.add(keyBytes);
+            records.add(new LogRecord(LogRecord.COMPLETE, expiry, keyBytes, fingerprints.get(key), payload).encode());
+        });
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            int firstSegment = active.id();
+            for (int i = 0; i < records.size(); i++) {
+                byte[] keyBytes = keys.get(i);
+                long hash = KeyHashing.hash(keyBytes);
+                int slot = index.find(hash, matcher(keyBytes));
+                int offset = append(records.get(i), expiry, false);
+                index(hash, slot, OffHeapIndex.COMPLETED, expiry, active, offset, records.get(i).length);
+            }
+            forceFrom(firstSegment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void release(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = KeyHashing.hash(keyBytes);
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            int slot = index.find(hash, matcher(keyBytes));
+            if (slot < 0 || index.state(slot) != OffHeapIndex.CLAIMED) {
+                return;
+            }
+            // Expires with the claim it cancels, after which the claim is ignored on replay anyway
+            long expiry = index.expiry(slot);
+            byte[] release = new LogRecord(LogRecord.RELEASE, expiry, keyBytes, null, null).encode();
+            append(release, expiry);
+            active.addLiveBytes(release.length);
+            unindex(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops expired keys from the index, then drops segments whose records have all expired and moves the live
+     * records out of sparse ones. Runs periodically when a compaction interval is set; each step holds the
+     * exclusive lock on its own, so writes wait for one segment at most.
+     */
+    public void compact() {
+        int sealed;
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            // Expired keys still count as live until they are dropped from the index
+            long now = System.currentTimeMillis();
+            index.removeIf(slot -> {
+                if (!isExpired(index.expiry(slot), now)) {
+                    return false;
+                }
+                segments.get(index.segment(slot)).addLiveBytes(-index.length(slot));
+                return true;
+            });
+            sealed = segments.size() - 1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // Bounded, so segments filled by rewriting are not picked up again in the same run
+        for (int i = 0; i < sealed; i++) {
+            if (!compactOne(System.currentTimeMillis())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the index to {@value #SNAPSHOT}, so the next start only replays the log written after it.
+     */
+    public synchronized void snapshot() {
+        OffHeapIndex copy;
+        ByteBuffer header;
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            copy = index.copy();
+            header = ByteBuffer.allocate(20 + segments.size() * 20)
+                    .putInt(SNAPSHOT_MAGIC)
+                    .putInt(SNAPSHOT_VERSION)
+                    .putInt(active.id())
+                    .putInt(active.position())
+                    .putInt(segments.size());
+            for (LogSegment segment : segments.values()) {
+                header.putInt(segment.id()).putLong(segment.maxExpiry()).putLong(segment.liveBytes());
+            }
+            header.flip();
+        } finally {
+            lock.readLock().unlock();
+        }
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                copy.writeTo(channel);
+                if (force) {
+                    channel.force(true);
+                }
+            }
+            Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write idempotency index snapshot in " + directory, e);
+        }
+    }
+
+    public Stats stats() {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            long diskBytes = 0;
+            long liveBytes = 0;
+            for (LogSegment segment : segments.values()) {
+                diskBytes += segment.capacity();
+                liveBytes += segment.liveBytes();
+            }
+            return new Stats(index.size(), segments.size(), diskBytes, liveBytes, index.memoryBytes(), compactions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (maintenance != null) {
+            maintenance.shutdown();
+            try {
+                maintenance.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            snapshot();
+        } catch (RuntimeException e) {
+            // The next start rebuilds the index from the log instead
+            log.warn("Could not snapshot the idempotency index on close", e);
+        }
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (LogSegment segment : segments.values()) {
+                segment.flush();
+                segment.close();
+            }
+            fileLock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot close idempotency store in " + directory, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called under the lock, which {@link #close()} takes before unmapping the segments.
+     */
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Idempotency store in " + directory + " is closed");
+        }
+    }
+
+    private boolean compactOne(long now) {
+        lock.writeLock().lock();
+        try {
+            for (LogSegment segment : segments.values()) {
+                if (segment == active) {
+                    return false;
+                }
+                if (isExpired(segment.maxExpiry(), now) || segment.liveBytes() == 0) {
+                    drop(segment);
+                    return true;
+                }
+                if (segment.liveBytes() < segment.capacity() * compactionThreshold) {
+                    rewrite(segment, now);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the records of {@code segment} that are still needed to the newest segment and drops it.
+     */
+    private void rewrite(LogSegment segment, long now) {
+        ByteBuffer buffer = segment.buffer();
+        for (int offset = 0, length; (length = LogRecord.validLength(buffer, offset)) > 0; offset += length) {
+            LogRecord record = LogRecord.read(buffer, offset);
+            if (isExpired(record.expiry(), now)) {
+                continue;
+            }
+            int slot = index.find(KeyHashing.hash(record.key()), matcher(record.key()));
+            if (record.type() == LogRecord.RELEASE) {
+                // Still hides the claim on replay, unless the key was claimed or saved again since
+                if (slot < 0) {
+                    append(segment.read(offset, length), record.expiry());
+                    active.addLiveBytes(length);
+                }
+            } else if (slot >= 0 && index.segment(slot) == segment.id() && index.offset(slot) == offset) {
+                int copied = append(segment.read(offset, length), record.expiry());
+                active.addLiveBytes(length);
+                index.set(slot, index.state(slot), record.expiry(), active.id(), copied, length);
+            }
+        }
+        drop(segment);
+        compactions++;
+    }
+
+    private void drop(LogSegment segment) {
+        int id = segment.id();
+        index.removeIf(slot -> index.segment(slot) == id);
+        segments.remove(id);
+        segment.delete();
+    }
+
+    private void recover() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> LogSegment.idOf(path) >= 0)
+                    .map(LogSegment::open)
+                    .forEach(segment -> segments.put(segment.id(), segment));
+        }
+        if (!restoreSnapshot()) {
+            index = new OffHeapIndex(INITIAL_INDEX_CAPACITY);
+            for (LogSegment segment : segments.values()) {
+                replay(segment, 0);
+            }
+        }
+        if (segments.isEmpty()) {
+            LogSegment first = LogSegment.create(directory, 1, segmentSize);
+            segments.put(first.id(), first);
+        }
+        active = segments.lastEntry().getValue();
+        log.info("Opened idempotency store in {} with {} keys in {} segments", directory, index.size(),
+                segments.size());
+    }
+
+    /**
+     * Loads the snapshot and replays the log written after it.
+     *
+     * @return {@code false} if there is no snapshot or it does not match the segments on disk
+     */
+    private boolean restoreSnapshot() {
+        Path path = directory.resolve(SNAPSHOT);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        int activeId;
+        int activePosition;
+        Map<Integer, long[]> table = new HashMap<>();
+        OffHeapIndex restored;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(20);
+            if (!OffHeapIndex.readFully(channel, header)
+                    || header.getInt(0) != SNAPSHOT_MAGIC || header.getInt(4) != SNAPSHOT_VERSION) {
+                log.warn("Ignoring unreadable idempotency index snapshot {}", path);
+                return false;
+            }
+            activeId = header.getInt(8);
+            activePosition = header.getInt(12);
+            ByteBuffer entries = ByteBuffer.allocate(Math.max(0, header.getInt(16)) * 20);
+            if (!OffHeapIndex.readFully(channel, entries)) {
+                log.warn("Ignoring unreadable idempotency index snapshot {}", path);
+                return false;
+            }
+            for (entries.flip(); entries.hasRemaining(); ) {
+                table.put(entries.getInt(), new long[]{entries.getLong(), entries.getLong()});
+            }
+            restored = OffHeapIndex.readFrom(channel);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable idempotency index snapshot {}", path, e);
+            return false;
+        }
+        LogSegment snapshotActive = segments.get(activeId);
+        boolean consistent = restored != null
+                && !segments.isEmpty() && segments.lastKey() >= activeId
+                && (snapshotActive == null || activePosition <= snapshotActive.capacity())
+                && segments.headMap(activeId).keySet().stream().allMatch(table::containsKey);
+        if (!consistent) {
+            log.warn("Idempotency index snapshot {} does not match the log, rebuilding the index", path);
+            return false;
+        }
+        // Segments dropped after the snapshot took their records along, or had them copied to the replayed part
+        restored.removeIf(slot -> !segments.containsKey(restored.segment(slot)));
+        index = restored;
+        for (LogSegment segment : segments.values()) {
+            long[] stats = table.get(segment.id());
+            if (segment.id() <= activeId && stats != null) {
+                segment.expired(stats[0]);
+                segment.addLiveBytes(stats[1]);
+            }
+            if (segment.id() >= activeId) {
+                replay(segment, segment.id() == activeId ? activePosition : 0);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies the records of {@code segment} from {@code offset} to the index, and moves the segment's write
+     * position past them. A record cut short by a crash ends the replay; the next write overwrites it.
+     */
+    private void replay(LogSegment segment, int offset) {
+        ByteBuffer buffer = segment.buffer();
+        long now = System.currentTimeMillis();
+        for (int length; (length = LogRecord.validLength(buffer, offset)) > 0; offset += length) {
+            LogRecord record = LogRecord.read(buffer, offset);
+            segment.expired(record.expiry());
+            long hash = KeyHashing.hash(record.key());
+            int slot = index.find(hash, matcher(record.key()));
+            boolean expired = isExpired(record.expiry(), now);
+            if (record.type() == LogRecord.RELEASE || expired) {
+                if (record.type() == LogRecord.RELEASE && !expired) {
+                    segment.addLiveBytes(length);
+                }
+                if (slot >= 0) {
+                    unindex(slot);
+                }
+            } else {
+                byte state = record.type() == LogRecord.CLAIM ? OffHeapIndex.CLAIMED : OffHeapIndex.COMPLETED;
+                index(hash, slot, state, record.expiry(), segment, offset, length);
+            }
+        }
+        segment.position(offset);
+    }
+
+    /**
+     * Appends to the newest segment, rolling over to a new one if the record does not fit.
+     *
+     * @return the offset of the record in {@link #active}
+     */
+    private int append(byte[] record, long expiry) {
+        return append(record, expiry, force);
+    }
+
+    private int append(byte[] record, long expiry, boolean force) {
+        if (!active.fits(record.length)) {
+            LogSegment next = LogSegment.create(directory, active.id() + 1, Math.max(segmentSize, record.length));
+            segments.put(next.id(), next);
+            active = next;
+        }
+        return active.append(record, expiry, force);
+    }
+
+    /**
+     * With {@code force}, syncs what a batch appended to segment {@code firstSegment} and the ones after it.
+     */
+    private void forceFrom(int firstSegment) {
+        if (force) {
+            segments.tailMap(firstSegment, true).values().forEach(LogSegment::flush);
+        }
+    }
+
+    /**
+     * Points the key at a record, replacing {@code slot} unless it is {@code -1}.
+     */
+    private void index(long hash, int slot, byte state, long expiry, LogSegment segment, int offset, int length) {
+        segment.addLiveBytes(length);
+        if (slot >= 0) {
+            segments.get(index.segment(slot)).addLiveBytes(-index.length(slot));
+            index.set(slot, state, expiry, segment.id(), offset, length);
+        } else {
+            index.insert(hash, state, expiry, segment.id(), offset, length);
+        }
+    }
+
+    private void unindex(int slot) {
+        segments.get(index.segment(slot)).addLiveBytes(-index.length(slot));
+        index.remove(slot);
+    }
+
+    private OffHeapIndex.KeyMatcher matcher(byte[] key) {
+        return (segment, offset) -> LogRecord.hasKey(segments.get(segment).buffer(), offset, key);
+    }
+
+    private byte[] read(int slot) {
+        return segments.get(index.segment(slot)).read(index.offset(slot), index.length(slot));
+    }
+
+    private Object decode(LogRecord record) {
+        return record.payload() != null ? codec.decode(record.payload()) : null;
+    }
+
+    private static boolean isExpired(long expiry, long now) {
+        return now > expiry;
+    }
+
+    private static boolean isPositive(Duration duration) {
+        return duration != null && !duration.isZero() && !duration.isNegative();
+    }
+
+    private void closeOnFailure(Exception failure) {
+        segments.values().forEach(LogSegment::close);
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IllegalStateException("Idempotency store directory is in use by another store");
+        }
+        return lock;
+    }
+
+    private void run(Runnable task, String name) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; the store works without either, it just grows or restarts slower
+            log.warn("{} the idempotency store in {} failed", name, directory, e);
+        }
+    }
+}
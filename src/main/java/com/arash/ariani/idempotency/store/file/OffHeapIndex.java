@@ -0,0 +1,220 @@
+package com.arash.ariani.idempotency.store.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.IntPredicate;
+
+/**
+ * Open-addressing hash table from key hash to the latest log record of the key, kept in a direct buffer so a large
+ * index adds nothing to the heap the garbage collector scans. Slots are probed linearly; the key itself lives only in
+ * the log, so equal hashes are told apart by a {@link KeyMatcher}. Not thread-safe.
+ * <p>
+ * Slot layout: {@code long hash, long expiry, int segment, int offset, int length, byte state}, padded to 32 bytes.
+ */
+final class OffHeapIndex {
+
+    static final byte EMPTY = 0;
+    static final byte CLAIMED = 1;
+    static final byte COMPLETED = 2;
+    private static final byte DELETED = 3;
+
+    private static final int SLOT = 32;
+    private static final int HASH = 0;
+    private static final int EXPIRY = 8;
+    private static final int SEGMENT = 16;
+    private static final int OFFSET = 20;
+    private static final int LENGTH = 24;
+    private static final int STATE = 28;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final double MAX_LOAD = 0.7;
+
+    /**
+     * Whether the record at {@code offset} of {@code segment} is for the key being looked up.
+     */
+    @FunctionalInterface
+    interface KeyMatcher {
+        boolean matches(int segment, int offset);
+    }
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+    private int deleted;
+
+    OffHeapIndex(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1);
+        this.slots = ByteBuffer.allocateDirect(this.capacity * SLOT);
+    }
+
+    private OffHeapIndex(ByteBuffer slots, int capacity, int size, int deleted) {
+        this.slots = slots;
+        this.capacity = capacity;
+        this.size = size;
+        this.deleted = deleted;
+    }
+
+    /**
+     * @return the slot of the key, or {@code -1}
+     */
+    int find(long hash, KeyMatcher matcher) {
+        int mask = capacity - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            byte state = state(slot);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state != DELETED && slots.getLong(slot * SLOT + HASH) == hash
+                    && matcher.matches(segment(slot), offset(slot))) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Adds a key that is not in the index yet.
+     *
+     * @return its slot
+     */
+    int insert(long hash, byte state, long expiry, int segment, int offset, int length) {
+        if (size + deleted + 1 > capacity * MAX_LOAD) {
+            // Rehashing at the same size is enough when mostly tombstones fill the table
+            resize(size + 1 > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity);
+        }
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+        while (state(slot) != EMPTY && state(slot) != DELETED) {
+            slot = (slot + 1) & mask;
+        }
+        if (state(slot) == DELETED) {
+            deleted--;
+        }
+        size++;
+        slots.putLong(slot * SLOT + HASH, hash);
+        set(slot, state, expiry, segment, offset, length);
+        return slot;
+    }
+
+    void set(int slot, byte state, long expiry, int segment, int offset, int length) {
+        int base = slot * SLOT;
+        slots.putLong(base + EXPIRY, expiry);
+        slots.putInt(base + SEGMENT, segment);
+        slots.putInt(base + OFFSET, offset);
+        slots.putInt(base + LENGTH, length);
+        slots.put(base + STATE, state);
+    }
+
+    void remove(int slot) {
+        slots.put(slot * SLOT + STATE, DELETED);
+        size--;
+        deleted++;
+    }
+
+    /**
+     * Removes every key whose slot matches {@code slots}.
+     */
+    void removeIf(IntPredicate slots) {
+        for (int slot = 0; slot < capacity; slot++) {
+            byte state = state(slot);
+            if (state != EMPTY && state != DELETED && slots.test(slot)) {
+                remove(slot);
+            }
+        }
+    }
+
+    byte state(int slot) {
+        return slots.get(slot * SLOT + STATE);
+    }
+
+    long expiry(int slot) {
+        return slots.getLong(slot * SLOT + EXPIRY);
+    }
+
+    int segment(int slot) {
+        return slots.getInt(slot * SLOT + SEGMENT);
+    }
+
+    int offset(int slot) {
+        return slots.getInt(slot * SLOT + OFFSET);
+    }
+
+    int length(int slot) {
+        return slots.getInt(slot * SLOT + LENGTH);
+    }
+
+    int size() {
+        return size;
+    }
+
+    long memoryBytes() {
+        return (long) capacity * SLOT;
+    }
+
+    OffHeapIndex copy() {
+        ByteBuffer copy = ByteBuffer.allocateDirect(slots.capacity());
+        copy.put(0, slots, 0, slots.capacity());
+        return new OffHeapIndex(copy, capacity, size, deleted);
+    }
+
+    void writeTo(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12).putInt(capacity).putInt(size).putInt(deleted).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        ByteBuffer body = slots.duplicate().clear();
+        while (body.hasRemaining()) {
+            channel.write(body);
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo}, or returns {@code null} if the channel does not hold a whole one.
+     */
+    static OffHeapIndex readFrom(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        if (!readFully(channel, header)) {
+            return null;
+        }
+        int capacity = header.getInt(0);
+        int size = header.getInt(4);
+        int deleted = header.getInt(8);
+        if (capacity < 16 || capacity > MAX_CAPACITY || Integer.bitCount(capacity) != 1
+                || size < 0 || deleted < 0 || size + deleted > capacity) {
+            return null;
+        }
+        ByteBuffer slots = ByteBuffer.allocateDirect(capacity * SLOT);
+        return readFully(channel, slots) ? new OffHeapIndex(slots, capacity, size, deleted) : null;
+    }
+
+    static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resize(int newCapacity) {
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IllegalStateException("Idempotency file store index is full: " + size + " keys");
+        }
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        slots = ByteBuffer.allocateDirect(newCapacity * SLOT);
+        capacity = newCapacity;
+        deleted = 0;
+        int mask = newCapacity - 1;
+        for (int from = 0; from < oldCapacity; from++) {
+            byte state = old.get(from * SLOT + STATE);
+            if (state == EMPTY || state == DELETED) {
+                continue;
+            }
+            int slot = (int) old.getLong(from * SLOT + HASH) & mask;
+            while (state(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots.put(slot * SLOT, old, from * SLOT, SLOT);
+        }
+    }
+}
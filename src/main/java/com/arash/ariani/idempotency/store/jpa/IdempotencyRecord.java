@@ -1,21 +1,34 @@
 package com.arash.ariani.idempotency.store.jpa;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+import org.springframework.data.domain.Persistable;
 
 import java.time.Instant;
-import java.time.LocalDateTime;
 import java.util.Objects;
 
 @Entity
-@Table(name = "idempotency_entries")
-public class IdempotencyRecord {
+@Table(name = "idempotency_entries", indexes = @Index(name = "idx_idempotency_entries_ttl_expiry", columnList = "ttl_expiry"))
+public class IdempotencyRecord implements Persistable<String> {
 
     @Id
     private String key;
 
-    @Lob
-    @Column(nullable = false)
-    private String payload;
+    // bytea on PostgreSQL, a BLOB type elsewhere; not @Lob, which PostgreSQL would store out of line
+    @JdbcTypeCode(SqlTypes.LONG32VARBINARY)
+    private byte[] payload;
+
+    @Column(length = 64)
+    private String fingerprint;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Status status = Status.COMPLETED;
+
+    // Set while IN_PROGRESS, so only the claim's owner releases it
+    @Column(name = "claim_token", length = 36)
+    private String claimToken;
 
     @Column(name = "created_at", nullable = false, updatable = false)
     private Instant createdAt = Instant.now();
@@ -23,6 +36,9 @@ public class IdempotencyRecord {
     @Column(name = "ttl_expiry")
     private Instant ttlExpiry;
 
+    @Transient
+    private boolean isNew = true;
+
     public String getKey() {
         return key;
     }
@@ -31,14 +47,38 @@ public class IdempotencyRecord {
         this.key = key;
     }
 
-    public String getPayload() {
+    public byte[] getPayload() {
         return payload;
     }
 
-    public void setPayload(String payload) {
+    public void setPayload(byte[] payload) {
         this.payload = payload;
     }
 
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getClaimToken() {
+        return claimToken;
+    }
+
+    public void setClaimToken(String claimToken) {
+        this.claimToken = claimToken;
+    }
+
     public Instant getCreatedAt() {
         return createdAt;
     }
@@ -55,6 +95,26 @@ public class IdempotencyRecord {
         this.ttlExpiry = ttlExpiry;
     }
 
+    @Override
+    public String getId() {
+        return key;
+    }
+
+    /**
+     * Keys are assigned, so without this hint Spring Data would merge (select, then insert) instead of
+     * persisting. A plain insert is what makes the claim atomic: a duplicate key fails on the primary key.
+     */
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        this.isNew = false;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -67,4 +127,6 @@ public class IdempotencyRecord {
     public int hashCode() {
         return Objects.hashCode(key);
     }
+
+    public enum Status {IN_PROGRESS, COMPLETED}
 }
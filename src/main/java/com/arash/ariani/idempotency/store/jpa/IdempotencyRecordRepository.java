@@ -1,9 +1,37 @@
 package com.arash.ariani.idempotency.store.jpa;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
-import java.time.LocalDateTime;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 
 
 public interface IdempotencyRecordRepository extends JpaRepository<IdempotencyRecord, String> {
-    void deleteAllByTtlExpiryBefore(LocalDateTime time);
+
+    @Query("select r.key from IdempotencyRecord r where r.ttlExpiry < :now")
+    List<String> findExpiredKeys(@Param("now") Instant now, Pageable page);
+
+    /**
+     * Bulk delete that skips the persistence context. Expiry is checked again so that a key which was
+     * claimed again after {@link #findExpiredKeys} is kept.
+     */
+    @Modifying
+    @Query("delete from IdempotencyRecord r where r.key in :keys and r.ttlExpiry < :now")
+    int deleteExpired(@Param("keys") Collection<String> keys, @Param("now") Instant now);
+
+    @Modifying
+    @Query("update IdempotencyRecord r set r.status = :status, r.payload = null, r.fingerprint = null, " +
+            "r.claimToken = :token, r.ttlExpiry = :expiry where r.key = :key and r.ttlExpiry < :now")
+    int takeOverExpired(@Param("key") String key, @Param("status") IdempotencyRecord.Status status,
+                        @Param("token") String token, @Param("expiry") Instant expiry, @Param("now") Instant now);
+
+    @Modifying
+    @Query("delete from IdempotencyRecord r where r.key = :key and r.status = :status and r.claimToken = :token")
+    int deleteClaim(@Param("key") String key, @Param("status") IdempotencyRecord.Status status,
+                    @Param("token") String token);
 }
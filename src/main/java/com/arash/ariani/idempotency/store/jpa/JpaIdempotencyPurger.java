@@ -0,0 +1,79 @@
+package com.arash.ariani.idempotency.store.jpa;
+
+import com.arash.ariani.idempotency.store.AcquireResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically deletes expired rows from the idempotency table.
+ * <p>
+ * When {@code exclusive}, each run first claims a lock row in the same table for one interval, so in a cluster
+ * only one node purges per interval. The lock is never released: it expires on its own, which also keeps a node
+ * that restarts from purging again right away.
+ */
+public class JpaIdempotencyPurger implements AutoCloseable {
+
+    static final String LOCK_KEY = "__idempotency:purge-lock__";
+
+    private static final Logger log = LoggerFactory.getLogger(JpaIdempotencyPurger.class);
+
+    private final JpaIdempotencyStore store;
+    private final Duration interval;
+    private final int batchSize;
+    private final boolean exclusive;
+    private final ScheduledExecutorService scheduler;
+
+    public JpaIdempotencyPurger(JpaIdempotencyStore store, Duration interval, int batchSize, boolean exclusive) {
+        if (interval.isZero() || interval.isNegative()) {
+            throw new IllegalArgumentException("Purge interval must be positive: " + interval);
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Purge batch size must be positive: " + batchSize);
+        }
+        this.store = store;
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.exclusive = exclusive;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-jpa-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = interval.toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::run, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs one purge now, unless another node holds the lock.
+     *
+     * @return the number of rows deleted
+     */
+    public int purge() {
+        if (exclusive && store.tryAcquire(LOCK_KEY, interval).status() != AcquireResult.Status.NEW) {
+            return 0;
+        }
+        return store.purgeExpired(batchSize);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void run() {
+        try {
+            int purged = purge();
+            if (purged > 0) {
+                log.debug("Purged {} expired idempotency entries", purged);
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; the next run retries
+            log.warn("Purging expired idempotency entries failed", e);
+        }
+    }
+}
@@ -1,61 +1,251 @@
 package com.arash.ariani.idempotency.store.jpa;
 
+import com.arash.ariani.idempotency.codec.JacksonPayloadCodec;
+import com.arash.ariani.idempotency.codec.PayloadCodec;
+import com.arash.ariani.idempotency.store.AcquireResult;
 import com.arash.ariani.idempotency.store.IdempotencyStore;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.arash.ariani.idempotency.store.LookupResult;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-
+import java.util.UUID;
 
 public class JpaIdempotencyStore implements IdempotencyStore {
 
-    private final ObjectMapper mapper;
+    private final PayloadCodec codec;
     private final IdempotencyRecordRepository repository;
+    private final TransactionTemplate transaction;
+    private final TransactionTemplate claimTransaction;
+
+    public JpaIdempotencyStore(IdempotencyRecordRepository repository, ObjectMapper mapper,
+                               PlatformTransactionManager transactionManager) {
+        this(repository, JacksonPayloadCodec.json(mapper), transactionManager);
+    }
 
-    public JpaIdempotencyStore(IdempotencyRecordRepository repository, ObjectMapper mapper) {
+    public JpaIdempotencyStore(IdempotencyRecordRepository repository, PayloadCodec codec,
+                               PlatformTransactionManager transactionManager) {
         this.repository = repository;
-        this.mapper = mapper;
+        this.codec = codec;
+        this.transaction = new TransactionTemplate(transactionManager);
+        // Claims run in their own transaction so a duplicate-key failure never marks the caller's transaction rollback-only
+        this.claimTransaction = new TransactionTemplate(transactionManager);
+        this.claimTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
     }
 
     @Override
-    public boolean exists(String key) {
-        return repository.findById(key)
-                .filter(record -> record.getTtlExpiry().isAfter(Instant.now()))
-                .isPresent();
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
     }
 
-
     @Override
-    public void save(String key, Object response, Duration ttl) {
-        try {
-            String json = mapper.writeValueAsString(response);
-            IdempotencyRecord record = new IdempotencyRecord();
-            record.setKey(key);
-            record.setPayload(json);
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        byte[] payload = codec.encode(response);
+        transaction.executeWithoutResult(status -> {
+            IdempotencyRecord record = repository.findById(key).orElseGet(() -> {
+                IdempotencyRecord created = new IdempotencyRecord();
+                created.setKey(key);
+                return created;
+            });
+            record.setPayload(payload);
+            record.setFingerprint(fingerprint);
+            record.setStatus(IdempotencyRecord.Status.COMPLETED);
+            record.setClaimToken(null);
             record.setTtlExpiry(Instant.now().plus(ttl));
             repository.save(record);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Failed to serialize response", e);
-        }
+        });
     }
 
     @Override
     public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
         return repository.findById(key)
                 .filter(record -> {
                     Instant now = Instant.now();
                     return record.getTtlExpiry().isAfter(now);
                 })
-                .map(record -> {
-                    try {
-                        return mapper.readValue(record.getPayload(), Object.class);
-                    } catch (IOException e) {
-                        throw new RuntimeException("Failed to deserialize cached payload", e);
-                    }
+                .map(record -> record.getStatus() == IdempotencyRecord.Status.IN_PROGRESS
+                        ? LookupResult.inProgress()
+                        : LookupResult.completed(readPayload(record), record.getFingerprint()))
+                .orElseGet(LookupResult::miss);
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        while (true) {
+            Instant now = Instant.now();
+            Instant leaseExpiry = now.plus(leaseTtl);
+            String token = UUID.randomUUID().toString();
+            try {
+                claimTransaction.executeWithoutResult(status ->
+                        repository.saveAndFlush(claim(key, token, leaseExpiry)));
+                return AcquireResult.acquired(token);
+            } catch (DataIntegrityViolationException conflict) {
+                // Key exists: report it, or take it over if it has expired
+            }
+
+            Optional<IdempotencyRecord> existing = repository.findById(key);
+            if (existing.isEmpty()) {
+                continue; // deleted between the insert and the read
+            }
+            IdempotencyRecord record = existing.get();
+            if (record.getTtlExpiry() != null && record.getTtlExpiry().isAfter(now)) {
+                return record.getStatus() == IdempotencyRecord.Status.IN_PROGRESS
+                        ? AcquireResult.inProgress()
+                        : AcquireResult.completed(readPayload(record), record.getFingerprint());
+            }
+            Integer updated = claimTransaction.execute(status ->
+                    repository.takeOverExpired(key, IdempotencyRecord.Status.IN_PROGRESS, token, leaseExpiry, now));
+            if (updated != null && updated == 1) {
+                return AcquireResult.acquired(token);
+            }
+        }
+    }
+
+    /**
+     * Reads every key with one {@code findAllById} and inserts the claims for the unknown ones in one transaction,
+     * sent as a JDBC batch when {@code hibernate.jdbc.batch_size} is set. Expired keys, and all of the batch if
+     * another request claimed one of them in the meantime, are claimed one by one.
+     */
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        Instant now = Instant.now();
+        Map<String, IdempotencyRecord> existing = new HashMap<>();
+        repository.findAllById(keys).forEach(record -> existing.put(record.getKey(), record));
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        List<String> unknown = new ArrayList<>();
+        List<String> oneByOne = new ArrayList<>();
+        for (String key : keys) {
+            IdempotencyRecord record = existing.get(key);
+            results.put(key, null);
+            if (record == null) {
+                unknown.add(key);
+            } else if (record.getTtlExpiry() != null && record.getTtlExpiry().isAfter(now)) {
+                results.put(key, record.getStatus() == IdempotencyRecord.Status.IN_PROGRESS
+                        ? AcquireResult.inProgress()
+                        : AcquireResult.completed(readPayload(record), record.getFingerprint()));
+            } else {
+                oneByOne.add(key);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            Instant leaseExpiry = now.plus(leaseTtl);
+            Map<String, String> tokens = new HashMap<>();
+            unknown.forEach(key -> tokens.put(key, UUID.randomUUID().toString()));
+            try {
+                claimTransaction.executeWithoutResult(status -> {
+                    repository.saveAll(unknown.stream()
+                            .map(key -> claim(key, tokens.get(key), leaseExpiry))
+                            .toList());
+                    repository.flush();
                 });
+                unknown.forEach(key -> results.put(key, AcquireResult.acquired(tokens.get(key))));
+            } catch (DataIntegrityViolationException conflict) {
+                // The whole batch rolled back
+                oneByOne.addAll(unknown);
+            }
+        }
+        oneByOne.forEach(key -> results.put(key, tryAcquire(key, leaseTtl)));
+        return results;
+    }
+
+    /**
+     * Reads the rows with one {@code findAllById} and writes all responses in one transaction.
+     */
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        responses.forEach((key, response) -> payloads.put(key, codec.encode(response)));
+        transaction.executeWithoutResult(status -> {
+            Map<String, IdempotencyRecord> records = new HashMap<>();
+            repository.findAllById(payloads.keySet()).forEach(record -> records.put(record.getKey(), record));
+            Instant expiry = Instant.now().plus(ttl);
+            List<IdempotencyRecord> completed = new ArrayList<>();
+            payloads.forEach((key, payload) -> {
+                IdempotencyRecord record = records.computeIfAbsent(key, missing -> {
+                    IdempotencyRecord created = new IdempotencyRecord();
+                    created.setKey(missing);
+                    return created;
+                });
+                record.setPayload(payload);
+                record.setFingerprint(fingerprints.get(key));
+                record.setStatus(IdempotencyRecord.Status.COMPLETED);
+                record.setClaimToken(null);
+                record.setTtlExpiry(expiry);
+                completed.add(record);
+            });
+            repository.saveAll(completed);
+        });
+    }
+
+    @Override
+    public void release(String key) {
+        claimTransaction.executeWithoutResult(status -> repository.findById(key)
+                .filter(record -> record.getStatus() == IdempotencyRecord.Status.IN_PROGRESS)
+                .ifPresent(repository::delete));
+    }
+
+    /**
+     * Deletes the row only while it is still the claim with {@code token}, in one statement.
+     */
+    @Override
+    public void release(String key, String token) {
+        if (token != null) {
+            claimTransaction.executeWithoutResult(status ->
+                    repository.deleteClaim(key, IdempotencyRecord.Status.IN_PROGRESS, token));
+        }
+    }
+
+    /**
+     * Deletes expired rows in batches of at most {@code batchSize}, each batch deleted in its own short transaction so
+     * that row locks are never held for the whole purge.
+     *
+     * @return the number of rows deleted
+     */
+    public int purgeExpired(int batchSize) {
+        Instant now = Instant.now();
+        PageRequest batch = PageRequest.ofSize(batchSize);
+        int purged = 0;
+        while (true) {
+            List<String> keys = repository.findExpiredKeys(now, batch);
+            if (keys.isEmpty()) {
+                return purged;
+            }
+            Integer deleted = transaction.execute(status -> repository.deleteExpired(keys, now));
+            purged += deleted != null ? deleted : 0;
+            if (keys.size() < batchSize) {
+                return purged;
+            }
+        }
+    }
+
+    private static IdempotencyRecord claim(String key, String token, Instant leaseExpiry) {
+        IdempotencyRecord claim = new IdempotencyRecord();
+        claim.setKey(key);
+        claim.setStatus(IdempotencyRecord.Status.IN_PROGRESS);
+        claim.setClaimToken(token);
+        claim.setTtlExpiry(leaseExpiry);
+        return claim;
+    }
+
+    private Object readPayload(IdempotencyRecord record) {
+        return codec.decode(record.getPayload());
     }
 
 }
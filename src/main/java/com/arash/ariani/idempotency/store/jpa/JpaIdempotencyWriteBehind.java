@@ -0,0 +1,234 @@
+package com.arash.ariani.idempotency.store.jpa;
+
+import com.arash.ariani.idempotency.codec.PayloadCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Queues completed responses and writes them to the idempotency table in JDBC batches, every {@code flushInterval}
+ * or as soon as {@code batchSize} are waiting. Responses stay readable through {@link #pending(String)} until their
+ * batch is committed.
+ * <p>
+ * The claim row already exists when a response completes, so a flush is a batch of updates; rows that are gone by
+ * then, for example purged after their lease expired, are inserted one by one, and skipped if someone claimed the
+ * key again in between. Responses are encoded when they are queued, so one that cannot be encoded never holds up a
+ * batch. A full queue or a failed encoding is reported to the caller, which then saves synchronously. On close the
+ * queue is drained on the closing thread.
+ */
+public class JpaIdempotencyWriteBehind implements AutoCloseable {
+
+    private static final String UPDATE = "UPDATE idempotency_entries " +
+            "SET payload = :payload, fingerprint = :fingerprint, status = 'COMPLETED', claim_token = NULL, " +
+            "ttl_expiry = :expiry WHERE key = :key";
+    private static final String INSERT = "INSERT INTO idempotency_entries " +
+            "(key, payload, fingerprint, status, ttl_expiry, created_at) " +
+            "VALUES (:key, :payload, :fingerprint, 'COMPLETED', :expiry, :now)";
+
+    private static final Logger log = LoggerFactory.getLogger(JpaIdempotencyWriteBehind.class);
+
+    private final NamedParameterJdbcTemplate jdbc;
+    private final TransactionTemplate transaction;
+    private final PayloadCodec codec;
+    private final int batchSize;
+    private final BlockingQueue<Completion> queue;
+    private final Map<String, Completion> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    // Offers share it, close takes it alone: nothing is queued once close starts draining
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    public JpaIdempotencyWriteBehind(DataSource dataSource, PlatformTransactionManager transactionManager,
+                                     PayloadCodec codec, int capacity, int batchSize, Duration flushInterval) {
+        if (capacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Write-behind capacity and batch size must be positive");
+        }
+        if (flushInterval.isZero() || flushInterval.isNegative()) {
+            throw new IllegalArgumentException("Write-behind flush interval must be positive: " + flushInterval);
+        }
+        this.jdbc = new NamedParameterJdbcTemplate(new JdbcTemplate(dataSource));
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.codec = codec;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-jpa-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = flushInterval.toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::run, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a completed response.
+     *
+     * @return {@code false} if the queue is full or closed, or the response cannot be encoded, in which case the
+     * caller has to save it itself
+     */
+    public boolean offer(String key, Object response, String fingerprint, Duration ttl) {
+        byte[] payload;
+        try {
+            payload = codec.encode(response);
+        } catch (RuntimeException e) {
+            // The synchronous save reports it to the caller
+            return false;
+        }
+        Completion completion = new Completion(key, response, payload, fingerprint, Instant.now().plus(ttl));
+        closing.readLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            pending.put(key, completion);
+            if (!queue.offer(completion)) {
+                pending.remove(key, completion);
+                return false;
+            }
+            if (queue.size() >= batchSize) {
+                scheduler.execute(this::run);
+            }
+            return true;
+        } finally {
+            closing.readLock().unlock();
+        }
+    }
+
+    /**
+     * The response queued for {@code key}, or {@code null} if none is waiting to be written.
+     */
+    public Completion pending(String key) {
+        Completion completion = pending.get(key);
+        return completion != null && completion.expiry().isAfter(Instant.now()) ? completion : null;
+    }
+
+    /**
+     * Writes everything queued so far.
+     *
+     * @return the number of responses written
+     */
+    public synchronized int flush() {
+        int written = 0;
+        List<Completion> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            try {
+                write(batch);
+                written += batch.size();
+                batch.forEach(completion -> pending.remove(completion.key(), completion));
+            } catch (RuntimeException e) {
+                requeue(batch);
+                throw e;
+            } finally {
+                batch.clear();
+            }
+        }
+        return written;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() {
+        closing.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Dropping {} idempotency responses that could not be written on shutdown", queue.size(), e);
+        }
+    }
+
+    private void run() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; the requeued responses are retried on the next run
+            log.warn("Writing queued idempotency responses failed", e);
+        }
+    }
+
+    private void write(List<Completion> batch) {
+        SqlParameterSource[] rows = batch.stream().map(this::parameters).toArray(SqlParameterSource[]::new);
+        int[] updated = transaction.execute(status -> jdbc.batchUpdate(UPDATE, rows));
+        // Outside the batch transaction: on some databases a failed insert would abort it
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] == 0) {
+                insert(rows[i]);
+            }
+        }
+    }
+
+    private void insert(SqlParameterSource row) {
+        try {
+            jdbc.update(INSERT, row);
+        } catch (DataIntegrityViolationException e) {
+            // Claimed again since the row disappeared; the new owner writes its own response
+        }
+    }
+
+    private void requeue(List<Completion> batch) {
+        int dropped = 0;
+        for (Completion completion : batch) {
+            if (!queue.offer(completion)) {
+                pending.remove(completion.key(), completion);
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            log.error("Dropping {} idempotency responses, the write-behind queue is full", dropped);
+        }
+    }
+
+    private SqlParameterSource parameters(Completion completion) {
+        // Instants are bound the way Hibernate binds them, so the JPA store reads back the same time
+        return new MapSqlParameterSource()
+                .addValue("key", completion.key())
+                .addValue("payload", completion.payload(), Types.VARBINARY)
+                .addValue("fingerprint", completion.fingerprint(), Types.VARCHAR)
+                .addValue("expiry", utc(completion.expiry()), Types.TIMESTAMP_WITH_TIMEZONE)
+                .addValue("now", utc(Instant.now()), Types.TIMESTAMP_WITH_TIMEZONE);
+    }
+
+    private static OffsetDateTime utc(Instant instant) {
+        return instant.atOffset(ZoneOffset.UTC);
+    }
+
+    public record Completion(String key, Object response, byte[] payload, String fingerprint, Instant expiry) {
+    }
+}
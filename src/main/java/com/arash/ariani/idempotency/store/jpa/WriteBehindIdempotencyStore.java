@@ -0,0 +1,132 @@
+package com.arash.ariani.idempotency.store.jpa;
+
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.IdempotencyStoreDecorator;
+import com.arash.ariani.idempotency.store.LookupResult;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Hands completed responses to a {@link JpaIdempotencyWriteBehind} instead of saving them on the request thread.
+ * Claims and releases stay synchronous. Lookups and claims on this node see queued responses before they reach
+ * the table; other nodes see the key in progress until the next flush.
+ */
+public class WriteBehindIdempotencyStore implements IdempotencyStore, AutoCloseable {
+
+    private final IdempotencyStore delegate;
+    private final JpaIdempotencyWriteBehind writeBehind;
+
+    public WriteBehindIdempotencyStore(IdempotencyStore delegate, JpaIdempotencyWriteBehind writeBehind) {
+        this.delegate = delegate;
+        this.writeBehind = writeBehind;
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        if (!writeBehind.offer(key, response, fingerprint, ttl)) {
+            delegate.save(key, response, fingerprint, ttl);
+        }
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        JpaIdempotencyWriteBehind.Completion queued = writeBehind.pending(key);
+        return queued != null
+                ? LookupResult.completed(queued.response(), queued.fingerprint())
+                : delegate.lookup(key);
+    }
+
+    @Override
+    public Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        Map<String, LookupResult> results = new LinkedHashMap<>();
+        List<String> unqueued = new ArrayList<>();
+        for (String key : keys) {
+            // Unqueued keys hold their position with null until the delegate fills them in
+            JpaIdempotencyWriteBehind.Completion queued = writeBehind.pending(key);
+            results.put(key, queued != null ? LookupResult.completed(queued.response(), queued.fingerprint()) : null);
+            if (queued == null) {
+                unqueued.add(key);
+            }
+        }
+        if (!unqueued.isEmpty()) {
+            results.putAll(delegate.lookupAll(unqueued));
+        }
+        return results;
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        JpaIdempotencyWriteBehind.Completion queued = writeBehind.pending(key);
+        return queued != null
+                ? AcquireResult.completed(queued.response(), queued.fingerprint())
+                : delegate.tryAcquire(key, leaseTtl);
+    }
+
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        List<String> unqueued = new ArrayList<>();
+        for (String key : keys) {
+            JpaIdempotencyWriteBehind.Completion queued = writeBehind.pending(key);
+            results.put(key, queued != null ? AcquireResult.completed(queued.response(), queued.fingerprint()) : null);
+            if (queued == null) {
+                unqueued.add(key);
+            }
+        }
+        if (!unqueued.isEmpty()) {
+            results.putAll(delegate.tryAcquireAll(unqueued, leaseTtl));
+        }
+        return results;
+    }
+
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        // Whatever the full queue turns away is saved in one batch on this thread
+        Map<String, Object> rejected = new LinkedHashMap<>();
+        responses.forEach((key, response) -> {
+            if (!writeBehind.offer(key, response, fingerprints.get(key), ttl)) {
+                rejected.put(key, response);
+            }
+        });
+        if (!rejected.isEmpty()) {
+            delegate.saveAll(rejected, fingerprints, ttl);
+        }
+    }
+
+    @Override
+    public void release(String key) {
+        delegate.release(key);
+    }
+
+    @Override
+    public void release(String key, String token) {
+        delegate.release(key, token);
+    }
+
+    @Override
+    public void warmUp() {
+        delegate.warmUp();
+    }
+
+    @Override
+    public void close() {
+        IdempotencyStoreDecorator.close(delegate);
+    }
+}
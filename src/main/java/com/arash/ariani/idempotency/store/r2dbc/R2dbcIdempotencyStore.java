@@ -0,0 +1,170 @@
+package com.arash.ariani.idempotency.store.r2dbc;
+
+import com.arash.ariani.idempotency.codec.PayloadCodec;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.LookupResult;
+import com.arash.ariani.idempotency.store.ReactiveIdempotencyStore;
+import io.r2dbc.spi.Readable;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+/**
+ * Non-blocking store over the same {@code idempotency_entries} table as the JPA store (see {@code schema.sql}).
+ * Timestamps are written as UTC. Claims rely on the primary key exactly like the JPA store: a plain insert, and
+ * on a duplicate key either the existing state or a conditional takeover of an expired row. Claims carry a token,
+ * so a release only deletes its own claim.
+ */
+public class R2dbcIdempotencyStore implements ReactiveIdempotencyStore {
+
+    private static final String IN_PROGRESS = "IN_PROGRESS";
+    private static final String COMPLETED = "COMPLETED";
+
+    private final DatabaseClient client;
+    private final PayloadCodec codec;
+
+    public R2dbcIdempotencyStore(DatabaseClient client, PayloadCodec codec) {
+        this.client = client;
+        this.codec = codec;
+    }
+
+    @Override
+    public Mono<LookupResult> lookup(String key) {
+        return read(key)
+                .filter(entry -> entry.expiry().isAfter(now()))
+                .map(entry -> entry.inProgress()
+                        ? LookupResult.inProgress()
+                        : LookupResult.completed(codec.decode(entry.payload()), entry.fingerprint()))
+                .defaultIfEmpty(LookupResult.miss());
+    }
+
+    @Override
+    public Mono<AcquireResult> tryAcquire(String key, Duration leaseTtl) {
+        return Mono.defer(() -> {
+            LocalDateTime now = now();
+            LocalDateTime leaseExpiry = now.plus(leaseTtl);
+            String token = UUID.randomUUID().toString();
+            return client.sql("INSERT INTO idempotency_entries (key, status, claim_token, ttl_expiry, created_at) " +
+                            "VALUES (:key, :status, :token, :expiry, :now)")
+                    .bind("key", key)
+                    .bind("status", IN_PROGRESS)
+                    .bind("token", token)
+                    .bind("expiry", leaseExpiry)
+                    .bind("now", now)
+                    .fetch().rowsUpdated()
+                    .thenReturn(AcquireResult.acquired(token))
+                    // Key exists: report it, or take it over if it has expired
+                    .onErrorResume(DataIntegrityViolationException.class, conflict -> read(key)
+                            .flatMap(entry -> entry.expiry().isAfter(now)
+                                    ? Mono.just(toAcquireResult(entry))
+                                    : takeOverExpired(key, token, leaseExpiry, now))
+                            // Deleted, or taken over by someone else, in between: claim again
+                            .switchIfEmpty(Mono.defer(() -> tryAcquire(key, leaseTtl))));
+        });
+    }
+
+    @Override
+    public Mono<Void> save(String key, Object response, String fingerprint, Duration ttl) {
+        return Mono.defer(() -> {
+            byte[] payload = codec.encode(response);
+            LocalDateTime now = now();
+            LocalDateTime expiry = now.plus(ttl);
+            DatabaseClient.GenericExecuteSpec update = client.sql("UPDATE idempotency_entries " +
+                            "SET payload = :payload, fingerprint = :fingerprint, status = :status, " +
+                            "claim_token = NULL, ttl_expiry = :expiry WHERE key = :key")
+                    .bind("payload", payload)
+                    .bind("status", COMPLETED)
+                    .bind("expiry", expiry)
+                    .bind("key", key);
+            return bindFingerprint(update, fingerprint).fetch().rowsUpdated()
+                    .flatMap(updated -> updated > 0 ? Mono.empty() : insert(key, payload, fingerprint, expiry, now));
+        });
+    }
+
+    @Override
+    public Mono<Void> release(String key) {
+        return client.sql("DELETE FROM idempotency_entries WHERE key = :key AND status = :status")
+                .bind("key", key)
+                .bind("status", IN_PROGRESS)
+                .fetch().rowsUpdated()
+                .then();
+    }
+
+    @Override
+    public Mono<Void> release(String key, String token) {
+        if (token == null) {
+            return Mono.empty();
+        }
+        return client.sql("DELETE FROM idempotency_entries " +
+                        "WHERE key = :key AND status = :status AND claim_token = :token")
+                .bind("key", key)
+                .bind("status", IN_PROGRESS)
+                .bind("token", token)
+                .fetch().rowsUpdated()
+                .then();
+    }
+
+    private Mono<Void> insert(String key, byte[] payload, String fingerprint, LocalDateTime expiry, LocalDateTime now) {
+        DatabaseClient.GenericExecuteSpec insert = client.sql("INSERT INTO idempotency_entries " +
+                        "(key, payload, fingerprint, status, ttl_expiry, created_at) " +
+                        "VALUES (:key, :payload, :fingerprint, :status, :expiry, :now)")
+                .bind("key", key)
+                .bind("payload", payload)
+                .bind("status", COMPLETED)
+                .bind("expiry", expiry)
+                .bind("now", now);
+        return bindFingerprint(insert, fingerprint).fetch().rowsUpdated().then();
+    }
+
+    private Mono<AcquireResult> takeOverExpired(String key, String token, LocalDateTime leaseExpiry,
+                                                LocalDateTime now) {
+        return client.sql("UPDATE idempotency_entries " +
+                        "SET status = :status, payload = NULL, fingerprint = NULL, claim_token = :token, " +
+                        "ttl_expiry = :expiry WHERE key = :key AND ttl_expiry < :now")
+                .bind("status", IN_PROGRESS)
+                .bind("token", token)
+                .bind("expiry", leaseExpiry)
+                .bind("key", key)
+                .bind("now", now)
+                .fetch().rowsUpdated()
+                .flatMap(updated -> updated == 1 ? Mono.just(AcquireResult.acquired(token)) : Mono.empty());
+    }
+
+    private Mono<Entry> read(String key) {
+        return client.sql("SELECT payload, fingerprint, status, ttl_expiry FROM idempotency_entries WHERE key = :key")
+                .bind("key", key)
+                .map(R2dbcIdempotencyStore::toEntry)
+                .one();
+    }
+
+    private AcquireResult toAcquireResult(Entry entry) {
+        return entry.inProgress()
+                ? AcquireResult.inProgress()
+                : AcquireResult.completed(codec.decode(entry.payload()), entry.fingerprint());
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bindFingerprint(DatabaseClient.GenericExecuteSpec spec,
+                                                                     String fingerprint) {
+        return fingerprint != null ? spec.bind("fingerprint", fingerprint) : spec.bindNull("fingerprint", String.class);
+    }
+
+    private static Entry toEntry(Readable readable) {
+        LocalDateTime expiry = readable.get("ttl_expiry", LocalDateTime.class);
+        return new Entry(readable.get("payload", byte[].class), readable.get("fingerprint", String.class),
+                IN_PROGRESS.equals(readable.get("status", String.class)),
+                expiry != null ? expiry : LocalDateTime.MIN);
+    }
+
+    private static LocalDateTime now() {
+        return LocalDateTime.ofInstant(Instant.now(), ZoneOffset.UTC);
+    }
+
+    private record Entry(byte[] payload, String fingerprint, boolean inProgress, LocalDateTime expiry) {
+    }
+}
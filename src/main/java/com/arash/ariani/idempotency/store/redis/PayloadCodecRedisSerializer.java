@@ -0,0 +1,54 @@
+package com.arash.ariani.idempotency.store.redis;
+
+import com.arash.ariani.idempotency.codec.PayloadCodec;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * Redis value serializer backed by a {@link PayloadCodec}. Earlier versions stored plain JSON, so values starting
+ * with <code>{</code>, <code>[</code> or <code>"</code> are handed to the {@code legacy} codec instead, and a
+ * deployment can switch codecs without waiting for old keys to expire. The codec's own payloads must not start
+ * with those characters; the auto-configured one starts every payload with a header byte.
+ */
+public class PayloadCodecRedisSerializer implements RedisSerializer<Object> {
+
+    private final PayloadCodec codec;
+    private final PayloadCodec legacy;
+
+    /**
+     * @param legacy reads the JSON of earlier versions, typically {@code JacksonPayloadCodec.json} with the same
+     *               trusted packages as {@code codec}
+     */
+    public PayloadCodecRedisSerializer(PayloadCodec codec, PayloadCodec legacy) {
+        this.codec = codec;
+        this.legacy = legacy;
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (value == null) {
+            return new byte[0];
+        }
+        try {
+            return codec.encode(value);
+        } catch (IllegalArgumentException e) {
+            throw new SerializationException("Could not serialize idempotency value", e);
+        }
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return isLegacy(bytes) ? legacy.decode(bytes) : codec.decode(bytes);
+        } catch (IllegalArgumentException e) {
+            throw new SerializationException("Could not deserialize idempotency value", e);
+        }
+    }
+
+    private static boolean isLegacy(byte[] bytes) {
+        return bytes[0] == '{' || bytes[0] == '[' || bytes[0] == '"';
+    }
+}
@@ -0,0 +1,65 @@
+package com.arash.ariani.idempotency.store.redis;
+
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.LookupResult;
+import com.arash.ariani.idempotency.store.ReactiveIdempotencyStore;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+
+import static com.arash.ariani.idempotency.store.redis.RedisIdempotencyStore.IN_PROGRESS;
+import static com.arash.ariani.idempotency.store.redis.RedisIdempotencyStore.PREFIX;
+import static com.arash.ariani.idempotency.store.redis.RedisIdempotencyStore.RELEASE;
+
+/**
+ * Non-blocking twin of {@link RedisIdempotencyStore}. Both use the same keys, values and claim tokens, so they can
+ * serve the same keys, and release each other's claims, as long as their templates use the same serializers.
+ */
+public class ReactiveRedisIdempotencyStore implements ReactiveIdempotencyStore {
+
+    private final ReactiveRedisTemplate<String, Object> redisTemplate;
+
+    public ReactiveRedisIdempotencyStore(ReactiveRedisTemplate<String, Object> redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @Override
+    public Mono<LookupResult> lookup(String key) {
+        return redisTemplate.opsForValue().get(PREFIX + key)
+                .map(RedisIdempotencyStore::toLookupResult)
+                .defaultIfEmpty(LookupResult.miss());
+    }
+
+    @Override
+    public Mono<AcquireResult> tryAcquire(String key, Duration leaseTtl) {
+        // SET NX PX, then GET; an empty GET means the key expired in between, so claim again
+        String token = RedisIdempotencyStore.newToken();
+        return redisTemplate.opsForValue().setIfAbsent(PREFIX + key, IN_PROGRESS + token, leaseTtl)
+                .flatMap(claimed -> claimed
+                        ? Mono.just(AcquireResult.acquired(token))
+                        : redisTemplate.opsForValue().get(PREFIX + key)
+                        .map(RedisIdempotencyStore::toAcquireResult)
+                        .switchIfEmpty(Mono.defer(() -> tryAcquire(key, leaseTtl))));
+    }
+
+    @Override
+    public Mono<Void> save(String key, Object response, String fingerprint, Duration ttl) {
+        return redisTemplate.opsForValue().set(PREFIX + key, new RedisIdempotencyEntry(response, fingerprint), ttl).then();
+    }
+
+    @Override
+    public Mono<Void> release(String key) {
+        return redisTemplate.opsForValue().get(PREFIX + key)
+                .filter(RedisIdempotencyStore::isClaim)
+                .flatMap(claim -> redisTemplate.execute(RELEASE, List.of(PREFIX + key), List.of(claim)).then());
+    }
+
+    @Override
+    public Mono<Void> release(String key, String token) {
+        return token == null
+                ? Mono.empty()
+                : redisTemplate.execute(RELEASE, List.of(PREFIX + key), List.of(IN_PROGRESS + token)).then();
+    }
+}
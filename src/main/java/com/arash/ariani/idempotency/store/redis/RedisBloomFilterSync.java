@@ -0,0 +1,110 @@
+package com.arash.ariani.idempotency.store.redis;
+
+import com.arash.ariani.idempotency.store.RotatingBloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares a {@link RotatingBloomFilter} between nodes through one Redis bitmap per slice. Every
+ * {@code syncInterval} the keys added on this node are written with pipelined {@code SETBIT}s, and the bitmaps of
+ * the live slices are read back and merged, so lookups never wait for Redis.
+ * <p>
+ * A sync reads every live bitmap in full, {@code bits / 8} bytes each. Nodes only share a bitmap when their
+ * filters have the same size, which is part of its key.
+ */
+public class RedisBloomFilterSync implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisBloomFilterSync.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final RotatingBloomFilter filter;
+    private final String keyPrefix;
+    private final long retentionMillis;
+    private final ScheduledExecutorService scheduler;
+
+    public RedisBloomFilterSync(RedisConnectionFactory connectionFactory, RotatingBloomFilter filter, String keyPrefix,
+                                Duration syncInterval) {
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.filter = filter;
+        this.keyPrefix = keyPrefix + ":" + filter.bits() + ":" + filter.hashes() + ":";
+        this.retentionMillis = filter.period().toMillis() * filter.liveGenerations().length;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idempotency-bloom-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = syncInterval.toMillis();
+        this.scheduler.scheduleWithFixedDelay(this::run, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes this node's new keys and merges the bits written by the others.
+     */
+    public void sync() {
+        List<RotatingBloomFilter.Insert> inserts = filter.drainInserts();
+        if (!inserts.isEmpty()) {
+            Set<Long> generations = new LinkedHashSet<>();
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (RotatingBloomFilter.Insert insert : inserts) {
+                    byte[] key = key(insert.generation());
+                    for (int position : filter.positions(insert.hash())) {
+                        connection.stringCommands().setBit(key, position, true);
+                    }
+                    generations.add(insert.generation());
+                }
+                for (long generation : generations) {
+                    connection.keyCommands().pExpire(key(generation), retentionMillis);
+                }
+                return null;
+            });
+        }
+        for (long generation : filter.liveGenerations()) {
+            byte[] bitmap = redisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.stringCommands().get(key(generation)));
+            if (bitmap != null) {
+                filter.merge(generation, bitmap);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            // Hands this node's last keys to the others
+            sync();
+        } catch (RuntimeException e) {
+            log.debug("Final Bloom filter sync failed", e);
+        }
+    }
+
+    private void run() {
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; lookups stay correct with a stale filter
+            log.warn("Syncing the idempotency Bloom filter through Redis failed", e);
+        }
+    }
+
+    private byte[] key(long generation) {
+        return (keyPrefix + generation).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,7 @@
+package com.arash.ariani.idempotency.store.redis;
+
+/**
+ * Value stored under a completed key: the response and, when hashing is enabled, its fingerprint.
+ */
+public record RedisIdempotencyEntry(Object response, String fingerprint) {
+}
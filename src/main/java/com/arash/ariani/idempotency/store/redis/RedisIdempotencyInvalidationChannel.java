@@ -0,0 +1,69 @@
+package com.arash.ariani.idempotency.store.redis;
+
+import com.arash.ariani.idempotency.store.IdempotencyInvalidationChannel;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * {@link IdempotencyInvalidationChannel} over Redis pub/sub. Messages are {@code <node id> <key>}, so a node
+ * ignores what it published itself.
+ */
+public class RedisIdempotencyInvalidationChannel implements IdempotencyInvalidationChannel, AutoCloseable {
+
+    public static final String DEFAULT_CHANNEL = "idempotency:invalidate";
+
+    private final String nodePrefix = UUID.randomUUID() + " ";
+    private final String channel;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer container;
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    public RedisIdempotencyInvalidationChannel(RedisConnectionFactory connectionFactory, String channel) {
+        this.channel = channel;
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.container = new RedisMessageListenerContainer();
+        this.container.setConnectionFactory(connectionFactory);
+        this.container.addMessageListener((message, pattern) -> onMessage(message.getBody()), new ChannelTopic(channel));
+        this.container.afterPropertiesSet();
+        this.container.start();
+    }
+
+    @Override
+    public void publish(String key) {
+        redisTemplate.convertAndSend(channel, nodePrefix + key);
+    }
+
+    @Override
+    public void subscribe(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        try {
+            container.destroy();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not stop listening on " + channel, e);
+        }
+    }
+
+    private void onMessage(byte[] body) {
+        String message = new String(body, StandardCharsets.UTF_8);
+        int separator = message.indexOf(' ');
+        if (separator < 0 || message.startsWith(nodePrefix)) {
+            return;
+        }
+        String key = message.substring(separator + 1);
+        for (Consumer<String> listener : listeners) {
+            listener.accept(key);
+        }
+    }
+}
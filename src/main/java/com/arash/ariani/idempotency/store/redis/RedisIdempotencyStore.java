@@ -1,14 +1,39 @@
 package com.arash.ariani.idempotency.store.redis;
 
+import com.arash.ariani.idempotency.store.AcquireResult;
 import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
 
+/**
+ * Keeps each key as one Redis string: the claim marker while the method runs, then the
+ * {@link RedisIdempotencyEntry}. The marker carries the claim's token, so a release only deletes its own claim.
+ */
 public class RedisIdempotencyStore implements IdempotencyStore {
 
-    private final static String PREFIX = "idem:";
+    static final String PREFIX = "idem:";
+    // Followed by the claim's token; earlier versions wrote the bare marker
+    static final String IN_PROGRESS = "__idempotency:in-progress__";
+    // Compares and deletes in one step, so a claim completed or expired in between is left alone
+    static final RedisScript<Long> RELEASE = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0",
+            Long.class);
+
     private final RedisTemplate<String, Object> redisTemplate;
 
     public RedisIdempotencyStore(RedisTemplate<String, Object> redisTemplate) {
@@ -16,18 +41,146 @@ public class RedisIdempotencyStore implements IdempotencyStore {
     }
 
     @Override
-    public boolean exists(String key) {
-        return Boolean.TRUE.equals(redisTemplate.hasKey(PREFIX + key));
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
     }
 
     @Override
-    public void save(String key, Object response, Duration ttl) {
-        redisTemplate.opsForValue().set(PREFIX + key, response, ttl);
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        redisTemplate.opsForValue().set(PREFIX + key, new RedisIdempotencyEntry(response, fingerprint), ttl);
     }
 
     @Override
     public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
         Object value = redisTemplate.opsForValue().get(PREFIX + key);
-        return Optional.ofNullable(value);
+        return value == null ? LookupResult.miss() : toLookupResult(value);
+    }
+
+    @Override
+    public Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        // One MGET; in a cluster Spring Data Redis splits it by slot
+        List<Object> values = redisTemplate.opsForValue().multiGet(keys.stream().map(key -> PREFIX + key).toList());
+        Map<String, LookupResult> results = new LinkedHashMap<>();
+        int i = 0;
+        for (String key : keys) {
+            Object value = values != null ? values.get(i++) : null;
+            results.put(key, value == null ? LookupResult.miss() : toLookupResult(value));
+        }
+        return results;
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        while (true) {
+            // SET NX PX
+            String token = newToken();
+            if (Boolean.TRUE.equals(redisTemplate.opsForValue().setIfAbsent(PREFIX + key, IN_PROGRESS + token,
+                    leaseTtl))) {
+                return AcquireResult.acquired(token);
+            }
+            Object existing = redisTemplate.opsForValue().get(PREFIX + key);
+            if (existing == null) {
+                continue; // expired between SET NX and GET
+            }
+            return toAcquireResult(existing);
+        }
+    }
+
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        // SET NX PX for every key in one pipeline, then one MGET for the keys that were already taken
+        List<String> tokens = keys.stream().map(key -> newToken()).toList();
+        List<Object> claimed = pipelined(values -> {
+            int i = 0;
+            for (String key : keys) {
+                values.setIfAbsent(PREFIX + key, IN_PROGRESS + tokens.get(i++), leaseTtl);
+            }
+        });
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        List<String> taken = new ArrayList<>();
+        int i = 0;
+        for (String key : keys) {
+            String token = tokens.get(i);
+            boolean acquired = Boolean.TRUE.equals(claimed.get(i++));
+            results.put(key, acquired ? AcquireResult.acquired(token) : null);
+            if (!acquired) {
+                taken.add(key);
+            }
+        }
+        if (!taken.isEmpty()) {
+            List<Object> existing = redisTemplate.opsForValue()
+                    .multiGet(taken.stream().map(key -> PREFIX + key).toList());
+            for (int j = 0; j < taken.size(); j++) {
+                String key = taken.get(j);
+                Object value = existing != null ? existing.get(j) : null;
+                // Expired between SET NX and MGET
+                results.put(key, value == null ? tryAcquire(key, leaseTtl) : toAcquireResult(value));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        pipelined(values -> responses.forEach((key, response) -> values.set(PREFIX + key,
+                new RedisIdempotencyEntry(response, fingerprints.get(key)), ttl)));
+    }
+
+    @Override
+    public void release(String key) {
+        // Whoever holds the claim; a marker read back compares equal to the stored bytes
+        Object value = redisTemplate.opsForValue().get(PREFIX + key);
+        if (isClaim(value)) {
+            redisTemplate.execute(RELEASE, List.of(PREFIX + key), value);
+        }
+    }
+
+    @Override
+    public void release(String key, String token) {
+        if (token != null) {
+            // The marker goes through the value serializer, so it compares equal to the claim's stored bytes
+            redisTemplate.execute(RELEASE, List.of(PREFIX + key), IN_PROGRESS + token);
+        }
+    }
+
+    private List<Object> pipelined(Consumer<ValueOperations<String, Object>> commands) {
+        return redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                commands.accept(((RedisOperations<String, Object>) operations).opsForValue());
+                return null;
+            }
+        });
+    }
+
+    static String newToken() {
+        return UUID.randomUUID().toString();
+    }
+
+    static boolean isClaim(Object value) {
+        return value instanceof String marker && marker.startsWith(IN_PROGRESS);
+    }
+
+    static LookupResult toLookupResult(Object value) {
+        if (isClaim(value)) {
+            return LookupResult.inProgress();
+        }
+        // Values written before fingerprints were stored are bare responses
+        return value instanceof RedisIdempotencyEntry entry
+                ? LookupResult.completed(entry.response(), entry.fingerprint())
+                : LookupResult.completed(value);
+    }
+
+    static AcquireResult toAcquireResult(Object value) {
+        LookupResult state = toLookupResult(value);
+        return state.isCompleted()
+                ? AcquireResult.completed(state.response(), state.fingerprint())
+                : AcquireResult.inProgress();
     }
 }
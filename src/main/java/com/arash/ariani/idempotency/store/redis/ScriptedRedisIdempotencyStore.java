@@ -0,0 +1,319 @@
+package com.arash.ariani.idempotency.store.redis;
+
+import com.arash.ariani.idempotency.codec.PayloadCodec;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DigestUtils;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Redis store that keeps each key in a hash ({@code s} state, {@code r} response, {@code f} fingerprint, {@code o}
+ * the token of a claim) and moves it between states with Lua scripts, so a claim, a completion and a release are
+ * each one atomic round trip. A release with a token only deletes the claim that token was issued for.
+ * <p>
+ * With {@code scopeHashTag}, keys carry their scope as a cluster hash tag ({@code idem:{scope}:key}), so all keys
+ * of a scope share a slot and {@link #lookupAll} reads them with a single script. Scopes then need to be fine
+ * grained enough, such as per tenant or user, to spread over the cluster; with the default {@code GLOBAL} scope
+ * every key would share one slot. The key layout differs from {@link RedisIdempotencyStore}, so the two never read
+ * each other's entries.
+ * <p>
+ * Bulk claims and saves pipeline one script per key, so a batch costs one round trip in any key layout.
+ */
+public class ScriptedRedisIdempotencyStore implements IdempotencyStore {
+
+    private static final String PREFIX = "idem:";
+
+    private static final byte[] IN_PROGRESS = {'p'};
+    private static final byte[] COMPLETED = {'c'};
+    private static final byte[] NO_FINGERPRINT = {};
+    private static final byte[] ANY_OWNER = {};
+
+    // Returns the existing entry, or an empty list once the key is claimed
+    private static final Script CLAIM = new Script("""
+            if redis.call('EXISTS', KEYS[1]) == 1 then
+                return redis.call('HMGET', KEYS[1], 's', 'r', 'f')
+            end
+            redis.call('HSET', KEYS[1], 's', ARGV[1], 'o', ARGV[3])
+            redis.call('PEXPIRE', KEYS[1], ARGV[2])
+            return {}
+            """);
+
+    private static final Script COMPLETE = new Script("""
+            redis.call('DEL', KEYS[1])
+            redis.call('HSET', KEYS[1], 's', ARGV[1], 'r', ARGV[2])
+            if ARGV[3] ~= '' then
+                redis.call('HSET', KEYS[1], 'f', ARGV[3])
+            end
+            redis.call('PEXPIRE', KEYS[1], ARGV[4])
+            return 1
+            """);
+
+    // An empty owner releases any claim
+    private static final Script RELEASE = new Script("""
+            local entry = redis.call('HMGET', KEYS[1], 's', 'o')
+            if entry[1] == ARGV[1] and (ARGV[2] == '' or entry[2] == ARGV[2]) then
+                return redis.call('DEL', KEYS[1])
+            end
+            return 0
+            """);
+
+    // State, response and fingerprint of every key, flattened
+    private static final Script LOOKUP_ALL = new Script("""
+            local entries = {}
+            for i, key in ipairs(KEYS) do
+                local entry = redis.call('HMGET', key, 's', 'r', 'f')
+                entries[3 * i - 2] = entry[1]
+                entries[3 * i - 1] = entry[2]
+                entries[3 * i] = entry[3]
+            end
+            return entries
+            """);
+
+    private final StringRedisTemplate redisTemplate;
+    private final PayloadCodec codec;
+    private final boolean scopeHashTag;
+
+    public ScriptedRedisIdempotencyStore(RedisConnectionFactory connectionFactory, PayloadCodec codec,
+                                         boolean scopeHashTag) {
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.codec = codec;
+        this.scopeHashTag = scopeHashTag;
+    }
+
+    @Override
+    public void save(String key, Object response, Duration ttl) {
+        save(key, response, null, ttl);
+    }
+
+    @Override
+    public void save(String key, Object response, String fingerprint, Duration ttl) {
+        byte[] payload = codec.encode(response);
+        byte[] fingerprintBytes = fingerprint != null ? utf8(fingerprint) : NO_FINGERPRINT;
+        execute(connection -> COMPLETE.eval(connection, ReturnType.INTEGER,
+                redisKey(key), COMPLETED, payload, fingerprintBytes, millis(ttl)));
+    }
+
+    @Override
+    public Optional<Object> get(String key) {
+        return lookup(key).toOptional();
+    }
+
+    @Override
+    public LookupResult lookup(String key) {
+        List<byte[]> entry = execute(connection -> connection.hashCommands()
+                .hMGet(redisKey(key), utf8("s"), utf8("r"), utf8("f")));
+        return toLookupResult(entry, 0);
+    }
+
+    @Override
+    public Map<String, LookupResult> lookupAll(Collection<String> keys) {
+        // One script per hash tag, as a cluster only runs scripts over keys of one slot; all of them pipelined
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String key : keys) {
+            groups.computeIfAbsent(hashTag(key), tag -> new ArrayList<>()).add(key);
+        }
+        List<Object> replies = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (List<String> group : groups.values()) {
+                LOOKUP_ALL.evalInPipeline(connection, group.stream().map(this::redisKey).toArray(byte[][]::new));
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+
+        Map<String, LookupResult> results = new LinkedHashMap<>();
+        keys.forEach(key -> results.put(key, null));
+        int reply = 0;
+        for (List<String> group : groups.values()) {
+            @SuppressWarnings("unchecked")
+            List<byte[]> entries = (List<byte[]>) replies.get(reply++);
+            for (int i = 0; i < group.size(); i++) {
+                results.put(group.get(i), toLookupResult(entries, 3 * i));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+        String token = UUID.randomUUID().toString();
+        List<byte[]> entry = execute(connection -> CLAIM.eval(connection, ReturnType.MULTI,
+                redisKey(key), IN_PROGRESS, millis(leaseTtl), utf8(token)));
+        return toAcquireResult(entry, token);
+    }
+
+    @Override
+    public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+        byte[] leaseMillis = millis(leaseTtl);
+        List<String> tokens = keys.stream().map(key -> UUID.randomUUID().toString()).toList();
+        List<Object> replies = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            int i = 0;
+            for (String key : keys) {
+                CLAIM.evalInPipeline(connection, ReturnType.MULTI, redisKey(key), IN_PROGRESS, leaseMillis,
+                        utf8(tokens.get(i++)));
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+        Map<String, AcquireResult> results = new LinkedHashMap<>();
+        int reply = 0;
+        for (String key : keys) {
+            @SuppressWarnings("unchecked")
+            List<byte[]> entry = (List<byte[]>) replies.get(reply);
+            results.put(key, toAcquireResult(entry, tokens.get(reply++)));
+        }
+        return results;
+    }
+
+    @Override
+    public void saveAll(Map<String, ?> responses, Map<String, String> fingerprints, Duration ttl) {
+        byte[] ttlMillis = millis(ttl);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            responses.forEach((key, response) -> {
+                String fingerprint = fingerprints.get(key);
+                COMPLETE.evalInPipeline(connection, ReturnType.INTEGER, redisKey(key), COMPLETED,
+                        codec.encode(response), fingerprint != null ? utf8(fingerprint) : NO_FINGERPRINT, ttlMillis);
+            });
+            return null;
+        }, RedisSerializer.byteArray());
+    }
+
+    @Override
+    public void release(String key) {
+        execute(connection -> RELEASE.eval(connection, ReturnType.INTEGER, redisKey(key), IN_PROGRESS, ANY_OWNER));
+    }
+
+    @Override
+    public void release(String key, String token) {
+        if (token != null) {
+            execute(connection -> RELEASE.eval(connection, ReturnType.INTEGER, redisKey(key), IN_PROGRESS,
+                    utf8(token)));
+        }
+    }
+
+    private byte[] redisKey(String key) {
+        String tag = scopeHashTag ? scope(key) : null;
+        return utf8(tag != null
+                ? PREFIX + "{" + tag + "}" + key.substring(tag.length())
+                : PREFIX + key);
+    }
+
+    /**
+     * What decides the slot of a key: its hash tag, or the whole key when it has none.
+     */
+    private String hashTag(String key) {
+        String tag = scopeHashTag ? scope(key) : null;
+        return tag != null ? "{" + tag + "}" : PREFIX + key;
+    }
+
+    private LookupResult toLookupResult(List<byte[]> entries, int offset) {
+        // Missing fields come back as null, or as empty strings from some Redis-compatible servers
+        byte[] state = entries != null ? entries.get(offset) : null;
+        if (isEmpty(state)) {
+            return LookupResult.miss();
+        }
+        if (Arrays.equals(state, IN_PROGRESS)) {
+            return LookupResult.inProgress();
+        }
+        byte[] fingerprint = entries.get(offset + 2);
+        return LookupResult.completed(codec.decode(entries.get(offset + 1)),
+                isEmpty(fingerprint) ? null : new String(fingerprint, StandardCharsets.UTF_8));
+    }
+
+    private AcquireResult toAcquireResult(List<byte[]> entry, String token) {
+        if (entry == null || entry.isEmpty()) {
+            return AcquireResult.acquired(token);
+        }
+        LookupResult state = toLookupResult(entry, 0);
+        return state.isCompleted()
+                ? AcquireResult.completed(state.response(), state.fingerprint())
+                : AcquireResult.inProgress();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T execute(RedisCallback<?> action) {
+        return (T) redisTemplate.execute(action);
+    }
+
+    /**
+     * The scope part of a full key, which the aspect builds as {@code scope:key}.
+     */
+    private static String scope(String key) {
+        int separator = key.indexOf(':');
+        return separator > 0 ? key.substring(0, separator) : null;
+    }
+
+    private static boolean isEmpty(byte[] value) {
+        return value == null || value.length == 0;
+    }
+
+    private static byte[] millis(Duration duration) {
+        return utf8(Long.toString(duration.toMillis()));
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A script run by its SHA1, and loaded with EVAL whenever a node does not know it yet. Pipelined calls use
+     * EVAL right away, since a NOSCRIPT error would only show up after the pipeline is closed.
+     */
+    private record Script(byte[] source, String sha1) {
+
+        Script(String source) {
+            this(utf8(source), DigestUtils.sha1DigestAsHex(source));
+        }
+
+        Object eval(RedisConnection connection, ReturnType returnType, byte[] key, byte[]... args) {
+            byte[][] keyAndArgs = keyAndArgs(key, args);
+            try {
+                return connection.scriptingCommands().evalSha(sha1, returnType, 1, keyAndArgs);
+            } catch (DataAccessException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                return connection.scriptingCommands().eval(source, returnType, 1, keyAndArgs);
+            }
+        }
+
+        void evalInPipeline(RedisConnection connection, byte[][] keys) {
+            connection.scriptingCommands().eval(source, ReturnType.MULTI, keys.length, keys);
+        }
+
+        void evalInPipeline(RedisConnection connection, ReturnType returnType, byte[] key, byte[]... args) {
+            connection.scriptingCommands().eval(source, returnType, 1, keyAndArgs(key, args));
+        }
+
+        private static byte[][] keyAndArgs(byte[] key, byte[][] args) {
+            byte[][] keyAndArgs = new byte[args.length + 1][];
+            keyAndArgs[0] = key;
+            System.arraycopy(args, 0, keyAndArgs, 1, args.length);
+            return keyAndArgs;
+        }
+
+        private static boolean isNoScript(Throwable error) {
+            for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+                if (cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
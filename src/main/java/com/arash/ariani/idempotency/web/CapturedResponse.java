@@ -0,0 +1,33 @@
+package com.arash.ariani.idempotency.web;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP response as it was sent the first time: status, content type, the selected headers and the encoded body.
+ * Replays write these bytes back as they are, without converting a return value again.
+ *
+ * @param headers header values by name, as {@code LinkedHashMap} and {@code ArrayList} so that stores encoding
+ *                class names can read them back
+ */
+public record CapturedResponse(int status, String contentType, Map<String, List<String>> headers, byte[] body) {
+
+    /**
+     * Writes and commits this response.
+     *
+     * @param status the status to send, which may differ from the captured one
+     */
+    public void writeTo(HttpServletResponse response, int status) throws IOException {
+        response.setStatus(status);
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+        headers.forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+        response.flushBuffer();
+    }
+}
@@ -0,0 +1,64 @@
+package com.arash.ariani.idempotency.web;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Buffers the responses of unsafe requests (POST, PUT, PATCH, DELETE), so that {@code @Idempotent} handler methods
+ * can store the encoded response, with its status and headers, instead of their return value. Responses of
+ * requests without an idempotent handler are passed on unchanged once complete.
+ */
+public class IdempotentResponseCaptureFilter extends OncePerRequestFilter {
+
+    private static final Set<String> UNSAFE_METHODS = Set.of("POST", "PUT", "PATCH", "DELETE");
+
+    private final Collection<String> headers;
+
+    /**
+     * @param headers the response headers stored besides status, content type and body
+     */
+    public IdempotentResponseCaptureFilter(Collection<String> headers) {
+        this.headers = headers;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !UNSAFE_METHODS.contains(request.getMethod());
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        // The response of an async handler is only complete after its async dispatch
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        ResponseCapture capture = (ResponseCapture) request.getAttribute(ResponseCapture.ATTRIBUTE);
+        if (capture == null) {
+            capture = new ResponseCapture(new ContentCachingResponseWrapper(response), headers);
+            request.setAttribute(ResponseCapture.ATTRIBUTE, capture);
+        }
+        boolean completed = false;
+        try {
+            chain.doFilter(request, capture.response());
+            completed = true;
+        } finally {
+            if (!completed) {
+                capture.fail();
+            }
+        }
+        if (!isAsyncStarted(request)) {
+            capture.complete();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.arash.ariani.idempotency.web;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The buffered response of one request passing through {@link IdempotentResponseCaptureFilter}. An idempotent
+ * handler registers what to do with the response once it is complete; replays bypass the buffer.
+ */
+public class ResponseCapture {
+
+    static final String ATTRIBUTE = ResponseCapture.class.getName();
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseCapture.class);
+
+    private final ContentCachingResponseWrapper response;
+    private final Collection<String> headers;
+    private Consumer<CapturedResponse> onComplete;
+    private Runnable onFailure;
+
+    ResponseCapture(ContentCachingResponseWrapper response, Collection<String> headers) {
+        this.response = response;
+        this.headers = headers;
+    }
+
+    /**
+     * The capture of the current request, or {@code null} outside a request passing through the filter.
+     */
+    public static ResponseCapture current() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        return attributes != null
+                ? (ResponseCapture) attributes.getAttribute(ATTRIBUTE, RequestAttributes.SCOPE_REQUEST)
+                : null;
+    }
+
+    /**
+     * Hands the response to {@code onComplete} once it is written, or runs {@code onFailure} if the request fails
+     * first, ends with a server error, or the response cannot be handed over.
+     */
+    public void capture(Consumer<CapturedResponse> onComplete, Runnable onFailure) {
+        this.onComplete = onComplete;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * Writes a captured response straight to the client, past the buffer.
+     */
+    public void replay(CapturedResponse captured, int status) throws IOException {
+        captured.writeTo((HttpServletResponse) response.getResponse(), status);
+    }
+
+    ContentCachingResponseWrapper response() {
+        return response;
+    }
+
+    void complete() throws IOException {
+        if (onComplete != null && HttpStatusCode.valueOf(response.getStatus()).is5xxServerError()) {
+            // Written after the handler returned, e.g. by an exception resolver for a failed async result; the
+            // request did not succeed, so the client may retry it
+            fail();
+        } else if (onComplete != null) {
+            try {
+                onComplete.accept(toCapturedResponse());
+            } catch (RuntimeException e) {
+                log.warn("Could not store the idempotent response, releasing its key", e);
+                fail();
+            }
+        }
+        response.copyBodyToResponse();
+    }
+
+    void fail() {
+        if (onFailure != null) {
+            onFailure.run();
+        }
+    }
+
+    private CapturedResponse toCapturedResponse() {
+        Map<String, List<String>> captured = new LinkedHashMap<>();
+        for (String name : headers) {
+            Collection<String> values = response.getHeaders(name);
+            if (!values.isEmpty()) {
+                captured.put(name, new ArrayList<>(values));
+            }
+        }
+        return new CapturedResponse(response.getStatus(), response.getContentType(), captured,
+                response.getContentAsByteArray());
+    }
+}
@@ -1,7 +1,13 @@
+-- Only creates a missing table; see "Upgrading the JPA Table" in the README for tables of earlier versions
 CREATE TABLE IF NOT EXISTS IDEMPOTENCY_ENTRIES
 (
-    key        VARCHAR(255) PRIMARY KEY,
-    payload    TEXT NOT NULL,
-    ttl_expiry TIMESTAMP,
-    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
-);
\ No newline at end of file
+    key         VARCHAR(255) PRIMARY KEY,
+    payload     BYTEA,
+    fingerprint VARCHAR(64),
+    status      VARCHAR(16) NOT NULL DEFAULT 'COMPLETED',
+    claim_token VARCHAR(36),
+    ttl_expiry  TIMESTAMP,
+    created_at  TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS idx_idempotency_entries_ttl_expiry ON IDEMPOTENCY_ENTRIES (ttl_expiry);
@@ -0,0 +1,154 @@
+package com.arash.ariani.idempotency.aspect;
+
+import com.arash.ariani.idempotency.annotation.Idempotent;
+import com.arash.ariani.idempotency.config.IdempotencyAutoConfiguration;
+import com.arash.ariani.idempotency.conflict.IdempotencyInProgressException;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.InMemoryIdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BatchIdempotencyInvokerTest {
+
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    private final ApplicationContextRunner runner = new ApplicationContextRunner()
+            .withConfiguration(AutoConfigurations.of(JacksonAutoConfiguration.class,
+                    IdempotencyAutoConfiguration.class))
+            .withUserConfiguration(OrdersConfiguration.class)
+            .withBean(IdempotencyStore.class, TokenStore::new);
+
+    @Configuration(proxyBeanMethods = false)
+    static class OrdersConfiguration {
+
+        @Bean
+        Orders orders() {
+            return new Orders();
+        }
+    }
+
+    // Accessed through methods only: the fields of the proxy are not the bean's
+    static class Orders {
+
+        private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+        private volatile boolean failing;
+
+        public List<List<String>> batches() {
+            return batches;
+        }
+
+        public void failing(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Idempotent(key = "#ids", batch = "ids")
+        public List<String> create(List<String> ids) {
+            batches.add(List.copyOf(ids));
+            if (failing) {
+                throw new IllegalStateException("Order service down");
+            }
+            List<String> created = new ArrayList<>();
+            ids.forEach(id -> created.add(id + "-created"));
+            return created;
+        }
+    }
+
+    /**
+     * Hands out a token with every claim and records the releases.
+     */
+    static class TokenStore extends InMemoryIdempotencyStore {
+
+        final List<String> releases = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Map<String, AcquireResult> tryAcquireAll(Collection<String> keys, Duration leaseTtl) {
+            Map<String, AcquireResult> claims = new LinkedHashMap<>();
+            super.tryAcquireAll(keys, leaseTtl).forEach((key, claim) -> claims.put(key,
+                    claim.status() == AcquireResult.Status.NEW ? AcquireResult.acquired("token-" + key) : claim));
+            return claims;
+        }
+
+        @Override
+        public void release(String key, String token) {
+            releases.add(key + "=" + token);
+            super.release(key, token);
+        }
+    }
+
+    @Test
+    void mixedBatchRunsOnlyTheNewItemsAndKeepsTheItemOrder() {
+        runner.run(context -> {
+            Orders orders = context.getBean(Orders.class);
+            IdempotencyStore store = context.getBean(IdempotencyStore.class);
+            store.save("GLOBAL:o-2", "o-2-stored", TTL);
+
+            List<String> results = orders.create(List.of("o-1", "o-2", "o-3", "o-1"));
+
+            assertThat(results).containsExactly("o-1-created", "o-2-stored", "o-3-created", "o-1-created");
+            assertThat(orders.batches()).containsExactly(List.of("o-1", "o-3"));
+            assertThat(store.lookup("GLOBAL:o-3").response()).isEqualTo("o-3-created");
+        });
+    }
+
+    @Test
+    void repeatedBatchIsReplayedWithoutRunningTheMethod() {
+        runner.run(context -> {
+            Orders orders = context.getBean(Orders.class);
+            orders.create(List.of("o-1", "o-2"));
+
+            assertThat(orders.create(List.of("o-2", "o-1"))).containsExactly("o-2-created", "o-1-created");
+            assertThat(orders.batches()).hasSize(1);
+        });
+    }
+
+    @Test
+    void failedBatchReleasesOnlyTheKeysItClaimed() {
+        runner.run(context -> {
+            Orders orders = context.getBean(Orders.class);
+            TokenStore store = context.getBean(TokenStore.class);
+            store.save("GLOBAL:o-2", "o-2-stored", TTL);
+            orders.failing(true);
+
+            assertThatIllegalStateException().isThrownBy(() -> orders.create(List.of("o-1", "o-2", "o-3")));
+
+            assertThat(store.releases).containsExactlyInAnyOrder("GLOBAL:o-1=token-GLOBAL:o-1",
+                    "GLOBAL:o-3=token-GLOBAL:o-3");
+            assertThat(store.lookup("GLOBAL:o-1").status()).isEqualTo(LookupResult.Status.MISS);
+            assertThat(store.lookup("GLOBAL:o-2").response()).isEqualTo("o-2-stored");
+        });
+    }
+
+    @Test
+    void batchWithAKeyInProgressLeavesThatClaimAlone() {
+        runner.run(context -> {
+            Orders orders = context.getBean(Orders.class);
+            TokenStore store = context.getBean(TokenStore.class);
+            store.tryAcquire("GLOBAL:o-2", TTL);
+
+            assertThatThrownBy(() -> orders.create(List.of("o-1", "o-2")))
+                    .isInstanceOf(IdempotencyInProgressException.class);
+
+            assertThat(orders.batches()).isEmpty();
+            assertThat(store.releases).containsExactly("GLOBAL:o-1=token-GLOBAL:o-1");
+            assertThat(store.lookup("GLOBAL:o-2").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+        });
+    }
+}
@@ -0,0 +1,153 @@
+package com.arash.ariani.idempotency.aspect;
+
+import com.arash.ariani.idempotency.annotation.Idempotent;
+import com.arash.ariani.idempotency.config.IdempotencyAutoConfiguration;
+import com.arash.ariani.idempotency.conflict.IdempotencyInProgressException;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.IdempotencyStore;
+import com.arash.ariani.idempotency.store.InMemoryIdempotencyStore;
+import com.arash.ariani.idempotency.store.LookupResult;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IdempotencyAspectTest {
+
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    private final ApplicationContextRunner runner = new ApplicationContextRunner()
+            .withConfiguration(AutoConfigurations.of(JacksonAutoConfiguration.class,
+                    IdempotencyAutoConfiguration.class))
+            .withUserConfiguration(OrdersConfiguration.class);
+
+    @Configuration(proxyBeanMethods = false)
+    static class OrdersConfiguration {
+
+        @Bean
+        Orders orders() {
+            return new Orders();
+        }
+    }
+
+    // Accessed through methods only: the fields of the proxy are not the bean's
+    static class Orders {
+
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean failing;
+
+        public int calls() {
+            return calls.get();
+        }
+
+        public void failing(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Idempotent(key = "#id")
+        public String create(String id) {
+            int call = calls.incrementAndGet();
+            if (failing) {
+                throw new IllegalStateException("Order service down");
+            }
+            return id + "-" + call;
+        }
+    }
+
+    /**
+     * Hands out a token with every claim and records the releases.
+     */
+    static class TokenStore extends InMemoryIdempotencyStore {
+
+        final List<String> releases = new ArrayList<>();
+
+        @Override
+        public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+            AcquireResult claim = super.tryAcquire(key, leaseTtl);
+            return claim.status() == AcquireResult.Status.NEW ? AcquireResult.acquired("token-" + key) : claim;
+        }
+
+        @Override
+        public void release(String key, String token) {
+            releases.add(key + "=" + token);
+            super.release(key, token);
+        }
+    }
+
+    @Test
+    void newKeyRunsTheMethodAndStoresItsResult() {
+        runner.run(context -> {
+            Orders orders = context.getBean(Orders.class);
+
+            assertThat(orders.create("o-1")).isEqualTo("o-1-1");
+
+            LookupResult stored = context.getBean(IdempotencyStore.class).lookup("GLOBAL:o-1");
+            assertThat(stored.status()).isEqualTo(LookupResult.Status.COMPLETED);
+            assertThat(stored.response()).isEqualTo("o-1-1");
+        });
+    }
+
+    @Test
+    void completedKeyIsReplayedWithoutRunningTheMethod() {
+        runner.run(context -> {
+            Orders orders = context.getBean(Orders.class);
+            context.getBean(IdempotencyStore.class).save("GLOBAL:o-1", "stored", TTL);
+
+            assertThat(orders.create("o-1")).isEqualTo("stored");
+            assertThat(orders.create("o-1")).isEqualTo("stored");
+            assertThat(orders.calls()).isZero();
+        });
+    }
+
+    @Test
+    void keyInProgressIsRejectedWithoutRunningTheMethod() {
+        runner.run(context -> {
+            Orders orders = context.getBean(Orders.class);
+            IdempotencyStore store = context.getBean(IdempotencyStore.class);
+            store.tryAcquire("GLOBAL:o-1", TTL);
+
+            assertThatThrownBy(() -> orders.create("o-1")).isInstanceOf(IdempotencyInProgressException.class);
+            assertThat(orders.calls()).isZero();
+            assertThat(store.lookup("GLOBAL:o-1").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+        });
+    }
+
+    @Test
+    void failedMethodReleasesTheKeyForTheRetry() {
+        runner.run(context -> {
+            Orders orders = context.getBean(Orders.class);
+            IdempotencyStore store = context.getBean(IdempotencyStore.class);
+            orders.failing(true);
+
+            assertThatIllegalStateException().isThrownBy(() -> orders.create("o-1"));
+            assertThat(store.lookup("GLOBAL:o-1").status()).isEqualTo(LookupResult.Status.MISS);
+
+            orders.failing(false);
+            assertThat(orders.create("o-1")).isEqualTo("o-1-2");
+        });
+    }
+
+    @Test
+    void failedMethodReleasesWithTheTokenOfItsClaim() {
+        runner.withBean(IdempotencyStore.class, TokenStore::new).run(context -> {
+            Orders orders = context.getBean(Orders.class);
+            TokenStore store = context.getBean(TokenStore.class);
+            orders.failing(true);
+
+            assertThatIllegalStateException().isThrownBy(() -> orders.create("o-1"));
+
+            assertThat(store.releases).containsExactly("GLOBAL:o-1=token-GLOBAL:o-1");
+        });
+    }
+}
@@ -0,0 +1,73 @@
+package com.arash.ariani.idempotency.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BloomFilteredIdempotencyStoreTest {
+
+    private static final Duration TTL = Duration.ofMinutes(5);
+    private static final Duration WINDOW = Duration.ofMillis(400);
+
+    private final InMemoryIdempotencyStore backend = new InMemoryIdempotencyStore(100, 0, null, null);
+    private final RotatingBloomFilter filter = new RotatingBloomFilter(1_000, 0.001, WINDOW, 3, 0);
+    private final BloomFilteredIdempotencyStore store = new BloomFilteredIdempotencyStore(backend, filter);
+
+    @AfterEach
+    void close() {
+        store.close();
+    }
+
+    @Test
+    void unseenKeyIsAMissWithoutAskingTheStore() {
+        // Stored behind the filter's back, so only a store lookup would find it
+        backend.save("order-1", "created", null, TTL);
+
+        assertThat(store.lookup("order-1").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(filter.stats().skipped()).isEqualTo(1);
+        assertThat(filter.stats().checked()).isZero();
+    }
+
+    @Test
+    void savedKeyIsFoundAcrossARotation() throws Exception {
+        store.save("order-1", "created", "fp", TTL);
+
+        // Past the first slice, but within the window
+        Thread.sleep(filter.period().toMillis() + 50);
+
+        LookupResult result = store.lookup("order-1");
+        assertThat(result.status()).isEqualTo(LookupResult.Status.COMPLETED);
+        assertThat(result.response()).isEqualTo("created");
+        assertThat(filter.stats().checked()).isEqualTo(1);
+    }
+
+    @Test
+    void claimIsSeenAsInProgress() {
+        assertThat(store.tryAcquire("order-1", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+
+        assertThat(store.lookup("order-1").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+        assertThat(store.tryAcquire("order-1", TTL).status()).isEqualTo(AcquireResult.Status.IN_PROGRESS);
+    }
+
+    @Test
+    void lookupAllAsksTheStoreOnlyForSeenKeysAndKeepsTheOrder() {
+        store.tryAcquireAll(List.of("claimed"), TTL);
+        store.save("saved", "created", null, TTL);
+        backend.save("unseen", "created", null, TTL);
+
+        Map<String, LookupResult> results = store.lookupAll(List.of("unseen", "saved", "claimed", "new"));
+
+        assertThat(results).containsOnlyKeys("unseen", "saved", "claimed", "new");
+        assertThat(results.keySet()).containsExactly("unseen", "saved", "claimed", "new");
+        assertThat(results.get("unseen").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(results.get("saved").status()).isEqualTo(LookupResult.Status.COMPLETED);
+        assertThat(results.get("claimed").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+        assertThat(results.get("new").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(filter.stats().skipped()).isEqualTo(2);
+    }
+}
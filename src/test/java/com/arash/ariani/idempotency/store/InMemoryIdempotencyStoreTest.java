@@ -0,0 +1,85 @@
+package com.arash.ariani.idempotency.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InMemoryIdempotencyStoreTest {
+
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    private final InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(10, 0, null, null);
+
+    @AfterEach
+    void close() {
+        store.close();
+    }
+
+    @Test
+    void claimIsExclusiveUntilSaved() {
+        assertThat(store.tryAcquire("order-1", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+        assertThat(store.tryAcquire("order-1", TTL).status()).isEqualTo(AcquireResult.Status.IN_PROGRESS);
+        assertThat(store.lookup("order-1").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+
+        store.save("order-1", "created", "fp", TTL);
+
+        AcquireResult replay = store.tryAcquire("order-1", TTL);
+        assertThat(replay.status()).isEqualTo(AcquireResult.Status.COMPLETED);
+        assertThat(replay.response()).isEqualTo("created");
+        assertThat(replay.fingerprint()).isEqualTo("fp");
+        assertThat(store.get("order-1")).contains("created");
+    }
+
+    @Test
+    void releaseFreesClaimsButKeepsResponses() {
+        store.tryAcquire("failed", TTL);
+        store.save("done", "created", null, TTL);
+
+        store.release("failed");
+        store.release("done");
+
+        assertThat(store.lookup("failed").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(store.tryAcquire("failed", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+        assertThat(store.lookup("done").response()).isEqualTo("created");
+    }
+
+    @Test
+    void expiredClaimCanBeTakenOver() throws Exception {
+        store.tryAcquire("slow", Duration.ofMillis(20));
+        Thread.sleep(50);
+
+        assertThat(store.lookup("slow").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(store.tryAcquire("slow", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+    }
+
+    @Test
+    void claimsSeveralKeysAtOnce() {
+        store.save("done", "created", null, TTL);
+        store.tryAcquire("running", TTL);
+
+        Map<String, AcquireResult> claims = store.tryAcquireAll(List.of("done", "running", "new"), TTL);
+
+        assertThat(claims).containsOnlyKeys("done", "running", "new");
+        assertThat(claims.get("done").status()).isEqualTo(AcquireResult.Status.COMPLETED);
+        assertThat(claims.get("running").status()).isEqualTo(AcquireResult.Status.IN_PROGRESS);
+        assertThat(claims.get("new").status()).isEqualTo(AcquireResult.Status.NEW);
+    }
+
+    @Test
+    void evictsCompletedEntriesButNotClaims() {
+        store.tryAcquire("running", TTL);
+        for (int i = 0; i < 20; i++) {
+            store.save("done-" + i, i, null, TTL);
+        }
+
+        assertThat(store.stats().size()).isLessThanOrEqualTo(10);
+        assertThat(store.stats().evictions()).isPositive();
+        assertThat(store.lookup("running").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+        assertThat(store.lookup("done-19").response()).isEqualTo(19);
+    }
+}
@@ -0,0 +1,269 @@
+package com.arash.ariani.idempotency.store;
+
+import com.arash.ariani.idempotency.metrics.StoreResilienceMetrics;
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore.Cause;
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore.Degradation;
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore.Operation;
+import com.arash.ariani.idempotency.store.ResilientIdempotencyStore.State;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatNoException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ResilientIdempotencyStoreTest {
+
+    private static final Duration TTL = Duration.ofMinutes(1);
+
+    private final StubStore backend = new StubStore();
+    private final RecordingMetrics metrics = new RecordingMetrics();
+    private ResilientIdempotencyStore store;
+
+    @AfterEach
+    void close() {
+        backend.resume();
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void opensAfterThresholdFailuresInARow() {
+        store = store(Degradation.FAIL_OPEN, Duration.ofSeconds(5), 3, Duration.ofMinutes(1));
+        backend.failing = true;
+
+        store.lookup("key");
+        store.lookup("key");
+        assertThat(store.state()).isEqualTo(State.CLOSED);
+
+        store.lookup("key");
+        assertThat(store.state()).isEqualTo(State.OPEN);
+        assertThat(metrics.transitions).containsExactly(State.CLOSED + "->" + State.OPEN);
+
+        // Open: degraded without reaching the store
+        assertThat(store.lookup("key").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(backend.calls.get()).isEqualTo(3);
+        assertThat(metrics.causes).endsWith(Cause.OPEN);
+    }
+
+    @Test
+    void successResetsTheFailureCount() {
+        store = store(Degradation.FAIL_OPEN, Duration.ofSeconds(5), 2, Duration.ofMinutes(1));
+
+        backend.failing = true;
+        store.lookup("key");
+        backend.failing = false;
+        store.lookup("key");
+        backend.failing = true;
+        store.lookup("key");
+
+        assertThat(store.state()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    void halfOpenLetsASingleTrialThrough() throws Exception {
+        store = store(Degradation.FAIL_OPEN, Duration.ofSeconds(5), 1, Duration.ofMillis(50));
+        backend.failing = true;
+        store.lookup("key");
+        assertThat(store.state()).isEqualTo(State.OPEN);
+        Thread.sleep(100);
+
+        backend.failing = false;
+        backend.hold();
+        CompletableFuture<LookupResult> trial = CompletableFuture.supplyAsync(() -> store.lookup("key"));
+        backend.awaitCall();
+        assertThat(store.state()).isEqualTo(State.HALF_OPEN);
+
+        // While the trial runs, other calls are degraded
+        assertThat(store.lookup("key").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(backend.calls.get()).isEqualTo(2);
+
+        backend.resume();
+        trial.get(5, TimeUnit.SECONDS);
+        assertThat(store.state()).isEqualTo(State.CLOSED);
+        assertThat(metrics.transitions).containsExactly(State.CLOSED + "->" + State.OPEN,
+                State.OPEN + "->" + State.HALF_OPEN, State.HALF_OPEN + "->" + State.CLOSED);
+    }
+
+    @Test
+    void failedTrialOpensAgain() throws Exception {
+        store = store(Degradation.FAIL_OPEN, Duration.ofSeconds(5), 3, Duration.ofMillis(50));
+        backend.failing = true;
+        for (int i = 0; i < 3; i++) {
+            store.lookup("key");
+        }
+        Thread.sleep(100);
+
+        store.lookup("key");
+
+        assertThat(store.state()).isEqualTo(State.OPEN);
+        assertThat(backend.calls.get()).isEqualTo(4);
+    }
+
+    @Test
+    void timeoutIsAFailureAndDegradesTheCall() {
+        store = store(Degradation.FAIL_OPEN, Duration.ofMillis(50), 2, Duration.ofMinutes(1));
+        backend.hold();
+
+        assertThat(store.lookup("key").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(store.state()).isEqualTo(State.CLOSED);
+        assertThat(store.tryAcquire("key", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+
+        assertThat(store.state()).isEqualTo(State.OPEN);
+        assertThat(metrics.causes).containsExactly(Cause.TIMEOUT, Cause.TIMEOUT);
+    }
+
+    @Test
+    void rejectedCallIsDegradedWithoutCountingAsFailure() throws Exception {
+        store = store(Degradation.FAIL_OPEN, Duration.ofSeconds(5), 1, Duration.ofMinutes(1), 1);
+        backend.hold();
+        CompletableFuture<LookupResult> busy = CompletableFuture.supplyAsync(() -> store.lookup("key"));
+        backend.awaitCall();
+
+        assertThat(store.tryAcquire("other", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+        assertThat(backend.calls.get()).isEqualTo(1);
+        assertThat(metrics.causes).containsExactly(Cause.REJECTED);
+        assertThat(store.state()).isEqualTo(State.CLOSED);
+
+        backend.resume();
+        busy.get(5, TimeUnit.SECONDS);
+        assertThat(store.state()).isEqualTo(State.CLOSED);
+    }
+
+    @Test
+    void failClosedRejectsOnlyLookupsAndClaims() {
+        store = store(Degradation.FAIL_CLOSED, Duration.ofSeconds(5), 100, Duration.ofMinutes(1));
+        backend.failing = true;
+
+        assertThatThrownBy(() -> store.lookup("key")).isInstanceOf(IdempotencyStoreUnavailableException.class);
+        assertThatThrownBy(() -> store.lookupAll(List.of("key")))
+                .isInstanceOf(IdempotencyStoreUnavailableException.class);
+        assertThatThrownBy(() -> store.tryAcquire("key", TTL))
+                .isInstanceOf(IdempotencyStoreUnavailableException.class);
+        assertThatThrownBy(() -> store.tryAcquireAll(List.of("key"), TTL))
+                .isInstanceOf(IdempotencyStoreUnavailableException.class);
+
+        // The method has already run by the time of saves and releases
+        assertThatNoException().isThrownBy(() -> store.save("key", "response", null, TTL));
+        assertThatNoException().isThrownBy(() -> store.saveAll(Map.of("key", "response"), Map.of(), TTL));
+        assertThatNoException().isThrownBy(() -> store.release("key"));
+        assertThatNoException().isThrownBy(() -> store.release("key", "token"));
+    }
+
+    @Test
+    void failClosedAsksToRetryWhenTheCircuitCloses() {
+        store = store(Degradation.FAIL_CLOSED, Duration.ofSeconds(5), 1, Duration.ofMinutes(1));
+        backend.failing = true;
+
+        assertThatThrownBy(() -> store.lookup("key")).isInstanceOf(IdempotencyStoreUnavailableException.class);
+        assertThatThrownBy(() -> store.lookup("key"))
+                .isInstanceOfSatisfying(IdempotencyStoreUnavailableException.class, e -> assertThat(e.getRetryAfter())
+                        .isPositive().isLessThanOrEqualTo(Duration.ofMinutes(1)));
+        assertThat(metrics.causes).containsExactly(Cause.ERROR, Cause.OPEN);
+    }
+
+    private ResilientIdempotencyStore store(Degradation degradation, Duration timeout, int failureThreshold,
+                                            Duration openFor) {
+        // Room to spare: a thread that just finished a call may not take the next one yet
+        return store(degradation, timeout, failureThreshold, openFor, 8);
+    }
+
+    private ResilientIdempotencyStore store(Degradation degradation, Duration timeout, int failureThreshold,
+                                            Duration openFor, int maxConcurrentCalls) {
+        Map<Operation, Duration> timeouts = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            timeouts.put(operation, timeout);
+        }
+        return new ResilientIdempotencyStore(backend, degradation, null, timeouts, failureThreshold, openFor,
+                maxConcurrentCalls, metrics);
+    }
+
+    private static final class RecordingMetrics implements StoreResilienceMetrics {
+
+        final List<String> transitions = new CopyOnWriteArrayList<>();
+        final List<Cause> causes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void stateChanged(State from, State to) {
+            transitions.add(from + "->" + to);
+        }
+
+        @Override
+        public void degraded(Operation operation, Cause cause) {
+            causes.add(cause);
+        }
+    }
+
+    /**
+     * Fails or hangs on demand and counts the calls that reach it.
+     */
+    private static final class StubStore implements IdempotencyStore {
+
+        final AtomicInteger calls = new AtomicInteger();
+        private final Semaphore called = new Semaphore(0);
+        private volatile CountDownLatch held = new CountDownLatch(0);
+        volatile boolean failing;
+
+        void hold() {
+            called.drainPermits();
+            held = new CountDownLatch(1);
+        }
+
+        void resume() {
+            held.countDown();
+        }
+
+        void awaitCall() throws InterruptedException {
+            assertThat(called.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+        }
+
+        private void reach() {
+            calls.incrementAndGet();
+            called.release();
+            try {
+                held.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted", e);
+            }
+            if (failing) {
+                throw new IllegalStateException("down");
+            }
+        }
+
+        @Override
+        public void save(String key, Object response, Duration ttl) {
+            reach();
+        }
+
+        @Override
+        public Optional<Object> get(String key) {
+            reach();
+            return Optional.empty();
+        }
+
+        @Override
+        public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+            reach();
+            return AcquireResult.acquired();
+        }
+
+        @Override
+        public void release(String key) {
+            reach();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.arash.ariani.idempotency.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RotatingBloomFilterTest {
+
+    private static final Duration WINDOW = Duration.ofMillis(200);
+
+    private final RotatingBloomFilter filter = new RotatingBloomFilter(1_000, 0.001, WINDOW, 3, 0);
+
+    @Test
+    void remembersKeysForTheWholeWindow() throws Exception {
+        long added = System.currentTimeMillis();
+        filter.put("order-1");
+
+        // Checks until the window ends, across the rotations to the next slices
+        while (true) {
+            boolean contained = filter.mightContain("order-1");
+            if (System.currentTimeMillis() - added >= WINDOW.toMillis()) {
+                break;
+            }
+            assertThat(contained).isTrue();
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void forgetsKeysOnceTheirSliceIsDropped() throws Exception {
+        filter.put("order-1");
+
+        Thread.sleep(WINDOW.plus(filter.period()).toMillis() + 50);
+
+        assertThat(filter.mightContain("order-1")).isFalse();
+        assertThat(filter.mightContain("order-2")).isFalse();
+    }
+
+    @Test
+    void sharedInsertsCarryTheirSlice() {
+        RotatingBloomFilter shared = new RotatingBloomFilter(1_000, 0.001, WINDOW, 3, 10);
+        shared.put("order-1");
+        shared.put("order-1");
+
+        assertThat(shared.drainInserts()).singleElement()
+                .satisfies(insert -> assertThat(shared.liveGenerations()).contains(insert.generation()));
+        assertThat(shared.drainInserts()).isEmpty();
+    }
+}
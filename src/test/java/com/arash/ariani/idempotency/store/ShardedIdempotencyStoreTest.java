@@ -0,0 +1,60 @@
+package com.arash.ariani.idempotency.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatNoException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ShardedIdempotencyStoreTest {
+
+    private static final Duration TTL = Duration.ofMinutes(1);
+
+    private final ShardedIdempotencyStore store = new ShardedIdempotencyStore(Map.of("down", new DownStore()),
+            ShardedIdempotencyStore.ShardBy.KEY, ShardedIdempotencyStore.FailurePolicy.FAIL_CLOSED, 1,
+            Duration.ofSeconds(10));
+
+    @Test
+    void failClosedRejectsLookupsAndClaims() {
+        assertThatThrownBy(() -> store.lookup("key")).isInstanceOf(IdempotencyStoreUnavailableException.class);
+        assertThatThrownBy(() -> store.tryAcquire("key", TTL)).isInstanceOf(IdempotencyStoreUnavailableException.class);
+    }
+
+    @Test
+    void failClosedSkipsSavesAndReleases() {
+        // Once for the failing call, once more while the shard is skipped
+        for (int i = 0; i < 2; i++) {
+            assertThatNoException().isThrownBy(() -> store.save("key", "response", null, TTL));
+            assertThatNoException().isThrownBy(() -> store.saveAll(Map.of("key", "response"), Map.of(), TTL));
+            assertThatNoException().isThrownBy(() -> store.release("key"));
+        }
+        assertThat(store.availability()).containsEntry("down", false);
+    }
+
+    private static final class DownStore implements IdempotencyStore {
+
+        @Override
+        public void save(String key, Object response, Duration ttl) {
+            throw new IllegalStateException("down");
+        }
+
+        @Override
+        public Optional<Object> get(String key) {
+            throw new IllegalStateException("down");
+        }
+
+        @Override
+        public AcquireResult tryAcquire(String key, Duration leaseTtl) {
+            throw new IllegalStateException("down");
+        }
+
+        @Override
+        public void release(String key) {
+            throw new IllegalStateException("down");
+        }
+    }
+}
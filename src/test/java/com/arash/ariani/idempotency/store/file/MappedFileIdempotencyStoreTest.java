@@ -0,0 +1,161 @@
+package com.arash.ariani.idempotency.store.file;
+
+import com.arash.ariani.idempotency.codec.JacksonPayloadCodec;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.LookupResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalStateException;
+
+class MappedFileIdempotencyStoreTest {
+
+    private static final Duration TTL = Duration.ofMinutes(5);
+    private static final JacksonPayloadCodec CODEC =
+            JacksonPayloadCodec.json(new ObjectMapper(), List.of("com.arash.ariani.idempotency"));
+
+    @TempDir
+    Path directory;
+
+    private MappedFileIdempotencyStore store;
+
+    @AfterEach
+    void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    record Order(String id, int amount) {
+    }
+
+    @Test
+    void completedResponseSurvivesReopen() {
+        store = open();
+        assertThat(store.tryAcquire("order-1", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+        store.save("order-1", new Order("o-1", 42), "fp", TTL);
+
+        reopen();
+
+        LookupResult found = store.lookup("order-1");
+        assertThat(found.status()).isEqualTo(LookupResult.Status.COMPLETED);
+        assertThat(found.response()).isEqualTo(new Order("o-1", 42));
+        assertThat(found.fingerprint()).isEqualTo("fp");
+        assertThat(store.tryAcquire("order-1", TTL).status()).isEqualTo(AcquireResult.Status.COMPLETED);
+    }
+
+    @Test
+    void claimSurvivesReopenUntilReleased() {
+        store = open();
+        store.tryAcquire("held", TTL);
+        store.tryAcquire("released", TTL);
+        store.release("released");
+
+        reopen();
+
+        assertThat(store.lookup("held").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+        assertThat(store.lookup("released").status()).isEqualTo(LookupResult.Status.MISS);
+        assertThat(store.tryAcquire("released", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+    }
+
+    @Test
+    void compactedLogSurvivesReopen() throws Exception {
+        store = open();
+        for (int i = 0; i < 50; i++) {
+            store.save("expired-" + i, "gone", null, Duration.ofMillis(1));
+            store.save("live-" + i, "old-" + i, null, TTL);
+        }
+        // Overwritten, so the first segments only hold dead records
+        for (int i = 0; i < 50; i++) {
+            store.save("live-" + i, "new-" + i, null, TTL);
+        }
+        Thread.sleep(10);
+        int segments = store.stats().segments();
+        store.compact();
+        assertThat(store.stats().segments()).isLessThan(segments);
+
+        reopen();
+
+        assertLiveKeys();
+        assertThat(store.lookup("expired-0").status()).isEqualTo(LookupResult.Status.MISS);
+    }
+
+    @Test
+    void logWrittenAfterSnapshotIsReplayed() throws Exception {
+        store = open();
+        for (int i = 0; i < 50; i++) {
+            store.save("live-" + i, "new-" + i, null, TTL);
+        }
+        store.snapshot();
+        Path snapshot = directory.resolve("index.snapshot");
+        Path earlier = directory.resolve("earlier.snapshot");
+        Files.copy(snapshot, earlier);
+        store.save("after-snapshot", "late", null, TTL);
+        store.tryAcquire("claimed-after-snapshot", TTL);
+        store.close();
+        store = null;
+        // Back to the snapshot taken before the last writes, so they have to be replayed from the log
+        Files.move(earlier, snapshot, StandardCopyOption.REPLACE_EXISTING);
+
+        store = open();
+
+        assertLiveKeys();
+        assertThat(store.lookup("after-snapshot").response()).isEqualTo("late");
+        assertThat(store.lookup("claimed-after-snapshot").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+    }
+
+    @Test
+    void indexIsRebuiltFromLogWithoutSnapshot() throws Exception {
+        store = open();
+        for (int i = 0; i < 50; i++) {
+            store.save("live-" + i, "new-" + i, null, TTL);
+        }
+        store.close();
+        store = null;
+        Files.delete(directory.resolve("index.snapshot"));
+
+        store = open();
+
+        assertLiveKeys();
+    }
+
+    @Test
+    void rejectsCallsOnceClosed() {
+        store = open();
+        store.close();
+
+        assertThatIllegalStateException().isThrownBy(() -> store.save("key", "value", null, TTL));
+        assertThatIllegalStateException().isThrownBy(() -> store.lookup("key"));
+        assertThatIllegalStateException().isThrownBy(() -> store.tryAcquire("key", TTL));
+        assertThatIllegalStateException().isThrownBy(() -> store.release("key"));
+        // Closing again is harmless
+        store.close();
+    }
+
+    private MappedFileIdempotencyStore open() {
+        // Small segments, so the records above span several of them
+        return new MappedFileIdempotencyStore(directory, CODEC, 1024, null, 0.5, null, false);
+    }
+
+    private void reopen() {
+        store.close();
+        store = open();
+    }
+
+    private void assertLiveKeys() {
+        for (int i = 0; i < 50; i++) {
+            LookupResult found = store.lookup("live-" + i);
+            assertThat(found.status()).isEqualTo(LookupResult.Status.COMPLETED);
+            assertThat(found.response()).isEqualTo("new-" + i);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.arash.ariani.idempotency.store.redis;
+
+import com.arash.ariani.idempotency.codec.CompressingPayloadCodec;
+import com.arash.ariani.idempotency.codec.JacksonPayloadCodec;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PayloadCodecRedisSerializerTest {
+
+    private static final List<String> TRUSTED = List.of("com.arash.ariani.idempotency");
+
+    private final PayloadCodecRedisSerializer serializer = new PayloadCodecRedisSerializer(
+            new CompressingPayloadCodec(JacksonPayloadCodec.smile(new ObjectMapper(), TRUSTED), 16),
+            JacksonPayloadCodec.json(new ObjectMapper(), TRUSTED));
+
+    // Written by earlier versions, which stored values through GenericJackson2JsonRedisSerializer
+    private final GenericJackson2JsonRedisSerializer earlier = new GenericJackson2JsonRedisSerializer();
+
+    public static class Order {
+
+        public String id;
+        public int amount;
+
+        public Order() {
+        }
+
+        Order(String id, int amount) {
+            this.id = id;
+            this.amount = amount;
+        }
+    }
+
+    @Test
+    void readsItsOwnPayloads() {
+        Object read = serializer.deserialize(serializer.serialize(new Order("o-1", 42)));
+
+        assertThat(read).isInstanceOf(Order.class).usingRecursiveComparison().isEqualTo(new Order("o-1", 42));
+        assertThat(serializer.deserialize(serializer.serialize("x".repeat(100)))).isEqualTo("x".repeat(100));
+    }
+
+    @Test
+    void readsValuesOfEarlierVersions() {
+        assertThat(serializer.deserialize(earlier.serialize(new Order("o-1", 42))))
+                .isInstanceOf(Order.class).usingRecursiveComparison().isEqualTo(new Order("o-1", 42));
+        assertThat(serializer.deserialize(earlier.serialize(new ArrayList<>(List.of("a", "b"))))).isEqualTo(List.of("a", "b"));
+        assertThat(serializer.deserialize(earlier.serialize("plain"))).isEqualTo("plain");
+    }
+
+    @Test
+    void rejectsUntrustedClassesInValuesOfEarlierVersions() {
+        byte[] untrusted = "{\"@class\":\"java.lang.ProcessBuilder\",\"command\":[\"true\"]}".getBytes();
+
+        assertThatThrownBy(() -> serializer.deserialize(untrusted)).isInstanceOf(SerializationException.class);
+    }
+
+    @Test
+    void doesNotFallBackForPayloadsItCannotRead() {
+        byte[] corrupt = {9, 1, 2, 3};
+
+        assertThatThrownBy(() -> serializer.deserialize(corrupt)).isInstanceOf(SerializationException.class);
+    }
+}
@@ -0,0 +1,176 @@
+package com.arash.ariani.idempotency.store.redis;
+
+import com.arash.ariani.idempotency.codec.JacksonPayloadCodec;
+import com.arash.ariani.idempotency.store.AcquireResult;
+import com.arash.ariani.idempotency.store.LookupResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.fppt.jedismock.RedisServer;
+import com.github.fppt.jedismock.datastructures.Slice;
+import com.github.fppt.jedismock.operations.server.MockExecutor;
+import com.github.fppt.jedismock.server.ServiceOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ScriptedRedisIdempotencyStoreTest {
+
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    // Every EVAL and EVALSHA the server receives, as "command numkeys key..."
+    private final List<String> scripts = new CopyOnWriteArrayList<>();
+    private RedisServer server;
+    private LettuceConnectionFactory connectionFactory;
+
+    @BeforeEach
+    void start() throws Exception {
+        server = RedisServer.newRedisServer().setOptions(ServiceOptions.withInterceptor((state, name, params) -> {
+            if (name.equalsIgnoreCase("eval") || name.equalsIgnoreCase("evalsha")) {
+                int keys = Integer.parseInt(text(params.get(1)));
+                List<String> call = new ArrayList<>(List.of(name.toLowerCase(), text(params.get(1))));
+                params.subList(2, 2 + keys).forEach(key -> call.add(text(key)));
+                scripts.add(String.join(" ", call));
+            }
+            return MockExecutor.proceed(state, name, params);
+        })).start();
+        connectionFactory = new LettuceConnectionFactory(
+                new RedisStandaloneConfiguration(server.getHost(), server.getBindPort()));
+        connectionFactory.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        connectionFactory.destroy();
+        server.stop();
+    }
+
+    @Test
+    void claimIsExclusiveAndReleasedOnlyByItsToken() {
+        ScriptedRedisIdempotencyStore store = store(false);
+
+        AcquireResult claim = store.tryAcquire("order-1", TTL);
+        assertThat(claim.status()).isEqualTo(AcquireResult.Status.NEW);
+        assertThat(claim.token()).isNotNull();
+        assertThat(store.tryAcquire("order-1", TTL).status()).isEqualTo(AcquireResult.Status.IN_PROGRESS);
+        assertThat(store.lookup("order-1").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+
+        store.release("order-1", "stale-token");
+        assertThat(store.lookup("order-1").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+
+        store.release("order-1", claim.token());
+        assertThat(store.lookup("order-1").status()).isEqualTo(LookupResult.Status.MISS);
+    }
+
+    @Test
+    void tokenlessReleaseFreesAnyClaim() {
+        ScriptedRedisIdempotencyStore store = store(false);
+        store.tryAcquire("order-1", TTL);
+
+        store.release("order-1");
+
+        assertThat(store.tryAcquire("order-1", TTL).status()).isEqualTo(AcquireResult.Status.NEW);
+    }
+
+    @Test
+    void completedKeyIsReplayedAndKeptOnRelease() {
+        ScriptedRedisIdempotencyStore store = store(false);
+        AcquireResult claim = store.tryAcquire("order-1", TTL);
+
+        store.save("order-1", "created", "fp", TTL);
+        store.release("order-1", claim.token());
+        store.release("order-1");
+
+        AcquireResult replay = store.tryAcquire("order-1", TTL);
+        assertThat(replay.status()).isEqualTo(AcquireResult.Status.COMPLETED);
+        assertThat(replay.response()).isEqualTo("created");
+        assertThat(replay.fingerprint()).isEqualTo("fp");
+        assertThat(store.lookup("order-1").response()).isEqualTo("created");
+    }
+
+    @Test
+    void bulkClaimsAndSavesGiveEveryKeyItsOwnToken() {
+        ScriptedRedisIdempotencyStore store = store(false);
+        store.save("done", "created", null, TTL);
+
+        Map<String, AcquireResult> claims = store.tryAcquireAll(List.of("done", "a", "b"), TTL);
+
+        assertThat(claims.get("done").status()).isEqualTo(AcquireResult.Status.COMPLETED);
+        assertThat(claims.get("a").token()).isNotNull().isNotEqualTo(claims.get("b").token());
+        store.release("a", claims.get("b").token());
+        assertThat(store.lookup("a").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+
+        store.saveAll(Map.of("a", "a-created", "b", "b-created"), Map.of("a", "fp-a"), TTL);
+        assertThat(store.lookup("a").fingerprint()).isEqualTo("fp-a");
+        assertThat(store.lookup("b").response()).isEqualTo("b-created");
+    }
+
+    @Test
+    void unknownScriptIsLoadedWithEval() {
+        ScriptedRedisIdempotencyStore store = store(false);
+
+        store.tryAcquire("order-1", TTL);
+        assertThat(scripts).containsExactly("evalsha 1 idem:order-1", "eval 1 idem:order-1");
+
+        // Known to the server from now on
+        scripts.clear();
+        store.tryAcquire("order-2", TTL);
+        assertThat(scripts).containsExactly("evalsha 1 idem:order-2");
+
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.scriptingCommands().scriptFlush();
+        }
+        scripts.clear();
+        store.release("order-2");
+        assertThat(scripts).containsExactly("evalsha 1 idem:order-2", "eval 1 idem:order-2");
+        assertThat(store.lookup("order-2").status()).isEqualTo(LookupResult.Status.MISS);
+    }
+
+    @Test
+    void lookupAllRunsOneScriptPerHashTag() {
+        ScriptedRedisIdempotencyStore store = store(true);
+        store.save("tenant-1:a", "a-created", null, TTL);
+        store.tryAcquire("tenant-2:b", TTL);
+        scripts.clear();
+
+        Map<String, LookupResult> results = store.lookupAll(List.of("tenant-1:a", "tenant-2:b", "tenant-1:c"));
+
+        assertThat(scripts).containsExactly("eval 2 idem:{tenant-1}:a idem:{tenant-1}:c", "eval 1 idem:{tenant-2}:b");
+        assertThat(results.keySet()).containsExactly("tenant-1:a", "tenant-2:b", "tenant-1:c");
+        assertThat(results.get("tenant-1:a").response()).isEqualTo("a-created");
+        assertThat(results.get("tenant-2:b").status()).isEqualTo(LookupResult.Status.IN_PROGRESS);
+        assertThat(results.get("tenant-1:c").status()).isEqualTo(LookupResult.Status.MISS);
+    }
+
+    @Test
+    void lookupAllWithoutHashTagsRunsOneScriptPerKey() {
+        ScriptedRedisIdempotencyStore store = store(false);
+        store.save("tenant-1:a", "a-created", null, TTL);
+        scripts.clear();
+
+        Map<String, LookupResult> results = store.lookupAll(List.of("tenant-1:a", "tenant-1:c"));
+
+        assertThat(scripts).containsExactly("eval 1 idem:tenant-1:a", "eval 1 idem:tenant-1:c");
+        assertThat(results.get("tenant-1:a").response()).isEqualTo("a-created");
+        assertThat(results.get("tenant-1:c").status()).isEqualTo(LookupResult.Status.MISS);
+    }
+
+    private ScriptedRedisIdempotencyStore store(boolean scopeHashTag) {
+        return new ScriptedRedisIdempotencyStore(connectionFactory, JacksonPayloadCodec.json(new ObjectMapper()),
+                scopeHashTag);
+    }
+
+    private static String text(Slice slice) {
+        return new String(slice.data(), StandardCharsets.UTF_8);
+    }
+}